@@ -0,0 +1,76 @@
+package ru.gnkoshelev.kontur.intern.redis.map.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations that visit or write {@code size} entries at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkBenchmark {
+    @Param
+    public Implementation implementation;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private Map<String, String> map;
+    private Map<String, String> entries;
+    private Map<String, String> copy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entries = Implementation.entries(size);
+        map = implementation.create(size);
+        copy = new HashMap<>(entries);
+    }
+
+    @Benchmark
+    public Map<String, String> putAll() {
+        map.putAll(entries);
+        return map;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            blackhole.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public boolean containsValue() {
+        //missing value forces a full scan
+        return map.containsValue("missing");
+    }
+
+    @Benchmark
+    public boolean equalsMap() {
+        return map.equals(copy);
+    }
+
+    @Benchmark
+    public int hashCodeMap() {
+        return map.hashCode();
+    }
+}
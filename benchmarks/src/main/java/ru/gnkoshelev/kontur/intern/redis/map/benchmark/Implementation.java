@@ -0,0 +1,59 @@
+package ru.gnkoshelev.kontur.intern.redis.map.benchmark;
+
+import ru.gnkoshelev.kontur.intern.redis.map.InMemoryBackend;
+import ru.gnkoshelev.kontur.intern.redis.map.RedisMap;
+import ru.gnkoshelev.kontur.intern.redis.map.RedisMapConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Map implementations compared by the benchmarks.
+ */
+public enum Implementation {
+    REDIS(RedisMap::new),
+    /**
+     * {@code RedisMap} over {@link InMemoryBackend}, which measures the overhead of the client alone.
+     */
+    IN_MEMORY(Implementation::createInMemory),
+    HASH_MAP(HashMap::new),
+    CONCURRENT_HASH_MAP(ConcurrentHashMap::new);
+
+    private final Supplier<Map<String, String>> factory;
+
+    Implementation(Supplier<Map<String, String>> factory) {
+        this.factory = factory;
+    }
+
+    public Map<String, String> create() {
+        return factory.get();
+    }
+
+    /**
+     * Creates a map filled with the specified number of entries.
+     */
+    public Map<String, String> create(int size) {
+        Map<String, String> map = create();
+        map.putAll(entries(size));
+        return map;
+    }
+
+    private static Map<String, String> createInMemory() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setBackend(new InMemoryBackend());
+        return RedisMap.create(config);
+    }
+
+    /**
+     * Returns a map of keys "key" + i mapped to values "value" + i.
+     */
+    public static Map<String, String> entries(int size) {
+        Map<String, String> entries = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        return entries;
+    }
+}
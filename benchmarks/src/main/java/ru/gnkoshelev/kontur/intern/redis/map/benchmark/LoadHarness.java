@@ -0,0 +1,332 @@
+package ru.gnkoshelev.kontur.intern.redis.map.benchmark;
+
+import ru.gnkoshelev.kontur.intern.redis.map.OperationStats;
+import ru.gnkoshelev.kontur.intern.redis.map.RedisMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded and multi-process load harness for {@link RedisMap}.
+ *
+ * <p>Worker threads run a weighted mix of operations against a set of shared maps.
+ * Writers only touch keys {@code "key:" + i}, so that the maps grow and shrink while
+ * they are being iterated. Every map also holds {@code stable} keys {@code "stable:" + i}
+ * that are never modified, so an iteration that does not return one of them
+ * has missed an entry, and an iteration that returns any key twice has produced a duplicate.
+ *
+ * <p>Usage:
+ * <pre>
+ * java -cp target/benchmarks.jar ru.gnkoshelev.kontur.intern.redis.map.benchmark.LoadHarness \
+ *     --threads 32 --duration 60 --processes 4 --maps 2 --keys 10000 --stable 1000 \
+ *     --mix get=50,put=20,remove=5,putIfAbsent=5,compute=10,merge=10,iterate=1
+ * </pre>
+ * With {@code --processes} greater than one the harness starts worker JVMs
+ * with the same class path and aggregates their reports: counts are summed,
+ * latencies are the maximum over the workers.
+ */
+public class LoadHarness {
+    enum Op {
+        GET, PUT, REMOVE, PUT_IF_ABSENT, COMPUTE, MERGE, ITERATE
+    }
+
+    private static final String REPORT_PREFIX = "REPORT ";
+    private static final int SAMPLES_PER_THREAD = 1 << 14;
+
+    private final Map<String, String> options;
+    private final Op[] schedule;
+    private final int keys;
+    private final int stable;
+
+    private final Map<Op, LongAdder> counts = new EnumMap<>(Op.class);
+    private final Map<Op, LongAdder> errors = new EnumMap<>(Op.class);
+    private final Map<Op, List<long[]>> samples = new EnumMap<>(Op.class);
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.schedule = parseMix(option("mix", "get=50,put=20,remove=5,putIfAbsent=5,compute=10,merge=10,iterate=1"));
+        this.keys = Integer.parseInt(option("keys", "10000"));
+        this.stable = Integer.parseInt(option("stable", "1000"));
+        for (Op op : Op.values()) {
+            counts.put(op, new LongAdder());
+            errors.put(op, new LongAdder());
+            samples.put(op, new ArrayList<>());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Illegal option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        LoadHarness harness = new LoadHarness(options);
+        if (options.containsKey("map-keys")) {
+            //worker process started by the coordinator
+            System.out.println(REPORT_PREFIX + harness.run(options.get("map-keys").split(",")));
+            System.exit(0);
+        }
+        List<RedisMap> maps = harness.createMaps();
+        String[] mapKeys = maps.stream().map(RedisMap::getRedisKey).toArray(String[]::new);
+        int processes = Integer.parseInt(harness.option("processes", "1"));
+        List<String> reports = processes == 1 ? List.of(harness.run(mapKeys)) :
+                harness.fork(processes, String.join(",", mapKeys));
+        for (String report : reports) {
+            System.out.println(report);
+        }
+        if (reports.size() > 1) {
+            System.out.println("TOTAL " + aggregate(reports));
+        }
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private List<RedisMap> createMaps() {
+        int count = Integer.parseInt(option("maps", "1"));
+        List<RedisMap> maps = new ArrayList<>(count);
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < stable; i++) {
+            entries.put("stable:" + i, "value" + i);
+        }
+        for (int i = 0; i < count; i++) {
+            RedisMap map = new RedisMap();
+            map.putAll(entries);
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    /**
+     * Starts worker processes and collects their reports.
+     * The maps of this process keep the shared hashes alive meanwhile.
+     */
+    private List<String> fork(int processes, String mapKeys) throws IOException, InterruptedException {
+        List<Process> workers = new ArrayList<>(processes);
+        for (int i = 0; i < processes; i++) {
+            List<String> command = new ArrayList<>(List.of(
+                    System.getProperty("java.home") + "/bin/java",
+                    "-cp", System.getProperty("java.class.path"),
+                    LoadHarness.class.getName()));
+            options.forEach((name, value) -> command.addAll(List.of("--" + name, value)));
+            command.addAll(List.of("--map-keys", mapKeys));
+            workers.add(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+        List<String> reports = new ArrayList<>(processes);
+        for (Process worker : workers) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(REPORT_PREFIX)) {
+                        reports.add(line.substring(REPORT_PREFIX.length()));
+                    }
+                }
+            }
+            worker.waitFor();
+        }
+        return reports;
+    }
+
+    private String run(String[] mapKeys) throws InterruptedException {
+        RedisMap[] maps = Arrays.stream(mapKeys).map(RedisMap::new).toArray(RedisMap[]::new);
+        int threads = Integer.parseInt(option("threads", "16"));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        Map<String, OperationStats> before = RedisMap.getMetrics().getOperations();
+
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    work(maps, start + duration);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + i);
+            thread.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return report(seconds, before, RedisMap.getMetrics().getOperations());
+    }
+
+    private void work(RedisMap[] maps, long deadline) {
+        Map<Op, long[]> reservoirs = new EnumMap<>(Op.class);
+        Map<Op, Long> seen = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) {
+            reservoirs.put(op, new long[SAMPLES_PER_THREAD]);
+            seen.put(op, 0L);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+            Op op = schedule[random.nextInt(schedule.length)];
+            RedisMap map = maps[random.nextInt(maps.length)];
+            String key = "key:" + random.nextInt(keys);
+            long start = System.nanoTime();
+            try {
+                execute(op, map, key);
+            } catch (RuntimeException e) {
+                errors.get(op).increment();
+            }
+            long latency = System.nanoTime() - start;
+            counts.get(op).increment();
+            //reservoir sampling keeps a uniform sample of latencies
+            long n = seen.merge(op, 1L, Long::sum);
+            long[] reservoir = reservoirs.get(op);
+            if (n <= reservoir.length) {
+                reservoir[(int) n - 1] = latency;
+            } else {
+                long index = random.nextLong(n);
+                if (index < reservoir.length) {
+                    reservoir[(int) index] = latency;
+                }
+            }
+        }
+        for (Op op : Op.values()) {
+            long[] sample = Arrays.copyOf(reservoirs.get(op), (int) Math.min(seen.get(op), SAMPLES_PER_THREAD));
+            synchronized (samples) {
+                samples.get(op).add(sample);
+            }
+        }
+    }
+
+    private void execute(Op op, RedisMap map, String key) {
+        switch (op) {
+            case GET:
+                map.get(key);
+                break;
+            case PUT:
+                map.put(key, "value");
+                break;
+            case REMOVE:
+                map.remove(key);
+                break;
+            case PUT_IF_ABSENT:
+                map.putIfAbsent(key, "value");
+                break;
+            case COMPUTE:
+                map.compute(key, (k, v) -> v == null || v.length() > 32 ? "1" : v + "1");
+                break;
+            case MERGE:
+                map.merge(key, "1", (a, b) -> a.length() > 32 ? b : a + b);
+                break;
+            case ITERATE:
+                iterate(map);
+                break;
+            default:
+                throw new IllegalStateException(op.name());
+        }
+    }
+
+    private void iterate(RedisMap map) {
+        Set<String> visited = new HashSet<>();
+        int stableVisited = 0;
+        for (String key : map.keySet()) {
+            if (!visited.add(key)) {
+                duplicates.increment();
+            } else if (key.startsWith("stable:")) {
+                stableVisited++;
+            }
+        }
+        misses.add(stable - stableVisited);
+    }
+
+    private String report(double seconds, Map<String, OperationStats> before, Map<String, OperationStats> after) {
+        StringBuilder builder = new StringBuilder();
+        for (Op op : Op.values()) {
+            long count = counts.get(op).sum();
+            if (count == 0L) {
+                continue;
+            }
+            long[] all = samples.get(op).stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            builder.append(String.format("%s count=%d ops/s=%.0f errors=%d p50us=%.0f p99us=%.0f p999us=%.0f maxus=%.0f; ",
+                    op, count, count / seconds, errors.get(op).sum(),
+                    percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), percentile(all, 1.0)));
+        }
+        for (Map.Entry<String, OperationStats> entry : after.entrySet()) {
+            OperationStats previous = before.get(entry.getKey());
+            long retries = entry.getValue().getRetries() - (previous == null ? 0L : previous.getRetries());
+            long calls = entry.getValue().getLatency().getCount()
+                    - (previous == null ? 0L : previous.getLatency().getCount());
+            if (retries > 0L) {
+                builder.append(String.format("RETRIES_%s count=%d rate=%.4f; ", entry.getKey(), retries,
+                        calls == 0L ? 0.0 : (double) retries / calls));
+            }
+        }
+        builder.append(String.format("ITERATOR duplicates=%d misses=%d", duplicates.sum(), misses.sum()));
+        return builder.toString();
+    }
+
+    private static double percentile(long[] sorted, double rank) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * rank) - 1);
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+
+    /**
+     * Sums the counters of worker reports and takes the maximum of their other values.
+     */
+    private static String aggregate(List<String> reports) {
+        Map<String, Map<String, Double>> sections = new LinkedHashMap<>();
+        for (String report : reports) {
+            for (String section : report.split("; ")) {
+                String[] parts = section.trim().split(" ");
+                Map<String, Double> values = sections.computeIfAbsent(parts[0], name -> new LinkedHashMap<>());
+                for (int i = 1; i < parts.length; i++) {
+                    String[] pair = parts[i].split("=");
+                    double value = Double.parseDouble(pair[1]);
+                    boolean additive = pair[0].equals("count") || pair[0].equals("ops/s") || pair[0].equals("errors")
+                            || pair[0].equals("duplicates") || pair[0].equals("misses");
+                    values.merge(pair[0], value, additive ? Double::sum : Math::max);
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        sections.forEach((name, values) -> {
+            builder.append(name);
+            values.forEach((key, value) -> builder.append(value == Math.rint(value) ?
+                    String.format(" %s=%.0f", key, value) : String.format(" %s=%.4f", key, value)));
+            builder.append("; ");
+        });
+        return builder.toString();
+    }
+
+    private static Op[] parseMix(String mix) {
+        List<Op> schedule = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            Op op = Op.valueOf(pair[0].replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+            for (int i = Integer.parseInt(pair[1]); i > 0; i--) {
+                schedule.add(op);
+            }
+        }
+        if (schedule.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return schedule.toArray(new Op[0]);
+    }
+}
@@ -0,0 +1,78 @@
+package ru.gnkoshelev.kontur.intern.redis.map.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-key operations on a map of {@code size} entries.
+ * Keys are chosen at random, so that about a half of
+ * {@code putIfAbsent} and {@code merge} calls find no mapping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SingleKeyBenchmark {
+    @Param
+    public Implementation implementation;
+
+    @Param({"1000"})
+    public int size;
+
+    private Map<String, String> map;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = implementation.create(size);
+        keys = new String[size * 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    @Benchmark
+    public String get() {
+        return map.get(randomKey());
+    }
+
+    @Benchmark
+    public String put() {
+        return map.put(randomKey(), "value");
+    }
+
+    @Benchmark
+    public String putIfAbsent() {
+        return map.putIfAbsent(randomKey(), "value");
+    }
+
+    @Benchmark
+    public String compute() {
+        return map.compute(randomKey(), (k, v) -> v == null || v.length() > 64 ? "1" : v + "1");
+    }
+
+    @Benchmark
+    public String merge() {
+        return map.merge(randomKey(), "1", (a, b) -> a.length() > 64 ? b : a + b);
+    }
+}
@@ -0,0 +1,117 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of operations applied to a {@link RedisMap} atomically by {@link RedisMap#atomically}.
+ * The operations are recorded in the order they are called and have the semantics of
+ * the {@code Map} methods of the same names, every operation observing the ones before it.
+ * Their results are returned by {@code atomically} once the whole batch has been applied.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class Batch {
+    enum Kind {
+        PUT,
+        PUT_IF_ABSENT,
+        REPLACE,
+        REPLACE_IF_EQUAL,
+        REMOVE,
+        REMOVE_IF_EQUAL
+    }
+
+    static final class Command {
+        final Kind kind;
+        final String key;
+        final String value;
+        final String expected;
+
+        Command(Kind kind, String key, String value, String expected) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+            this.expected = expected;
+        }
+    }
+
+    private final List<Command> commands = new ArrayList<>();
+
+    Batch() {
+    }
+
+    List<Command> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Associates the value with the key. The result is the previous value of the key.
+     *
+     * @return this batch
+     * @see RedisMap#put
+     */
+    public Batch put(String key, String value) {
+        commands.add(new Command(Kind.PUT, key, value, null));
+        return this;
+    }
+
+    /**
+     * Associates the value with the key if the key is not associated with a value
+     * or is mapped to {@code null}. The result is the previous value of the key.
+     *
+     * @return this batch
+     * @see RedisMap#putIfAbsent
+     */
+    public Batch putIfAbsent(String key, String value) {
+        commands.add(new Command(Kind.PUT_IF_ABSENT, key, value, null));
+        return this;
+    }
+
+    /**
+     * Replaces the value of the key if the key is present. The result is the previous value of the key.
+     *
+     * @return this batch
+     * @see RedisMap#replace(String, String)
+     */
+    public Batch replace(String key, String value) {
+        commands.add(new Command(Kind.REPLACE, key, value, null));
+        return this;
+    }
+
+    /**
+     * Replaces the value of the key if it is equal to the expected one.
+     * The result is the previous value of the key, so the replacement has taken place
+     * if the result is equal to {@code oldValue} and the key was present.
+     *
+     * @return this batch
+     * @see RedisMap#replace(String, String, String)
+     */
+    public Batch replace(String key, String oldValue, String newValue) {
+        commands.add(new Command(Kind.REPLACE_IF_EQUAL, key, newValue, oldValue));
+        return this;
+    }
+
+    /**
+     * Removes the mapping for the key. The result is the previous value of the key.
+     *
+     * @return this batch
+     * @see RedisMap#remove(Object)
+     */
+    public Batch remove(String key) {
+        commands.add(new Command(Kind.REMOVE, key, null, null));
+        return this;
+    }
+
+    /**
+     * Removes the mapping for the key if the key is mapped to the value.
+     * The result is the previous value of the key, so the removal has taken place
+     * if the result is equal to {@code value} and the key was present.
+     *
+     * @return this batch
+     * @see RedisMap#remove(Object, Object)
+     */
+    public Batch remove(String key, String value) {
+        commands.add(new Command(Kind.REMOVE_IF_EQUAL, key, null, value));
+        return this;
+    }
+}
@@ -0,0 +1,34 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A page of hash fields with the values as they are stored,
+ * returned by {@link RedisMapBackend#scanBinary}.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class BinaryScanPage {
+    private final String cursor;
+    private final List<Entry<String, byte[]>> entries;
+
+    public BinaryScanPage(String cursor, List<Entry<String, byte[]>> entries) {
+        this.cursor = cursor;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the cursor of the next page, or {@code "0"} if the scan is complete.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the fields and their values.
+     */
+    public List<Entry<String, byte[]>> getEntries() {
+        return entries;
+    }
+}
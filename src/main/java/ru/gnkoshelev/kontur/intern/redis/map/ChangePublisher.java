@@ -0,0 +1,269 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash operations that append the fields modified by every command to a change stream.
+ * An entry maps every modified field to {@link #CHANGED}, or every replaced hash to
+ * {@link #REPLACED}. Entries name the fields rather than carry their values, since they
+ * are appended after the command and may thus be ordered differently from the commands
+ * of other writers; a reader of the stream has to read the current values of the fields.
+ *
+ * <p>The entry is appended by a separate command, so it is lost if the application fails
+ * between the two. This is the default of {@link HashOperations#publishing}; backends that
+ * keep the stream apart from the application append the entry in the command's transaction.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class ChangePublisher implements HashOperations {
+    /**
+     * The value of a field modified by a command.
+     */
+    static final String CHANGED = "changed";
+
+    /**
+     * The value of a hash replaced by a command.
+     */
+    static final String REPLACED = "replaced";
+
+    /**
+     * The maximum number of fields of an entry, which keeps the arguments of a Lua script in bounds.
+     */
+    private static final int MAX_ENTRY_FIELDS = 1000;
+
+    private final HashOperations operations;
+    private final String stream;
+    private final long maxLength;
+
+    ChangePublisher(HashOperations operations, String stream, long maxLength) {
+        this.operations = operations;
+        this.stream = stream;
+        this.maxLength = maxLength;
+    }
+
+    private void publish(String field) {
+        operations.xadd(stream, Map.of(field, CHANGED), maxLength);
+    }
+
+    private void publish(Map<String, ? extends Collection<String>> fields) {
+        for (Map<String, String> entry : entries(fields)) {
+            operations.xadd(stream, entry, maxLength);
+        }
+    }
+
+    /**
+     * Returns the entries naming the fields, split so that no entry exceeds {@link #MAX_ENTRY_FIELDS}.
+     */
+    static List<Map<String, String>> entries(Map<String, ? extends Collection<String>> fields) {
+        List<Map<String, String>> entries = new ArrayList<>();
+        Map<String, String> entry = new HashMap<>();
+        for (Collection<String> hashFields : fields.values()) {
+            for (String field : hashFields) {
+                entry.put(field, CHANGED);
+                if (entry.size() == MAX_ENTRY_FIELDS) {
+                    entries.add(entry);
+                    entry = new HashMap<>();
+                }
+            }
+        }
+        if (!entry.isEmpty()) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the entry naming the replaced hashes.
+     */
+    static Map<String, String> replaced(Collection<String> keys) {
+        Map<String, String> entry = new HashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            entry.put(key, REPLACED);
+        }
+        return entry;
+    }
+
+    static Map<String, Collection<String>> fieldsOf(Map<String, ? extends Map<String, ?>> fields) {
+        Map<String, Collection<String>> output = new HashMap<>(fields.size() * 2);
+        fields.forEach((key, values) -> output.put(key, new ArrayList<>(values.keySet())));
+        return output;
+    }
+
+    @Override
+    public String hget(String key, String field) {
+        return operations.hget(key, field);
+    }
+
+    @Override
+    public boolean hexists(String key, String field) {
+        return operations.hexists(key, field);
+    }
+
+    @Override
+    public List<String> hmget(String key, List<String> fields) {
+        return operations.hmget(key, fields);
+    }
+
+    @Override
+    public long hlen(String key) {
+        return operations.hlen(key);
+    }
+
+    @Override
+    public long[] hlenAll(String[] keys) {
+        return operations.hlenAll(keys);
+    }
+
+    @Override
+    public void hset(Map<String, Map<String, String>> fields) {
+        operations.hset(fields);
+        publish(fieldsOf(fields));
+    }
+
+    @Override
+    public void hsetnx(Map<String, Map<String, String>> fields) {
+        operations.hsetnx(fields);
+        publish(fieldsOf(fields));
+    }
+
+    @Override
+    public long hdel(Map<String, ? extends Collection<String>> fields) {
+        long removed = operations.hdel(fields);
+        if (removed != 0L) {
+            publish(fields);
+        }
+        return removed;
+    }
+
+    @Override
+    public String getAndSet(String key, String field, String value) {
+        String previous = operations.getAndSet(key, field, value);
+        publish(field);
+        return previous;
+    }
+
+    @Override
+    public byte[] getAndSetBinary(String key, String field, byte[] value) {
+        byte[] previous = operations.getAndSetBinary(key, field, value);
+        publish(field);
+        return previous;
+    }
+
+    @Override
+    public byte[] hgetBinary(String key, String field) {
+        return operations.hgetBinary(key, field);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String field, String expected, String value) {
+        if (!operations.compareAndSet(key, field, expected, value)) {
+            return false;
+        }
+        publish(field);
+        return true;
+    }
+
+    @Override
+    public List<String> hbatch(List<FieldUpdate> updates) {
+        List<String> results = operations.hbatch(updates);
+        Map<String, Collection<String>> fields = new HashMap<>();
+        for (int i = 0; i < updates.size(); i++) {
+            FieldUpdate update = updates.get(i);
+            if (update.matches(results.get(i))) {
+                fields.computeIfAbsent(update.getKey(), k -> new ArrayList<>()).add(update.getField());
+            }
+        }
+        publish(fields);
+        return results;
+    }
+
+    @Override
+    public long hincrBy(String key, String field, long delta) {
+        long value = operations.hincrBy(key, field, delta);
+        publish(field);
+        return value;
+    }
+
+    @Override
+    public double hincrByFloat(String key, String field, double delta) {
+        double value = operations.hincrByFloat(key, field, delta);
+        publish(field);
+        return value;
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+        try {
+            return operations.hincrByAll(deltas);
+        } finally {
+            //a failed increment does not roll back the others
+            publish(fieldsOf(deltas));
+        }
+    }
+
+    @Override
+    public void replace(Map<String, Map<String, String>> contents, int seconds) {
+        operations.replace(contents, seconds);
+        operations.xadd(stream, replaced(contents.keySet()), maxLength);
+    }
+
+    @Override
+    public void expire(int seconds, String... keys) {
+        operations.expire(seconds, keys);
+    }
+
+    @Override
+    public long lease(String registry, String holder, long millis, String... keys) {
+        return operations.lease(registry, holder, millis, keys);
+    }
+
+    @Override
+    public long release(String registry, String holder, String... keys) {
+        return operations.release(registry, holder, keys);
+    }
+
+    @Override
+    public long xadd(String key, Map<String, String> fields, long maxLength) {
+        return operations.xadd(key, fields, maxLength);
+    }
+
+    @Override
+    public StreamPage xrange(String key, long after, int count) {
+        return operations.xrange(key, after, count);
+    }
+
+    @Override
+    public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                            boolean collect) {
+        return operations.hquery(key, cursor, count, skipped, filter, collect);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return operations.exists(key);
+    }
+
+    @Override
+    public String type(String key) {
+        return operations.type(key);
+    }
+
+    @Override
+    public long incr(String key) {
+        return operations.incr(key);
+    }
+
+    @Override
+    public void del(String key) {
+        operations.del(key);
+    }
+
+    @Override
+    public HashOperations bounded(Eviction eviction) {
+        return operations.bounded(eviction).publishing(stream, maxLength);
+    }
+}
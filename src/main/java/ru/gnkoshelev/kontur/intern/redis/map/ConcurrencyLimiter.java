@@ -0,0 +1,115 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of the number of operations executed at once, adjusted by additive increase
+ * and multiplicative decrease. The limit grows by one after about {@code limit} operations
+ * that complete in time while at least half of the limit is in use, and shrinks by a tenth
+ * when an operation fails or takes longer than twice the shortest latency seen recently,
+ * which is how the latency of a server that is not overloaded looks.
+ * The limit shrinks at most once for the operations that were executing at the same time,
+ * so a burst of slow replies does not collapse it.
+ * Operations over the limit are rejected at once rather than queued.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class ConcurrencyLimiter {
+    /**
+     * The period (in nanoseconds) the shortest latency is tracked for.
+     * The shortest latency is taken from the current and the previous period.
+     */
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The factor the limit shrinks by.
+     */
+    private static final double BACKOFF = 0.9;
+
+    /**
+     * The ratio of the latency to the shortest latency above which the server is considered overloaded.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * The latency (in nanoseconds) below which the server is never considered overloaded,
+     * which keeps the jitter of a fast server from shrinking the limit.
+     */
+    private static final long MIN_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int maxLimit;
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile double limit;
+
+    private long periodStart = System.nanoTime();
+    private long periodMinLatency = Long.MAX_VALUE;
+    private long previousMinLatency = Long.MAX_VALUE;
+    private long lastDecrease = periodStart - 1L;
+
+    /**
+     * @param maxLimit the maximum limit, which is also the initial one
+     */
+    ConcurrencyLimiter(int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Admits an operation if the limit allows it.
+     *
+     * @return {@code true} if the operation is admitted and must be followed by {@link #release}
+     */
+    boolean tryAcquire() {
+        int current = (int) limit;
+        while (true) {
+            int count = running.get();
+            if (count >= current) {
+                return false;
+            }
+            if (running.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the completion of an admitted operation.
+     *
+     * @param start the time (in nanoseconds) the operation started at
+     * @param latency the latency (in nanoseconds) of the operation
+     * @param failed {@code true} if the operation failed
+     */
+    void release(long start, long latency, boolean failed) {
+        int count = running.getAndDecrement();
+        long now = start + latency;
+        synchronized (this) {
+            if (now - periodStart >= PERIOD) {
+                previousMinLatency = periodMinLatency;
+                periodMinLatency = Long.MAX_VALUE;
+                periodStart = now;
+            }
+            if (!failed) {
+                periodMinLatency = Math.min(periodMinLatency, latency);
+            }
+            long minLatency = Math.min(periodMinLatency, previousMinLatency);
+            double current = limit;
+            if (failed || latency > Math.max(TOLERANCE * minLatency, MIN_LATENCY)) {
+                //the operations started before the last decrease saw the old limit
+                if (start - lastDecrease > 0L) {
+                    limit = Math.max(current * BACKOFF, 1.0);
+                    lastDecrease = now;
+                }
+            } else if (count * 2 >= current && current < maxLimit) {
+                limit = Math.min(current + 1.0 / current, maxLimit);
+            }
+        }
+    }
+}
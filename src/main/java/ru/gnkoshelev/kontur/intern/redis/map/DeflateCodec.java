@@ -0,0 +1,126 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ValueCodec} that compresses values exceeding a size threshold with {@link Deflater}.
+ * Compressed values are stored in Base64 preceded by a header,
+ * since Redis values are accessed as UTF-8 strings.
+ * A value is stored compressed only if this makes it shorter.
+ *
+ * <p>Every encoded value that starts with the header character {@code '\u0000'}
+ * is followed by a format character: {@code 'D'} for compressed values
+ * and {@code '\u0000'} for uncompressed values that start with the header character themselves.
+ * Any other value is stored as it is.
+ *
+ *  @author  Veronica Kazarina
+ */
+public class DeflateCodec implements ValueCodec {
+    /**
+     * The default size (in characters) a value should exceed to be compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final char HEADER = '\u0000';
+    private static final char DEFLATED = 'D';
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int threshold;
+    private final int level;
+
+    /**
+     * Constructs a codec with the default threshold and compression level.
+     */
+    public DeflateCodec() {
+        this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructs a codec with the specified threshold and compression level.
+     *
+     * @param threshold the size (in characters) a value should exceed to be compressed
+     * @param level the compression level (0-9) or {@link Deflater#DEFAULT_COMPRESSION}
+     * @throws IllegalArgumentException if the {@code threshold} is negative
+     *      or the {@code level} is not valid
+     */
+    public DeflateCodec(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Illegal threshold: " + threshold);
+        }
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Illegal compression level: " + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    @Override
+    public String encode(String value) {
+        if (value.length() > threshold) {
+            String compressed = HEADER + "" + DEFLATED
+                    + Base64.getEncoder().encodeToString(deflate(value.getBytes(StandardCharsets.UTF_8)));
+            if (compressed.length() < value.length()) {
+                return compressed;
+            }
+        }
+        return !value.isEmpty() && value.charAt(0) == HEADER ? HEADER + value : value;
+    }
+
+    @Override
+    public String decode(String value) {
+        if (value.length() < 2 || value.charAt(0) != HEADER) {
+            return value;
+        }
+        switch (value.charAt(1)) {
+            case HEADER:
+                return value.substring(1);
+            case DEFLATED:
+                byte[] bytes = Base64.getDecoder().decode(value.substring(2));
+                return new String(inflate(bytes), StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("Illegal value format: " + (int) value.charAt(1));
+        }
+    }
+
+    private byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed value");
+                }
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Files of map entries in one of the {@link ExportFormat formats}.
+ * Entries are streamed through a buffer of a fixed size, so the memory taken
+ * by reading or writing a file does not depend on its size.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class EntryFile {
+    /**
+     * The first bytes of a binary file, "RMAP".
+     */
+    private static final int MAGIC = 0x524d4150;
+
+    private static final int VERSION = 1;
+
+    private static final int NULL_LENGTH = -1;
+
+    /**
+     * The length that marks the end of a binary file.
+     */
+    private static final int END_LENGTH = -2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private EntryFile() {
+    }
+
+    /**
+     * Writes entries to a file, replacing its contents.
+     * The file is complete once {@link #finish} has been called.
+     */
+    static final class EntryWriter implements Closeable {
+        private final OutputStream stream;
+        private final DataOutputStream binary;
+        private final Writer text;
+
+        EntryWriter(Path path, ExportFormat format, boolean compressed) throws IOException {
+            OutputStream stream = Channels.newOutputStream(FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+            this.stream = compressed ? new GZIPOutputStream(stream, BUFFER_SIZE) :
+                    new BufferedOutputStream(stream, BUFFER_SIZE);
+            if (format == ExportFormat.BINARY) {
+                binary = new DataOutputStream(this.stream);
+                binary.writeInt(MAGIC);
+                binary.writeInt(VERSION);
+                text = null;
+            } else {
+                binary = null;
+                text = new BufferedWriter(new OutputStreamWriter(this.stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+            }
+        }
+
+        void write(String key, String value) throws IOException {
+            if (binary != null) {
+                writeString(key);
+                writeString(value);
+                return;
+            }
+            text.write("{\"key\":");
+            writeJson(key);
+            text.write(",\"value\":");
+            writeJson(value);
+            text.write("}\n");
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                binary.writeInt(NULL_LENGTH);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            binary.writeInt(bytes.length);
+            binary.write(bytes);
+        }
+
+        private void writeJson(String value) throws IOException {
+            if (value == null) {
+                text.write("null");
+                return;
+            }
+            text.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    text.write('\\');
+                    text.write(c);
+                } else if (c < 0x20) {
+                    text.write(String.format("\\u%04x", (int) c));
+                } else {
+                    text.write(c);
+                }
+            }
+            text.write('"');
+        }
+
+        /**
+         * Completes the file.
+         */
+        void finish() throws IOException {
+            if (binary != null) {
+                binary.writeInt(END_LENGTH);
+                binary.flush();
+            } else {
+                text.flush();
+            }
+            if (stream instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) stream).finish();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads entries from a file, recognizing its format by the first bytes.
+     */
+    static final class EntryReader implements Closeable {
+        private final InputStream stream;
+        private final DataInputStream binary;
+        private final BufferedReader text;
+        private long line;
+
+        EntryReader(Path path) throws IOException {
+            InputStream stream = new BufferedInputStream(
+                    Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), BUFFER_SIZE);
+            stream.mark(4);
+            int first = stream.read();
+            int second = stream.read();
+            stream.reset();
+            if (first == 0x1f && second == 0x8b) {
+                stream = new BufferedInputStream(new GZIPInputStream(stream, BUFFER_SIZE), BUFFER_SIZE);
+            }
+            this.stream = stream;
+            stream.mark(4);
+            byte[] header = new byte[4];
+            int read = stream.readNBytes(header, 0, header.length);
+            stream.reset();
+            if (read == header.length && ((header[0] & 0xff) << 24 | (header[1] & 0xff) << 16
+                    | (header[2] & 0xff) << 8 | (header[3] & 0xff)) == MAGIC) {
+                binary = new DataInputStream(stream);
+                binary.readInt();
+                int version = binary.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Illegal file version: " + version);
+                }
+                text = null;
+            } else {
+                binary = null;
+                text = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Returns the next entry, or {@code null} if the file has been read to the end.
+         *
+         * @throws IOException if the file is truncated or malformed
+         */
+        Entry<String, String> next() throws IOException {
+            if (binary != null) {
+                int length;
+                try {
+                    length = binary.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("Truncated file", e);
+                }
+                if (length == END_LENGTH) {
+                    return null;
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(readString(length), readString(binary.readInt()));
+            }
+            String json;
+            do {
+                json = text.readLine();
+                line++;
+            } while (json != null && json.isBlank());
+            return json == null ? null : new JsonLine(json, line).parse();
+        }
+
+        private String readString(int length) throws IOException {
+            if (length == NULL_LENGTH) {
+                return null;
+            }
+            if (length < 0) {
+                throw new IOException("Illegal length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            binary.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Parses a line of an {@link ExportFormat#NDJSON} file.
+     */
+    private static final class JsonLine {
+        private final String json;
+        private final long line;
+        private int position;
+
+        JsonLine(String json, long line) {
+            this.json = json;
+            this.line = line;
+        }
+
+        Entry<String, String> parse() throws IOException {
+            String key = null;
+            String value = null;
+            boolean hasKey = false;
+            boolean hasValue = false;
+            expect('{');
+            while (true) {
+                String name = readString();
+                expect(':');
+                if ("key".equals(name) && !hasKey) {
+                    key = readValue();
+                    hasKey = true;
+                } else if ("value".equals(name) && !hasValue) {
+                    value = readValue();
+                    hasValue = true;
+                } else {
+                    throw illegal();
+                }
+                if (skip() != ',') {
+                    break;
+                }
+                position++;
+            }
+            expect('}');
+            if (!hasKey || !hasValue || skip() != -1) {
+                throw illegal();
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+
+        private String readValue() throws IOException {
+            skip();
+            if (json.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            return readString();
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder builder = new StringBuilder();
+            while (position < json.length()) {
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                if (position >= json.length()) {
+                    break;
+                }
+                char escape = json.charAt(position++);
+                switch (escape) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        builder.append(escape);
+                        break;
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > json.length()) {
+                            throw illegal();
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw illegal();
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        throw illegal();
+                }
+            }
+            throw illegal();
+        }
+
+        /**
+         * Skips whitespace and returns the next character, or -1 at the end of the line.
+         */
+        private int skip() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+            return position < json.length() ? json.charAt(position) : -1;
+        }
+
+        private void expect(char c) throws IOException {
+            if (skip() != c) {
+                throw illegal();
+            }
+            position++;
+        }
+
+        private IOException illegal() {
+            return new IOException("Illegal entry at line " + line + ": " + json);
+        }
+    }
+}
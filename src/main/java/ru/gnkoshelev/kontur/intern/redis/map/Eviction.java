@@ -0,0 +1,62 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.Objects;
+
+/**
+ * The bound of a single hash maintained by the operations returned by
+ * {@link HashOperations#bounded}. Accesses to the fields of the hash are recorded
+ * in a sorted set stored at {@link #indexKey}, and the total size of its fields
+ * and values (in UTF-8 bytes) is counted at {@link #sizeKey}.
+ * A value of zero means that the corresponding quantity is not bounded.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class Eviction {
+    private final EvictionPolicy policy;
+    private final long maxEntries;
+    private final long maxBytes;
+
+    /**
+     * Constructs the bound of a hash.
+     *
+     * @param policy the eviction policy
+     * @param maxEntries the maximum number of tracked fields, or zero
+     * @param maxBytes the maximum size of tracked fields and values, or zero
+     * @throws NullPointerException if the specified {@code policy} is null
+     * @throws IllegalArgumentException if any of the bounds is negative
+     */
+    public Eviction(EvictionPolicy policy, long maxEntries, long maxBytes) {
+        if (maxEntries < 0L || maxBytes < 0L) {
+            throw new IllegalArgumentException("Illegal bound: " + maxEntries + ", " + maxBytes);
+        }
+        this.policy = Objects.requireNonNull(policy);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the key of the sorted set recording accesses to the fields of the hash.
+     */
+    public static String indexKey(String key) {
+        return key + ":eviction";
+    }
+
+    /**
+     * Returns the key of the counter of the size of the hash.
+     */
+    public static String sizeKey(String key) {
+        return key + ":bytes";
+    }
+}
@@ -0,0 +1,19 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Determines which fields of a size-bounded {@link RedisMap} are evicted first.
+ *
+ *  @author  Veronica Kazarina
+ */
+public enum EvictionPolicy {
+    /**
+     * Evicts the least recently used fields.
+     */
+    LRU,
+
+    /**
+     * Evicts the least frequently used fields. Frequencies do not decay,
+     * so fields that were popular long ago may outlive newer ones.
+     */
+    LFU
+}
@@ -0,0 +1,23 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Formats of the files written by {@link RedisMap#exportTo}.
+ * {@link RedisMap#importFrom} recognizes the format of a file, and whether it is compressed, by its contents.
+ *
+ *  @author  Veronica Kazarina
+ */
+public enum ExportFormat {
+    /**
+     * A header followed by every key and value as a 32-bit length and the UTF-8 bytes,
+     * a length of -1 standing for {@code null}, and a trailer that tells a complete file from a truncated one.
+     */
+    BINARY,
+
+    /**
+     * A JSON object with the {@code key} and {@code value} members per line.
+     * The file has no end marker, so that every line is an entry for other tools; a file truncated
+     * between lines therefore reads as a complete one with fewer entries, and only a truncated line
+     * is reported as malformed. Compressed files are checked by the gzip trailer instead.
+     */
+    NDJSON
+}
@@ -0,0 +1,133 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples the operations of a map to find its most accessed and biggest fields.
+ * One of every {@code rate} operations is sampled, so the cost of the other operations
+ * is a single random number. Sampled keys are counted with the space-saving algorithm
+ * in a fixed number of counters, which keeps the keys accessed more often than
+ * {@code 1 / capacity} of the time with counts overestimated by at most the count of the
+ * least counted key.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class FieldSampler {
+    /**
+     * The number of keys tracked by each counter set.
+     */
+    static final int CAPACITY = 64;
+
+    private final int rate;
+    private final Histogram valueSizes = new Histogram();
+
+    /**
+     * The estimated numbers of sampled accesses by key.
+     */
+    private final Map<String, long[]> accesses = new HashMap<>();
+
+    /**
+     * The sizes of the biggest sampled values by key.
+     */
+    private final Map<String, Long> sizes = new HashMap<>();
+
+    /**
+     * @param rate the sampling rate, one of every {@code rate} operations is sampled, or zero to sample nothing
+     */
+    FieldSampler(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Returns {@code true} if the current operation is to be sampled.
+     */
+    boolean sample() {
+        return rate != 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    /**
+     * Records a sampled access to the key and the stored size of its value,
+     * or -1 if the operation did not see the value.
+     */
+    void record(String key, long size) {
+        if (size >= 0L) {
+            valueSizes.record(size);
+        }
+        synchronized (this) {
+            long[] counter = accesses.get(key);
+            if (counter != null) {
+                counter[0]++;
+            } else if (accesses.size() < CAPACITY) {
+                accesses.put(key, new long[] {1L});
+            } else {
+                //the new key takes over the least counted one
+                Map.Entry<String, long[]> least = null;
+                for (Map.Entry<String, long[]> entry : accesses.entrySet()) {
+                    if (least == null || entry.getValue()[0] < least.getValue()[0]) {
+                        least = entry;
+                    }
+                }
+                long count = least.getValue()[0];
+                accesses.remove(least.getKey());
+                accesses.put(key, new long[] {count + 1L});
+            }
+            if (size < 0L || sizes.getOrDefault(key, -1L) >= size) {
+                return;
+            }
+            if (sizes.size() >= CAPACITY && !sizes.containsKey(key)) {
+                Map.Entry<String, Long> smallest = null;
+                for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                    if (smallest == null || entry.getValue() < smallest.getValue()) {
+                        smallest = entry;
+                    }
+                }
+                if (smallest.getValue() >= size) {
+                    return;
+                }
+                sizes.remove(smallest.getKey());
+            }
+            sizes.put(key, size);
+        }
+    }
+
+    /**
+     * Returns the estimated numbers of accesses to the most accessed keys, in descending order.
+     */
+    synchronized Map<String, Long> hotFields(int limit) {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(accesses.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            result.put(entry.getKey(), entry.getValue()[0] * rate);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sizes of the biggest values seen, in descending order.
+     */
+    synchronized Map<String, Long> bigFields(int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(sizes.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    HistogramStats valueSizes() {
+        return valueSizes.snapshot(1.0);
+    }
+
+    synchronized void reset() {
+        accesses.clear();
+        sizes.clear();
+        valueSizes.reset();
+    }
+}
@@ -0,0 +1,104 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A possibly conditional update of a hash field executed by {@link HashOperations#hbatch}.
+ * The condition compares the current value of the field, which is {@code null} if there is
+ * no such field, with a list of values.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class FieldUpdate {
+    private final String key;
+    private final String field;
+    private final List<String> expected;
+    private final boolean negated;
+    private final String value;
+
+    private FieldUpdate(String key, String field, List<String> expected, boolean negated, String value) {
+        this.key = key;
+        this.field = field;
+        this.expected = expected;
+        this.negated = negated;
+        this.value = value;
+    }
+
+    /**
+     * Returns an unconditional update.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param value the new value, or {@code null} to remove the field
+     * @return the update
+     */
+    public static FieldUpdate set(String key, String field, String value) {
+        return new FieldUpdate(key, field, null, false, value);
+    }
+
+    /**
+     * Returns an update applied if the current value of the field is one of the expected values.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param value the new value, or {@code null} to remove the field
+     * @param expected the expected values, {@code null} standing for a missing field
+     * @return the update
+     */
+    public static FieldUpdate setIf(String key, String field, String value, String... expected) {
+        return new FieldUpdate(key, field, Arrays.asList(expected), false, value);
+    }
+
+    /**
+     * Returns an update applied if the current value of the field is none of the specified values.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param value the new value, or {@code null} to remove the field
+     * @param unexpected the values that prevent the update, {@code null} standing for a missing field
+     * @return the update
+     */
+    public static FieldUpdate setUnless(String key, String field, String value, String... unexpected) {
+        return new FieldUpdate(key, field, Arrays.asList(unexpected), true, value);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Returns the values the current value is compared with, or {@code null} if the update is unconditional.
+     */
+    public List<String> getExpected() {
+        return expected;
+    }
+
+    /**
+     * Returns {@code true} if the update is applied when the current value is none of the expected values.
+     */
+    public boolean isNegated() {
+        return negated;
+    }
+
+    /**
+     * Returns the new value, or {@code null} if the field is to be removed.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns {@code true} if the update is applied to a field with the specified current value.
+     *
+     * @param current the current value, or {@code null} if there is no such field
+     * @return {@code true} if the condition holds
+     */
+    public boolean matches(String current) {
+        return expected == null || expected.contains(current) != negated;
+    }
+}
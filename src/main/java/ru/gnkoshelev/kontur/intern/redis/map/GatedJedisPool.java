@@ -0,0 +1,84 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisExhaustedPoolException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of Jedis connections whose borrowers wait for a permit of a semaphore
+ * rather than inside the pool. There are as many permits as connections,
+ * so the pool itself never makes a borrower wait.
+ *
+ * <p>The pool waits on monitors while it creates connections, which pins a virtual thread
+ * to its carrier thread; the semaphore parks the thread instead, so any number of
+ * virtual threads may wait for a connection.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class GatedJedisPool extends JedisPool {
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+
+    GatedJedisPool(JedisPoolConfig config) {
+        super(config);
+        this.permits = new Semaphore(config.getMaxTotal(), true);
+        this.maxWaitMillis = config.getMaxWaitMillis();
+    }
+
+    GatedJedisPool(JedisPoolConfig config, String host, int port) {
+        super(config, host, port);
+        this.permits = new Semaphore(config.getMaxTotal(), true);
+        this.maxWaitMillis = config.getMaxWaitMillis();
+    }
+
+    @Override
+    public Jedis getResource() {
+        return getResource(maxWaitMillis);
+    }
+
+    /**
+     * Borrows a connection waiting for it no longer than the specified time
+     * or the maximum wait time of the pool, whichever is shorter.
+     *
+     * @param maxWaitMillis the maximum time (in milliseconds) to wait
+     * @throws JedisExhaustedPoolException if no connection becomes available in time
+     */
+    Jedis getResource(long maxWaitMillis) {
+        try {
+            if (!permits.tryAcquire(Math.min(maxWaitMillis, this.maxWaitMillis), TimeUnit.MILLISECONDS)) {
+                throw new JedisExhaustedPoolException("Could not get a resource since the pool is exhausted");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisExhaustedPoolException(e);
+        }
+        try {
+            return super.getResource();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void returnResource(Jedis resource) {
+        try {
+            super.returnResource(resource);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    protected void returnBrokenResource(Jedis resource) {
+        try {
+            super.returnBrokenResource(resource);
+        } finally {
+            permits.release();
+        }
+    }
+}
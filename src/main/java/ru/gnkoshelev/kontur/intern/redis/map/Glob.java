@@ -0,0 +1,184 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Glob-style patterns with the syntax of the {@code MATCH} option of the Redis {@code SCAN} commands:
+ * {@code *} matches any sequence of characters, {@code ?} matches any character,
+ * {@code [abc]}, {@code [a-z]} and {@code [^a]} match a character of a class,
+ * and {@code \} escapes the character following it.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class Glob {
+    private Glob() {
+    }
+
+    /**
+     * Returns {@code true} if the value matches the pattern.
+     */
+    static boolean matches(String pattern, String value) {
+        int p = 0;
+        int v = 0;
+        int star = -1;
+        int starValue = 0;
+        while (v < value.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = ++p;
+                starValue = v;
+                continue;
+            }
+            int next = p < pattern.length() ? matchChar(pattern, p, value.charAt(v)) : -1;
+            if (next >= 0) {
+                p = next;
+                v++;
+            } else if (star >= 0) {
+                //let the last star take one more character
+                p = star;
+                v = ++starValue;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Matches the character against the element of the pattern starting at {@code p}, which is not a star.
+     *
+     * @return the index of the next element, or -1 if the character does not match
+     */
+    private static int matchChar(String pattern, int p, char c) {
+        int length = pattern.length();
+        char element = pattern.charAt(p);
+        if (element == '?') {
+            return p + 1;
+        }
+        if (element == '\\' && p + 1 < length) {
+            return pattern.charAt(p + 1) == c ? p + 2 : -1;
+        }
+        if (element != '[') {
+            return element == c ? p + 1 : -1;
+        }
+        int i = p + 1;
+        boolean negated = i < length && pattern.charAt(i) == '^';
+        if (negated) {
+            i++;
+        }
+        boolean matched = false;
+        while (i < length && pattern.charAt(i) != ']') {
+            char from = pattern.charAt(i);
+            if (from == '\\' && i + 1 < length) {
+                matched |= pattern.charAt(i + 1) == c;
+                i += 2;
+            } else if (i + 2 < length && pattern.charAt(i + 1) == '-') {
+                char to = pattern.charAt(i + 2);
+                matched |= Math.min(from, to) <= c && c <= Math.max(from, to);
+                i += 3;
+            } else {
+                matched |= from == c;
+                i++;
+            }
+        }
+        return matched != negated ? Math.min(i + 1, length) : -1;
+    }
+
+    /**
+     * Returns the pattern with every {@code ?} and character class replaced by a star.
+     * Redis matches them against single bytes of the UTF-8 form of a value rather than
+     * against characters, so it may reject a value with non-ASCII characters that the pattern
+     * matches; the widened pattern lets Redis only filter out values that cannot match,
+     * leaving the exact match to {@link #matches}.
+     */
+    static String widen(String pattern) {
+        int length = pattern.length();
+        StringBuilder widened = new StringBuilder(length);
+        for (int p = 0; p < length; p++) {
+            char c = pattern.charAt(p);
+            if (c == '\\' && p + 1 < length) {
+                widened.append(c).append(pattern.charAt(++p));
+            } else if (c == '?') {
+                widened.append('*');
+            } else if (c == '[') {
+                //the class ends where matchChar stops parsing it
+                int i = p + 1;
+                if (i < length && pattern.charAt(i) == '^') {
+                    i++;
+                }
+                while (i < length && pattern.charAt(i) != ']') {
+                    if (pattern.charAt(i) == '\\' && i + 1 < length) {
+                        i += 2;
+                    } else if (i + 2 < length && pattern.charAt(i + 1) == '-') {
+                        i += 3;
+                    } else {
+                        i++;
+                    }
+                }
+                p = Math.min(i, length - 1);
+                widened.append('*');
+            } else {
+                widened.append(c);
+            }
+        }
+        return widened.toString();
+    }
+
+    /**
+     * Returns the characters every value matching the pattern starts with.
+     */
+    static String literalPrefix(String pattern) {
+        StringBuilder prefix = new StringBuilder();
+        for (int p = 0; p < pattern.length(); p++) {
+            char c = pattern.charAt(p);
+            if (c == '*' || c == '?' || c == '[') {
+                break;
+            }
+            if (c == '\\' && p + 1 < pattern.length()) {
+                c = pattern.charAt(++p);
+            }
+            prefix.append(c);
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Returns the rest of the pattern after the literal characters that spell the prefix,
+     * or {@code null} if the pattern does not start with the prefix spelled literally.
+     */
+    static String stripLiteralPrefix(String pattern, String prefix) {
+        int p = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (p >= pattern.length()) {
+                return null;
+            }
+            char c = pattern.charAt(p);
+            if (c == '*' || c == '?' || c == '[') {
+                return null;
+            }
+            if (c == '\\' && p + 1 < pattern.length()) {
+                c = pattern.charAt(++p);
+            }
+            if (c != prefix.charAt(i)) {
+                return null;
+            }
+            p++;
+        }
+        return pattern.substring(p);
+    }
+
+    /**
+     * Returns the pattern that matches the literal value alone.
+     */
+    static String escape(String literal) {
+        StringBuilder pattern = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        return pattern.toString();
+    }
+}
@@ -0,0 +1,291 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commands a {@link RedisMap} issues to its {@link RedisMapBackend}.
+ * The commands follow the semantics of the Redis commands of the same names:
+ * a hash that loses its last field ceases to exist, a key whose time to live
+ * has elapsed does not exist, and a missing key behaves as an empty hash.
+ *
+ * <p>Methods taking a map of keys to fields may touch several hashes;
+ * whether they do it atomically is specified by each method.
+ *
+ *  @author  Veronica Kazarina
+ */
+public interface HashOperations {
+    /**
+     * Returns the value of the field, or {@code null} if there is no such field.
+     */
+    String hget(String key, String field);
+
+    /**
+     * Returns {@code true} if the hash contains the field.
+     */
+    boolean hexists(String key, String field);
+
+    /**
+     * Returns the values of the fields in the order of the fields,
+     * {@code null} standing for a missing field.
+     */
+    List<String> hmget(String key, List<String> fields);
+
+    /**
+     * Returns the number of fields in the hash.
+     */
+    long hlen(String key);
+
+    /**
+     * Returns the numbers of fields in the hashes in the order of the specified keys.
+     */
+    long[] hlenAll(String[] keys);
+
+    /**
+     * Sets the values of the fields of the hashes.
+     * The fields of all hashes are set atomically.
+     *
+     * @param fields the values of the fields by key of the hash and field
+     */
+    void hset(Map<String, Map<String, String>> fields);
+
+    /**
+     * Sets the values of the fields that do not exist yet.
+     * Every field is set atomically, but not all the fields together.
+     *
+     * @param fields the values of the fields by key of the hash and field
+     */
+    void hsetnx(Map<String, Map<String, String>> fields);
+
+    /**
+     * Removes the fields of the hashes.
+     * Every field is removed atomically, but not all the fields together.
+     *
+     * @param fields the fields to be removed by key of the hash
+     * @return the number of removed fields
+     */
+    long hdel(Map<String, ? extends Collection<String>> fields);
+
+    /**
+     * Atomically sets the value of the field and returns its previous value.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param value the new value, or {@code null} to remove the field
+     * @return the previous value, or {@code null} if there was no such field
+     */
+    String getAndSet(String key, String field, String value);
+
+    /**
+     * Returns the value of the field as the bytes it is stored as,
+     * or {@code null} if there is no such field.
+     *
+     * <p>The default implementation encodes the value returned by {@link #hget} in UTF-8;
+     * implementations that talk to Redis read the bytes without decoding them.
+     */
+    default byte[] hgetBinary(String key, String field) {
+        String value = hget(key, field);
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Atomically sets the value of the field to the bytes and returns its previous value as bytes.
+     *
+     * <p>The default implementation decodes the bytes as UTF-8 and calls {@link #getAndSet},
+     * so values that are not valid UTF-8 are only kept by implementations that override it.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param value the new value, or {@code null} to remove the field
+     * @return the previous value, or {@code null} if there was no such field
+     */
+    default byte[] getAndSetBinary(String key, String field, byte[] value) {
+        String previous = getAndSet(key, field, value == null ? null : new String(value, StandardCharsets.UTF_8));
+        return previous == null ? null : previous.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Atomically sets the value of the field if its current value is equal to the expected one.
+     *
+     * @param key the key of the hash
+     * @param field the field
+     * @param expected the expected value, or {@code null} if the field is expected to be absent
+     * @param value the new value, or {@code null} to remove the field
+     * @return {@code true} if the value has been set
+     */
+    boolean compareAndSet(String key, String field, String expected, String value);
+
+    /**
+     * Atomically applies the updates in the order they are listed, every update observing
+     * the ones before it. Conditions are evaluated where the data is stored,
+     * so the batch takes a single round trip.
+     *
+     * @param updates the updates
+     * @return the values of the fields before every update, {@code null} standing for a missing field
+     * @throws UnsupportedOperationException if the operations are a bounded view
+     */
+    List<String> hbatch(List<FieldUpdate> updates);
+
+    /**
+     * Atomically adds the delta to the integer value of the field.
+     * A missing field is treated as zero.
+     *
+     * @return the value after the increment
+     * @throws NumberFormatException if the value is not a 64-bit integer or the result overflows
+     */
+    long hincrBy(String key, String field, long delta);
+
+    /**
+     * Atomically adds the delta to the numeric value of the field.
+     * A missing field is treated as zero.
+     *
+     * @return the value after the increment
+     * @throws NumberFormatException if the value is not a number or the result is not finite
+     */
+    double hincrByFloat(String key, String field, double delta);
+
+    /**
+     * Adds the deltas to the integer values of the fields of the hashes in a single transaction.
+     * As with Redis transactions, a failed increment does not roll back the others.
+     *
+     * @param deltas the deltas by key of the hash and field
+     * @return the values after the increment by key of the hash and field
+     * @throws NumberFormatException if any of the values is not a 64-bit integer
+     *      or the result overflows
+     */
+    Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas);
+
+    /**
+     * Atomically replaces the whole contents of the hashes and sets their time to live.
+     *
+     * @param contents the fields of the hashes by key of the hash
+     * @param seconds the time to live
+     */
+    void replace(Map<String, Map<String, String>> contents, int seconds);
+
+    /**
+     * Sets the time to live of the existing keys.
+     */
+    void expire(int seconds, String... keys);
+
+    /**
+     * Atomically renews the lease of the holder in the registry, drops the leases
+     * that have lapsed, and makes the registry and the keys expire
+     * when the latest of the remaining leases lapses.
+     *
+     * @param registry the key of the registry of holders
+     * @param holder the id of the holder
+     * @param millis the duration of the lease
+     * @param keys the keys held
+     * @return the number of holders
+     */
+    long lease(String registry, String holder, long millis, String... keys);
+
+    /**
+     * Atomically releases the lease of the holder in the registry and drops the leases
+     * that have lapsed. If no leases remain, removes the registry and the keys at once;
+     * otherwise makes them expire when the latest of the remaining leases lapses.
+     *
+     * @param registry the key of the registry of holders
+     * @param holder the id of the holder
+     * @param keys the keys held
+     * @return the number of remaining holders
+     */
+    long release(String registry, String holder, String... keys);
+
+    /**
+     * Atomically appends an entry to the stream at the key and trims the stream
+     * to about the specified number of latest entries. Entries are numbered
+     * consecutively starting from 1; the numbering starts over if the stream is removed.
+     *
+     * @param key the key of the stream
+     * @param fields the fields of the entry
+     * @param maxLength the number of entries to keep
+     * @return the number of the entry
+     */
+    long xadd(String key, Map<String, String> fields, long maxLength);
+
+    /**
+     * Atomically reads the entries of the stream at the key that follow the specified one,
+     * together with the bounds of the stream.
+     *
+     * @param key the key of the stream
+     * @param after the number of the entry preceding the returned ones
+     * @param count the maximum number of entries to return, or zero to return the bounds alone
+     * @return the page of entries
+     */
+    StreamPage xrange(String key, long after, int count);
+
+    /**
+     * Scans a chunk of the hash as HSCAN does and aggregates the values of the fields
+     * that pass the filter. The chunk is evaluated where the data is stored, so only
+     * the results are returned, and other commands are served between chunks.
+     * As with HSCAN, a field may be visited more than once.
+     *
+     * @param key the key of the hash
+     * @param cursor the cursor returned for the previous chunk, or {@code "0"}
+     * @param count the hint of the number of fields in the chunk
+     * @param skipped the field that is not visited
+     * @param filter the filter of the values
+     * @param collect {@code true} to return the fields and values that pass the filter
+     * @return the chunk
+     */
+    ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter, boolean collect);
+
+    /**
+     * Returns {@code true} if the key exists.
+     */
+    boolean exists(String key);
+
+    /**
+     * Returns the type of the value stored at the key:
+     * {@code "hash"}, {@code "string"}, {@code "none"} if the key does not exist, etc.
+     */
+    String type(String key);
+
+    /**
+     * Increments the integer stored at the key, treating a missing key as zero.
+     *
+     * @return the value after the increment
+     */
+    long incr(String key);
+
+    /**
+     * Removes the key.
+     */
+    void del(String key);
+
+    /**
+     * Returns a view of these operations that keeps every hash it writes to within the bound.
+     * The view records accesses made by {@code hget} and by the commands that set fields,
+     * and after every write evicts the coldest fields of the hash, other than the written ones,
+     * while the bound is exceeded. The eviction is atomic with the write.
+     * {@code replace} and {@code expire} of the view also apply to the records of the hashes;
+     * {@code hsetnx}, {@code hexists} and the commands that do not modify fields are not tracked.
+     *
+     * <p>Records are only kept consistent if every write to the hash goes through such a view.
+     *
+     * @param eviction the bound of every hash
+     * @return the view
+     */
+    HashOperations bounded(Eviction eviction);
+
+    /**
+     * Returns a view of these operations that appends the fields modified by every command
+     * to the change stream at the key, in entries described by {@link ChangePublisher}.
+     * Implementations that talk to Redis append the entry in the same transaction as the command,
+     * so an executed command is never left without an entry.
+     *
+     * <p>The default implementation appends the entry after the command, which only suffices
+     * for implementations that keep the stream in the memory of the application along with the hashes.
+     *
+     * @param stream the key of the stream
+     * @param maxLength the number of entries to keep
+     * @return the view
+     */
+    default HashOperations publishing(String stream, long maxLength) {
+        return new ChangePublisher(this, stream, maxLength);
+    }
+}
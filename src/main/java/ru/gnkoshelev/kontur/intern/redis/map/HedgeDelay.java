@@ -0,0 +1,62 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time after which a read is hedged by a second request:
+ * the configured quantile of the latencies of recent reads.
+ * The latencies are collected for a period and then replaced by new ones,
+ * so the delay follows the latency of the server.
+ * Until enough reads have been seen, no read is hedged.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class HedgeDelay {
+    /**
+     * The period (in nanoseconds) the delay is computed for.
+     */
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The minimum number of reads the delay is computed from.
+     */
+    private static final long MIN_READS = 100L;
+
+    /**
+     * The minimum delay (in nanoseconds), which keeps reads of an idle server from being hedged.
+     */
+    private static final long MIN_DELAY = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final double quantile;
+    private final Histogram latencies = new Histogram();
+    private final AtomicLong periodStart = new AtomicLong(System.nanoTime());
+    private volatile long delay = Long.MAX_VALUE;
+
+    HedgeDelay(double quantile) {
+        this.quantile = quantile;
+    }
+
+    /**
+     * Returns the delay (in nanoseconds), or {@code Long.MAX_VALUE} if reads are not to be hedged.
+     */
+    long get() {
+        return delay;
+    }
+
+    /**
+     * Records the latency (in nanoseconds) of a read.
+     */
+    void record(long latency) {
+        latencies.record(latency);
+        long start = periodStart.get();
+        long now = System.nanoTime();
+        if (now - start < PERIOD || !periodStart.compareAndSet(start, now)) {
+            return;
+        }
+        if (latencies.snapshot(1.0).getCount() >= MIN_READS) {
+            delay = Math.max(latencies.valueAt(quantile), MIN_DELAY);
+            latencies.reset();
+        }
+    }
+}
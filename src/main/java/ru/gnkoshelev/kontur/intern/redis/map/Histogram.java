@@ -0,0 +1,104 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values.
+ * Every power-of-two range is split into four buckets,
+ * so percentiles are estimated with a relative error below 25%.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class Histogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = (Long.SIZE - 2) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        value = Math.max(value, 0L);
+        buckets[index(value)].increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //retries until the maximum is not less than the value
+        }
+    }
+
+    /**
+     * Returns the statistics of the recorded values divided by the specified scale.
+     */
+    HistogramStats snapshot(double scale) {
+        long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts[i] = buckets[i].sum();
+        }
+        return new HistogramStats(total,
+                total == 0L ? 0.0 : sum.sum() / scale / total,
+                percentile(counts, total, 0.5) / scale,
+                percentile(counts, total, 0.99) / scale,
+                percentile(counts, total, 0.999) / scale,
+                max.get() / scale);
+    }
+
+    /**
+     * Returns the estimated value below which the specified fraction of the recorded values lies,
+     * or zero if no values have been recorded.
+     */
+    long valueAt(double rank) {
+        long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts[i] = buckets[i].sum();
+        }
+        return percentile(counts, total, rank);
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+        max.set(0L);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        return (msb - 1) * SUB_BUCKETS + (int) ((value >>> (msb - 2)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the upper bound of the bucket with the specified index.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int msb = index / SUB_BUCKETS + 1;
+        return ((long) (SUB_BUCKETS + 1 + index % SUB_BUCKETS) << (msb - 2)) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double rank) {
+        long threshold = (long) Math.ceil(total * rank);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            if ((seen += counts[i]) >= threshold && seen > 0L) {
+                return upperBound(i);
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Immutable statistics of a distribution of values, for example operation latencies.
+ * Percentiles are estimates.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class HistogramStats {
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    HistogramStats(long count, double mean, double p50, double p99, double p999, double max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1f, p50=%.1f, p99=%.1f, p999=%.1f, max=%.1f",
+                count, mean, p50, p99, p999, max);
+    }
+}
@@ -0,0 +1,1066 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * {@link RedisMapBackend} that keeps data in the memory of the application.
+ * Maps sharing a backend instance share their data as if they were linked
+ * to the same Redis server, so the backend can stand in for Redis
+ * in tests, benchmarks of the client, and applications running on a single host.
+ *
+ * <p>Commands touching a single key are executed concurrently, commands that are
+ * atomic across several keys exclusively. Expired keys are removed when they are accessed.
+ * The eviction records of a bounded hash are kept with the hash itself rather than
+ * at separate keys, and recency is measured by a logical clock.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class InMemoryBackend implements RedisMapBackend, HashOperations {
+    private final ConcurrentHashMap<String, Node> store = new ConcurrentHashMap<>();
+
+    /**
+     * Is held in the read mode by single-key commands and in the write mode by multi-key ones,
+     * so that no command observes a multi-key command half-done.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * The logical clock recency of accesses to bounded hashes is measured with.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The deadlines (in nanoseconds) of the leases of holders by key of the registry.
+     * Is only accessed in the write mode of the lock.
+     */
+    private final Map<String, Map<String, Long>> registries = new HashMap<>();
+
+    @Override
+    public <T> T read(Function<HashOperations, T> function) {
+        return function.apply(this);
+    }
+
+    @Override
+    public <T> T write(Function<HashOperations, T> function) {
+        return function.apply(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Fields are scanned in their natural order, the cursor being the last returned field,
+     * so no field is returned twice.
+     */
+    @Override
+    public ScanPage scan(String key, String cursor, int count) {
+        return scan(key, cursor, count, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Fields are scanned in their natural order, the cursor being the last visited field,
+     * so no field is returned twice.
+     */
+    @Override
+    public ScanPage scan(String key, String cursor, int count, String match) {
+        long stamp = lock.readLock();
+        try {
+            Node node = live(key);
+            if (node == null || node.fields == null) {
+                return new ScanPage("0", List.of());
+            }
+            NavigableMap<String, String> tail = "0".equals(cursor) ? node.fields :
+                    node.fields.tailMap(cursor.substring(1), false);
+            List<Entry<String, String>> entries = new ArrayList<>(Math.min(count, node.size));
+            Iterator<Entry<String, String>> iterator = tail.entrySet().iterator();
+            String last = null;
+            for (int visited = 0; visited < count && iterator.hasNext(); visited++) {
+                Entry<String, String> entry = iterator.next();
+                last = entry.getKey();
+                if (match == null || Glob.matches(match, last)) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(last, entry.getValue()));
+                }
+            }
+            return new ScanPage(iterator.hasNext() ? "f" + last : "0", entries);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String hget(String key, String field) {
+        long stamp = lock.readLock();
+        try {
+            Node node = hash(key);
+            return node == null ? null : node.fields.get(field);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean hexists(String key, String field) {
+        return hget(key, field) != null;
+    }
+
+    @Override
+    public List<String> hmget(String key, List<String> fields) {
+        long stamp = lock.readLock();
+        try {
+            Node node = hash(key);
+            List<String> values = new ArrayList<>(fields.size());
+            for (String field : fields) {
+                values.add(node == null ? null : node.fields.get(field));
+            }
+            return values;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long hlen(String key) {
+        long stamp = lock.readLock();
+        try {
+            Node node = hash(key);
+            return node == null ? 0L : node.size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long[] hlenAll(String[] keys) {
+        long stamp = lock.readLock();
+        try {
+            long[] lengths = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Node node = hash(keys[i]);
+                lengths[i] = node == null ? 0L : node.size;
+            }
+            return lengths;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void hset(Map<String, Map<String, String>> fields) {
+        long stamp = lock.writeLock();
+        try {
+            fields.forEach((key, values) -> update(key, node -> {
+                values.forEach(node::put);
+                return null;
+            }));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void hsetnx(Map<String, Map<String, String>> fields) {
+        long stamp = lock.readLock();
+        try {
+            fields.forEach((key, values) -> update(key, node -> {
+                values.forEach((field, value) -> {
+                    if (!node.fields.containsKey(field)) {
+                        node.put(field, value);
+                    }
+                });
+                return null;
+            }));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long hdel(Map<String, ? extends Collection<String>> fields) {
+        long stamp = lock.readLock();
+        try {
+            long removed = 0L;
+            for (Entry<String, ? extends Collection<String>> entry : fields.entrySet()) {
+                removed += update(entry.getKey(), node -> {
+                    long count = 0L;
+                    for (String field : entry.getValue()) {
+                        count += node.remove(field) == null ? 0L : 1L;
+                    }
+                    return count;
+                });
+            }
+            return removed;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String getAndSet(String key, String field, String value) {
+        long stamp = lock.readLock();
+        try {
+            return update(key, node -> value == null ? node.remove(field) : node.put(field, value));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String field, String expected, String value) {
+        long stamp = lock.readLock();
+        try {
+            return update(key, node -> {
+                String current = node.fields.get(field);
+                if (expected == null ? current != null : !expected.equals(current)) {
+                    return false;
+                }
+                if (value == null) {
+                    node.remove(field);
+                } else {
+                    node.put(field, value);
+                }
+                return true;
+            });
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<String> hbatch(List<FieldUpdate> updates) {
+        long stamp = lock.writeLock();
+        try {
+            List<String> results = new ArrayList<>(updates.size());
+            for (FieldUpdate update : updates) {
+                results.add(update(update.getKey(), node -> {
+                    String current = node.fields.get(update.getField());
+                    if (update.matches(current)) {
+                        if (update.getValue() == null) {
+                            node.remove(update.getField());
+                        } else {
+                            node.put(update.getField(), update.getValue());
+                        }
+                    }
+                    return current;
+                }));
+            }
+            return results;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long hincrBy(String key, String field, long delta) {
+        long stamp = lock.readLock();
+        try {
+            return update(key, node -> increment(node, field, delta));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public double hincrByFloat(String key, String field, double delta) {
+        long stamp = lock.readLock();
+        try {
+            return update(key, node -> incrementByFloat(node, field, delta));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+        long stamp = lock.writeLock();
+        try {
+            Map<String, Map<String, Long>> output = new HashMap<>(deltas.size() * 2);
+            NumberFormatException[] failure = new NumberFormatException[1];
+            deltas.forEach((key, values) -> output.put(key, update(key, node -> {
+                Map<String, Long> results = new HashMap<>(values.size() * 2);
+                values.forEach((field, delta) -> {
+                    try {
+                        results.put(field, increment(node, field, delta));
+                    } catch (NumberFormatException e) {
+                        failure[0] = e;
+                    }
+                });
+                return results;
+            })));
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            return output;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void replace(Map<String, Map<String, String>> contents, int seconds) {
+        long stamp = lock.writeLock();
+        try {
+            contents.forEach((key, fields) -> {
+                Node node = new Node(new ConcurrentSkipListMap<>(fields), null);
+                node.expire(seconds);
+                store.put(key, node);
+            });
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void expire(int seconds, String... keys) {
+        long stamp = lock.readLock();
+        try {
+            for (String key : keys) {
+                store.computeIfPresent(key, (k, node) -> {
+                    if (node.isExpired()) {
+                        return null;
+                    }
+                    node.expire(seconds);
+                    return node;
+                });
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long lease(String registry, String holder, long millis, String... keys) {
+        long stamp = lock.writeLock();
+        try {
+            long now = System.nanoTime();
+            Map<String, Long> leases = registries.computeIfAbsent(registry, k -> new HashMap<>());
+            leases.values().removeIf(deadline -> deadline - now <= 0L);
+            if (millis > 0L) {
+                leases.put(holder, now + TimeUnit.MILLISECONDS.toNanos(millis));
+            } else {
+                leases.remove(holder);
+            }
+            if (leases.isEmpty()) {
+                registries.remove(registry);
+                for (String key : keys) {
+                    store.remove(key);
+                }
+                return 0L;
+            }
+            long latest = now;
+            for (long deadline : leases.values()) {
+                latest = deadline - latest > 0L ? deadline : latest;
+            }
+            long deadline = latest == 0L ? 1L : latest;
+            for (String key : keys) {
+                store.computeIfPresent(key, (k, node) -> {
+                    if (node.isExpired()) {
+                        return null;
+                    }
+                    node.deadline = deadline;
+                    return node;
+                });
+            }
+            return leases.size();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long release(String registry, String holder, String... keys) {
+        return lease(registry, holder, 0L, keys);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The stream is trimmed to exactly the specified length.
+     */
+    @Override
+    public long xadd(String key, Map<String, String> fields, long maxLength) {
+        long stamp = lock.readLock();
+        try {
+            long[] number = new long[1];
+            store.compute(key, (k, node) -> {
+                if (node == null || node.isExpired()) {
+                    node = new Node(null, new ConcurrentSkipListMap<>());
+                } else if (node.entries == null) {
+                    throw wrongType(key);
+                }
+                number[0] = node.entries.isEmpty() ? 1L : node.entries.lastKey() + 1L;
+                node.entries.put(number[0], Map.copyOf(fields));
+                while (node.entries.size() > Math.max(maxLength, 1L)) {
+                    node.entries.pollFirstEntry();
+                }
+                return node;
+            });
+            return number[0];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public StreamPage xrange(String key, long after, int count) {
+        long stamp = lock.readLock();
+        try {
+            Node node = live(key);
+            if (node == null) {
+                return new StreamPage(0L, 0L, List.of());
+            }
+            if (node.entries == null) {
+                throw wrongType(key);
+            }
+            //a stream is never empty, since trimming keeps the latest entry
+            List<Entry<Long, Map<String, String>>> entries = new ArrayList<>();
+            Iterator<Entry<Long, Map<String, String>>> iterator =
+                    node.entries.tailMap(after, false).entrySet().iterator();
+            while (entries.size() < count && iterator.hasNext()) {
+                entries.add(iterator.next());
+            }
+            return new StreamPage(node.entries.firstKey(), node.entries.lastKey(), entries);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                            boolean collect) {
+        ScanPage page = scan(key, cursor, count);
+        ValueAggregate aggregate = ValueAggregate.EMPTY;
+        List<Entry<String, String>> entries = new ArrayList<>();
+        for (Entry<String, String> entry : page.getEntries()) {
+            if (!entry.getKey().equals(skipped) && filter.test(entry.getValue())) {
+                aggregate = aggregate.add(entry.getValue());
+                if (collect) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return new ValuePage(page.getCursor(), aggregate, entries);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return !"none".equals(type(key));
+    }
+
+    @Override
+    public String type(String key) {
+        long stamp = lock.readLock();
+        try {
+            Node node = live(key);
+            return node == null ? "none" : node.fields != null ? "hash" : node.entries != null ? "stream" : "string";
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long incr(String key) {
+        long stamp = lock.readLock();
+        try {
+            long[] value = new long[1];
+            store.compute(key, (k, node) -> {
+                if (node == null || node.isExpired()) {
+                    node = new Node(null, null);
+                } else if (node.fields != null || node.entries != null) {
+                    throw wrongType(key);
+                }
+                node.value = Long.toString(value[0] = Math.addExact(Long.parseLong(node.value), 1L));
+                return node;
+            });
+            return value[0];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void del(String key) {
+        long stamp = lock.readLock();
+        try {
+            store.remove(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public HashOperations bounded(Eviction eviction) {
+        return new BoundedView(eviction);
+    }
+
+    /**
+     * Returns the node stored at the key if it has not expired.
+     */
+    private Node live(String key) {
+        Node node = store.get(key);
+        if (node != null && node.isExpired()) {
+            store.remove(key, node);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the hash stored at the key, or {@code null} if there is none.
+     */
+    private Node hash(String key) {
+        Node node = live(key);
+        if (node != null && node.fields == null) {
+            throw wrongType(key);
+        }
+        return node;
+    }
+
+    /**
+     * Atomically applies the function to the hash stored at the key,
+     * creating the hash if it does not exist and removing it if it becomes empty.
+     */
+    private <T> T update(String key, Function<Node, T> function) {
+        List<T> result = new ArrayList<>(1);
+        store.compute(key, (k, node) -> {
+            if (node == null || node.isExpired()) {
+                node = new Node(new ConcurrentSkipListMap<>(), null);
+            } else if (node.fields == null) {
+                throw wrongType(key);
+            }
+            result.add(function.apply(node));
+            return node.size == 0 ? null : node;
+        });
+        return result.get(0);
+    }
+
+    private static long increment(Node node, String field, long delta) {
+        String current = node.fields.get(field);
+        long value;
+        try {
+            value = Math.addExact(current == null ? 0L : Long.parseLong(current), delta);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("hash value is not an integer");
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("increment or decrement would overflow");
+        }
+        node.put(field, Long.toString(value));
+        return value;
+    }
+
+    private static double incrementByFloat(Node node, String field, double delta) {
+        String current = node.fields.get(field);
+        double value = (current == null ? 0.0 : parseDouble(current)) + delta;
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new NumberFormatException("increment would produce NaN or Infinity");
+        }
+        node.put(field, BigDecimal.valueOf(value).stripTrailingZeros().toPlainString());
+        return value;
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("hash value is not a float");
+        }
+    }
+
+    private static IllegalStateException wrongType(String key) {
+        return new IllegalStateException("WRONGTYPE Operation against a key holding the wrong kind of value: " + key);
+    }
+
+    /**
+     * Records an access to the field of the bounded hash.
+     */
+    private void touch(Node node, String field, EvictionPolicy policy) {
+        Records records = node.records();
+        Double previous = records.scores.get(field);
+        double score = policy == EvictionPolicy.LFU ? (previous == null ? 0.0 : previous) + 1.0 :
+                clock.incrementAndGet();
+        if (previous != null) {
+            records.order.remove(new Record(previous, field));
+        }
+        records.scores.put(field, score);
+        records.order.add(new Record(score, field));
+    }
+
+    /**
+     * Sets or removes the field of the bounded hash updating its records.
+     */
+    private String set(Node node, String field, String value, EvictionPolicy policy) {
+        String previous = value == null ? node.remove(field) : node.put(field, value);
+        if (value == null) {
+            Double score = node.records().scores.remove(field);
+            if (score != null) {
+                node.records().order.remove(new Record(score, field));
+            }
+        } else {
+            touch(node, field, policy);
+        }
+        resize(node, field, previous, value);
+        return previous;
+    }
+
+    private static void resize(Node node, String field, String previous, String value) {
+        long delta = 0L;
+        if (previous != null) {
+            delta -= utf8Length(field) + utf8Length(previous);
+        }
+        if (value != null) {
+            delta += utf8Length(field) + utf8Length(value);
+        }
+        node.records().bytes += delta;
+    }
+
+    /**
+     * Evicts the coldest fields of the bounded hash, other than the kept ones,
+     * while the bound is exceeded, and adds them to the evicted ones.
+     */
+    private void evict(Node node, Eviction eviction, Collection<String> kept, Collection<String> evicted) {
+        Records records = node.records();
+        while ((eviction.getMaxEntries() > 0L && records.scores.size() > eviction.getMaxEntries())
+                || (eviction.getMaxBytes() > 0L && records.bytes > eviction.getMaxBytes())) {
+            String victim = null;
+            for (Record record : records.order) {
+                if (!kept.contains(record.field)) {
+                    victim = record.field;
+                    break;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            set(node, victim, null, eviction.getPolicy());
+            evicted.add(victim);
+        }
+    }
+
+    private static long utf8Length(String value) {
+        long length = 0L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Operations that keep hashes within a bound.
+     */
+    private final class BoundedView implements HashOperations {
+        private final Eviction eviction;
+        private final String stream;
+        private final long maxLength;
+
+        BoundedView(Eviction eviction) {
+            this(eviction, null, 0L);
+        }
+
+        /**
+         * @param stream the key of the change stream the evicted fields are appended to, or {@code null}
+         */
+        BoundedView(Eviction eviction, String stream, long maxLength) {
+            this.eviction = eviction;
+            this.stream = stream;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Appends the evicted fields to the change stream, once the lock is released.
+         */
+        private void publish(Collection<String> evicted) {
+            if (stream != null && !evicted.isEmpty()) {
+                Map<String, Collection<String>> fields = Map.of(stream, evicted);
+                for (Map<String, String> entry : ChangePublisher.entries(fields)) {
+                    xadd(stream, entry, maxLength);
+                }
+            }
+        }
+
+        @Override
+        public String hget(String key, String field) {
+            long stamp = lock.readLock();
+            try {
+                return update(key, node -> {
+                    String value = node.fields.get(field);
+                    if (value != null) {
+                        touch(node, field, eviction.getPolicy());
+                    }
+                    return value;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public boolean hexists(String key, String field) {
+            return InMemoryBackend.this.hexists(key, field);
+        }
+
+        @Override
+        public List<String> hmget(String key, List<String> fields) {
+            List<String> values = new ArrayList<>(fields.size());
+            for (String field : fields) {
+                values.add(hget(key, field));
+            }
+            return values;
+        }
+
+        @Override
+        public long hlen(String key) {
+            return InMemoryBackend.this.hlen(key);
+        }
+
+        @Override
+        public long[] hlenAll(String[] keys) {
+            return InMemoryBackend.this.hlenAll(keys);
+        }
+
+        @Override
+        public void hset(Map<String, Map<String, String>> fields) {
+            List<String> evicted = new ArrayList<>();
+            long stamp = lock.writeLock();
+            try {
+                fields.forEach((key, values) -> update(key, node -> {
+                    values.forEach((field, value) -> set(node, field, value, eviction.getPolicy()));
+                    evict(node, eviction, values.keySet(), evicted);
+                    return null;
+                }));
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            publish(evicted);
+        }
+
+        @Override
+        public void hsetnx(Map<String, Map<String, String>> fields) {
+            InMemoryBackend.this.hsetnx(fields);
+        }
+
+        @Override
+        public long hdel(Map<String, ? extends Collection<String>> fields) {
+            long stamp = lock.readLock();
+            try {
+                long removed = 0L;
+                for (Entry<String, ? extends Collection<String>> entry : fields.entrySet()) {
+                    removed += update(entry.getKey(), node -> {
+                        long count = 0L;
+                        for (String field : entry.getValue()) {
+                            count += set(node, field, null, eviction.getPolicy()) == null ? 0L : 1L;
+                        }
+                        return count;
+                    });
+                }
+                return removed;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public String getAndSet(String key, String field, String value) {
+            List<String> evicted = new ArrayList<>();
+            String output;
+            long stamp = lock.readLock();
+            try {
+                output = update(key, node -> {
+                    String previous = set(node, field, value, eviction.getPolicy());
+                    evict(node, eviction, Set.of(field), evicted);
+                    return previous;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            publish(evicted);
+            return output;
+        }
+
+        @Override
+        public boolean compareAndSet(String key, String field, String expected, String value) {
+            List<String> evicted = new ArrayList<>();
+            boolean output;
+            long stamp = lock.readLock();
+            try {
+                output = update(key, node -> {
+                    String current = node.fields.get(field);
+                    if (expected == null ? current != null : !expected.equals(current)) {
+                        return false;
+                    }
+                    set(node, field, value, eviction.getPolicy());
+                    evict(node, eviction, Set.of(field), evicted);
+                    return true;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            publish(evicted);
+            return output;
+        }
+
+        @Override
+        public long hincrBy(String key, String field, long delta) {
+            List<String> evicted = new ArrayList<>();
+            long output;
+            long stamp = lock.readLock();
+            try {
+                output = update(key, node -> {
+                    String previous = node.fields.get(field);
+                    long value = increment(node, field, delta);
+                    track(node, field, previous, evicted);
+                    return value;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            publish(evicted);
+            return output;
+        }
+
+        @Override
+        public double hincrByFloat(String key, String field, double delta) {
+            List<String> evicted = new ArrayList<>();
+            double output;
+            long stamp = lock.readLock();
+            try {
+                output = update(key, node -> {
+                    String previous = node.fields.get(field);
+                    double value = incrementByFloat(node, field, delta);
+                    track(node, field, previous, evicted);
+                    return value;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            publish(evicted);
+            return output;
+        }
+
+        @Override
+        public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+            List<String> evicted = new ArrayList<>();
+            long stamp = lock.writeLock();
+            try {
+                Map<String, Map<String, Long>> output = new HashMap<>(deltas.size() * 2);
+                NumberFormatException[] failure = new NumberFormatException[1];
+                deltas.forEach((key, values) -> output.put(key, update(key, node -> {
+                    Map<String, Long> results = new HashMap<>(values.size() * 2);
+                    values.forEach((field, delta) -> {
+                        String previous = node.fields.get(field);
+                        try {
+                            results.put(field, increment(node, field, delta));
+                            track(node, field, previous, evicted);
+                        } catch (NumberFormatException e) {
+                            failure[0] = e;
+                        }
+                    });
+                    return results;
+                })));
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                return output;
+            } finally {
+                lock.unlockWrite(stamp);
+                publish(evicted);
+            }
+        }
+
+        /**
+         * Updates the records after the field has been incremented in place.
+         */
+        private void track(Node node, String field, String previous, Collection<String> evicted) {
+            touch(node, field, eviction.getPolicy());
+            resize(node, field, previous, node.fields.get(field));
+            evict(node, eviction, Set.of(field), evicted);
+        }
+
+        @Override
+        public void replace(Map<String, Map<String, String>> contents, int seconds) {
+            InMemoryBackend.this.replace(contents, seconds);
+        }
+
+        @Override
+        public void expire(int seconds, String... keys) {
+            InMemoryBackend.this.expire(seconds, keys);
+        }
+
+        @Override
+        public long lease(String registry, String holder, long millis, String... keys) {
+            return InMemoryBackend.this.lease(registry, holder, millis, keys);
+        }
+
+        @Override
+        public long release(String registry, String holder, String... keys) {
+            return InMemoryBackend.this.release(registry, holder, keys);
+        }
+
+        @Override
+        public List<String> hbatch(List<FieldUpdate> updates) {
+            throw new UnsupportedOperationException("Batches of bounded hashes are not supported");
+        }
+
+        @Override
+        public long xadd(String key, Map<String, String> fields, long maxLength) {
+            return InMemoryBackend.this.xadd(key, fields, maxLength);
+        }
+
+        @Override
+        public StreamPage xrange(String key, long after, int count) {
+            return InMemoryBackend.this.xrange(key, after, count);
+        }
+
+        @Override
+        public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                                boolean collect) {
+            return InMemoryBackend.this.hquery(key, cursor, count, skipped, filter, collect);
+        }
+
+        @Override
+        public boolean exists(String key) {
+            return InMemoryBackend.this.exists(key);
+        }
+
+        @Override
+        public String type(String key) {
+            return InMemoryBackend.this.type(key);
+        }
+
+        @Override
+        public long incr(String key) {
+            return InMemoryBackend.this.incr(key);
+        }
+
+        @Override
+        public void del(String key) {
+            InMemoryBackend.this.del(key);
+        }
+
+        @Override
+        public HashOperations bounded(Eviction eviction) {
+            return new BoundedView(eviction);
+        }
+
+        @Override
+        public HashOperations publishing(String stream, long maxLength) {
+            return new ChangePublisher(new BoundedView(eviction, stream, maxLength), stream, maxLength);
+        }
+    }
+
+    /**
+     * A value stored at a key: a hash, a stream or a string.
+     * Is only modified inside {@code store.compute} of its key.
+     */
+    private static final class Node {
+        /**
+         * The fields of the hash, or {@code null} if the node is not a hash.
+         */
+        final ConcurrentSkipListMap<String, String> fields;
+
+        /**
+         * The entries of the stream by their numbers, or {@code null} if the node is not a stream.
+         */
+        final ConcurrentSkipListMap<Long, Map<String, String>> entries;
+        volatile int size;
+        volatile String value = "0";
+
+        /**
+         * The time (in nanoseconds) the node expires at, or zero if it never expires.
+         */
+        volatile long deadline;
+
+        /**
+         * The eviction records of a bounded hash; created on the first tracked access.
+         */
+        private Records records;
+
+        Node(ConcurrentSkipListMap<String, String> fields, ConcurrentSkipListMap<Long, Map<String, String>> entries) {
+            this.fields = fields;
+            this.entries = entries;
+            this.size = fields == null ? 0 : fields.size();
+        }
+
+        String put(String field, String value) {
+            String previous = fields.put(field, value);
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+
+        String remove(String field) {
+            String previous = fields.remove(field);
+            if (previous != null) {
+                size--;
+            }
+            return previous;
+        }
+
+        Records records() {
+            return records == null ? (records = new Records()) : records;
+        }
+
+        void expire(int seconds) {
+            long time = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            deadline = time == 0L ? 1L : time;
+        }
+
+        boolean isExpired() {
+            return deadline != 0L && System.nanoTime() - deadline >= 0L;
+        }
+    }
+
+    /**
+     * Accesses to the fields of a bounded hash ordered as in a Redis sorted set,
+     * and the total size of the fields.
+     */
+    private static final class Records {
+        final Map<String, Double> scores = new HashMap<>();
+        final TreeSet<Record> order = new TreeSet<>();
+        long bytes;
+    }
+
+    private static final class Record implements Comparable<Record> {
+        final double score;
+        final String field;
+
+        Record(double score, String field) {
+            this.score = score;
+            this.field = field;
+        }
+
+        @Override
+        public int compareTo(Record other) {
+            int result = Double.compare(score, other.score);
+            return result != 0 ? result : field.compareTo(other.field);
+        }
+    }
+}
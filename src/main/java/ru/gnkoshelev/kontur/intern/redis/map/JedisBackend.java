@@ -0,0 +1,1840 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * {@link RedisMapBackend} that stores data in the Redis server running on the local host
+ * at the default port, optionally reading from its replicas.
+ *
+ * <p>Conditional updates ({@code getAndSet} and {@code compareAndSet}) are executed
+ * by Lua scripts, so each of them takes a single round trip and leaves
+ * no {@code WATCH} state on the connection.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class JedisBackend implements RedisMapBackend {
+    /**
+     * Connection pool of the primary server.
+     */
+    private static final GatedJedisPool POOL;
+
+    /**
+     * Operation metrics shared by all maps.
+     */
+    private static final Metrics METRICS = Metrics.INSTANCE;
+
+    /**
+     * Sets the field and returns its previous value.
+     * ARGV: field, "1" to set or "0" to remove, value.
+     */
+    private static final Script GET_AND_SET = new Script(
+            "local v = redis.call('HGET', KEYS[1], ARGV[1]) "
+                    + "if ARGV[2] == '1' then redis.call('HSET', KEYS[1], ARGV[1], ARGV[3]) "
+                    + "else redis.call('HDEL', KEYS[1], ARGV[1]) end "
+                    + "return v");
+
+    /**
+     * Sets the field if its value is equal to the expected one.
+     * ARGV: field, "1" if the field is expected to exist or "0", expected value,
+     * "1" to set or "0" to remove, value.
+     */
+    private static final Script COMPARE_AND_SET = new Script(
+            "local v = redis.call('HGET', KEYS[1], ARGV[1]) "
+                    + "if ARGV[2] == '1' then if v ~= ARGV[3] then return 0 end "
+                    + "elseif v then return 0 end "
+                    + "if ARGV[4] == '1' then redis.call('HSET', KEYS[1], ARGV[1], ARGV[5]) "
+                    + "else redis.call('HDEL', KEYS[1], ARGV[1]) end "
+                    + "return 1");
+
+    /**
+     * Executes a command of a bounded hash, maintaining its eviction index and size
+     * and evicting the coldest fields while the bound is exceeded.
+     * KEYS: hash, index, size, optionally a set the evicted fields are added to.
+     * ARGV: policy, max entries, max bytes, command, arguments.
+     * Relies on script effects replication (the default since Redis 5) because of TIME.
+     */
+    private static final Script BOUNDED = new Script(String.join("\n",
+            "local hash, index, size = KEYS[1], KEYS[2], KEYS[3]",
+            "local policy, maxEntries, maxBytes, op = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[3]), ARGV[4]",
+            "local function touch(field)",
+            "  if policy == 'LFU' then",
+            "    redis.call('ZINCRBY', index, 1, field)",
+            "  else",
+            "    local time = redis.call('TIME')",
+            "    redis.call('ZADD', index, time[1] * 1000000 + time[2], field)",
+            "  end",
+            "end",
+            "local function resize(old, field, value)",
+            "  local delta = 0",
+            "  if old then delta = delta - #field - #old end",
+            "  if value then delta = delta + #field + #value end",
+            "  if delta ~= 0 then redis.call('INCRBY', size, delta) end",
+            "end",
+            "local function set(field, value)",
+            "  local old = redis.call('HGET', hash, field)",
+            "  if value then",
+            "    redis.call('HSET', hash, field, value)",
+            "    touch(field)",
+            "  else",
+            "    redis.call('HDEL', hash, field)",
+            "    redis.call('ZREM', index, field)",
+            "  end",
+            "  resize(old, field, value)",
+            "  return old",
+            "end",
+            "local function evict(keep, kept)",
+            "  while (maxEntries > 0 and redis.call('ZCARD', index) > maxEntries)",
+            "      or (maxBytes > 0 and tonumber(redis.call('GET', size) or '0') > maxBytes) do",
+            "    local victim",
+            "    for _, field in ipairs(redis.call('ZRANGE', index, 0, kept)) do",
+            "      if not keep[field] then victim = field break end",
+            "    end",
+            "    if not victim then return end",
+            "    set(victim, false)",
+            "    if KEYS[4] then redis.call('SADD', KEYS[4], victim) end",
+            "  end",
+            "end",
+            "if op == 'get' then",
+            "  local value = redis.call('HGET', hash, ARGV[5])",
+            "  if value then touch(ARGV[5]) end",
+            "  return value",
+            "elseif op == 'getset' then",
+            "  local old = set(ARGV[5], ARGV[6] == '1' and ARGV[7])",
+            "  evict({[ARGV[5]] = true}, 1)",
+            "  return old",
+            "elseif op == 'cas' then",
+            "  local current = redis.call('HGET', hash, ARGV[5])",
+            "  if ARGV[6] == '1' then",
+            "    if current ~= ARGV[7] then return 0 end",
+            "  elseif current then return 0 end",
+            "  set(ARGV[5], ARGV[8] == '1' and ARGV[9])",
+            "  evict({[ARGV[5]] = true}, 1)",
+            "  return 1",
+            "elseif op == 'mset' then",
+            "  local keep, kept = {}, 0",
+            "  for i = 5, #ARGV, 2 do",
+            "    set(ARGV[i], ARGV[i + 1])",
+            "    keep[ARGV[i]] = true",
+            "    kept = kept + 1",
+            "  end",
+            "  evict(keep, kept)",
+            "  return kept",
+            "elseif op == 'mdel' then",
+            "  local removed = 0",
+            "  for i = 5, #ARGV do",
+            "    if set(ARGV[i], false) then removed = removed + 1 end",
+            "  end",
+            "  return removed",
+            "elseif op == 'incr' or op == 'incrfloat' then",
+            "  local field = ARGV[5]",
+            "  local old = redis.call('HGET', hash, field)",
+            "  redis.call(op == 'incr' and 'HINCRBY' or 'HINCRBYFLOAT', hash, field, ARGV[6])",
+            "  local value = redis.call('HGET', hash, field)",
+            "  touch(field)",
+            "  resize(old, field, value)",
+            "  evict({[field] = true}, 1)",
+            "  return value",
+            "end",
+            "return redis.error_reply('Unknown command ' .. op)"));
+
+    /**
+     * Renews or releases the lease of a holder of the keys and makes the keys expire
+     * when the latest lease lapses, removing them if no leases remain.
+     * KEYS: registry, held keys. ARGV: holder, lease duration in milliseconds or 0 to release.
+     */
+    private static final Script LEASE = new Script(String.join("\n",
+            "local time = redis.call('TIME')",
+            "local now = time[1] * 1000 + math.floor(time[2] / 1000)",
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now)",
+            "if tonumber(ARGV[2]) > 0 then",
+            "  redis.call('ZADD', KEYS[1], now + tonumber(ARGV[2]), ARGV[1])",
+            "else",
+            "  redis.call('ZREM', KEYS[1], ARGV[1])",
+            "end",
+            "local latest = redis.call('ZRANGE', KEYS[1], -1, -1, 'WITHSCORES')",
+            "if #latest == 0 then",
+            "  for i = 2, #KEYS do redis.call('UNLINK', KEYS[i]) end",
+            "  return 0",
+            "end",
+            "for i = 1, #KEYS do redis.call('PEXPIREAT', KEYS[i], latest[2]) end",
+            "return redis.call('ZCARD', KEYS[1])"));
+
+    /**
+     * Applies a batch of conditional updates of fields and returns the previous values.
+     * KEYS: the hash of every update. ARGV for every update: field, mode ("a" always,
+     * "i" if the value is one of the expected ones, "n" if it is none of them),
+     * number of expected values, expected values, new value. Values are prefixed
+     * with "=", and an empty string stands for a missing field.
+     */
+    private static final Script BATCH = new Script(String.join("\n",
+            "local results, i = {}, 1",
+            "for k = 1, #KEYS do",
+            "  local field, mode, n = ARGV[i], ARGV[i + 1], tonumber(ARGV[i + 2])",
+            "  local current = redis.call('HGET', KEYS[k], field)",
+            "  local matched = false",
+            "  for j = i + 3, i + 2 + n do",
+            "    if ARGV[j] == (current and '=' .. current or '') then matched = true end",
+            "  end",
+            "  local value = ARGV[i + 3 + n]",
+            "  i = i + 4 + n",
+            "  if mode == 'a' or (mode == 'i') == matched then",
+            "    if value == '' then redis.call('HDEL', KEYS[k], field)",
+            "    else redis.call('HSET', KEYS[k], field, string.sub(value, 2)) end",
+            "  end",
+            "  results[k] = current",
+            "end",
+            "return results"));
+
+    /**
+     * Appends an entry numbered after the latest one to a stream and trims the stream,
+     * then moves the fields of the optional set of evicted fields to entries of their own.
+     * KEYS: stream, optionally the set of evicted fields. ARGV: max length, fields and values of the entry.
+     */
+    private static final Script APPEND = new Script(String.join("\n",
+            "local function append(...)",
+            "  local last = redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', 1)",
+            "  local number = 1",
+            "  if #last > 0 then number = tonumber(string.match(last[1][1], '^%d+')) + 1 end",
+            "  redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], number .. '-0', ...)",
+            "  return number",
+            "end",
+            "local number = append(unpack(ARGV, 2))",
+            "if KEYS[2] then",
+            "  local evicted = redis.call('SPOP', KEYS[2], 500)",
+            "  while #evicted > 0 do",
+            "    local fields = {}",
+            "    for _, field in ipairs(evicted) do",
+            "      fields[#fields + 1] = field",
+            "      fields[#fields + 1] = '" + ChangePublisher.CHANGED + "'",
+            "    end",
+            "    number = append(unpack(fields))",
+            "    evicted = redis.call('SPOP', KEYS[2], 500)",
+            "  end",
+            "end",
+            "return number"));
+
+    /**
+     * Returns the ids of the first and the last entries of a stream and the entries
+     * starting from the specified id. KEYS: stream. ARGV: start id, count or 0.
+     */
+    private static final Script RANGE = new Script(String.join("\n",
+            "local first = redis.call('XRANGE', KEYS[1], '-', '+', 'COUNT', 1)",
+            "local last = redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', 1)",
+            "local entries = {}",
+            "if tonumber(ARGV[2]) > 0 then",
+            "  entries = redis.call('XRANGE', KEYS[1], ARGV[1], '+', 'COUNT', ARGV[2])",
+            "end",
+            "return {#first > 0 and first[1][1] or '0-0', #last > 0 and last[1][1] or '0-0', entries}"));
+
+    /**
+     * Scans a chunk of a hash and aggregates the values that pass a filter.
+     * KEYS: hash. ARGV: cursor, count, skipped field, kind of the filter, operand, range bounds,
+     * excluded value prefixed with "=" or an empty string, "1" to return the passed fields and values.
+     * Returns the cursor, the count of passed values, the count, sum, minimum and maximum of those
+     * that are numbers (formatted as strings, since Redis truncates Lua numbers), and the fields and values.
+     */
+    private static final Script QUERY = new Script(String.join("\n",
+            "local page = redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])",
+            "local kind, operand, low, high = ARGV[4], ARGV[5], tonumber(ARGV[6]), tonumber(ARGV[7])",
+            "local count, numbers, sum, min, max, entries = 0, 0, 0, math.huge, -math.huge, {}",
+            "local fields = page[2]",
+            "for i = 1, #fields, 2 do",
+            "  local field, value = fields[i], fields[i + 1]",
+            "  if field ~= ARGV[3] and '=' .. value ~= ARGV[8] then",
+            "    local number = nil",
+            "    if not string.find(value, '[^%d%.eE+-]') then number = tonumber(value) end",
+            "    if kind == 'ANY' or (kind == 'EQUAL' and value == operand)",
+            "        or (kind == 'PREFIX' and string.sub(value, 1, #operand) == operand)",
+            "        or (kind == 'RANGE' and number ~= nil and number >= low and number <= high) then",
+            "      count = count + 1",
+            "      if number ~= nil then",
+            "        numbers, sum = numbers + 1, sum + number",
+            "        min, max = math.min(min, number), math.max(max, number)",
+            "      end",
+            "      if ARGV[9] == '1' then",
+            "        entries[#entries + 1] = field",
+            "        entries[#entries + 1] = value",
+            "      end",
+            "    end",
+            "  end",
+            "end",
+            "return {page[1], count, numbers, string.format('%.17g', sum),",
+            "  string.format('%.17g', min), string.format('%.17g', max), entries}"));
+
+    //pool configuration parameters
+
+    /**
+     * The upper bound of connections managed by the pool.
+     */
+    //the set value assumes that the number of RedisMap instances equals 10
+    private static final int MAX_TOTAL = 100;
+
+    /**
+     * The upper bound of connections that can be idle
+     * without being immediately closed.
+     */
+    private static final int MAX_IDLE = MAX_TOTAL;
+
+    /**
+     * The minimum number of idle connections to maintain in the pool.
+     */
+    //each RedisMap instance needs at least 1 connection to update its expiration time
+    private static final int MIN_IDLE = 10;
+
+    /**
+     * The parameter that determines whether connections are tested
+     * before they are borrowed from the pool.
+     */
+    private static final boolean TEST_ON_BORROW = true;
+
+    /**
+     * The parameter that determines whether connections are tested
+     * before they are returned to the pool.
+     */
+    private static final boolean TEST_ON_RETURN = true;
+
+    /**
+     * The parameter that determines whether to block threads
+     * when no connections are available.
+     */
+    private static final boolean BLOCK_WHEN_EXHAUSTED = true;
+
+    /**
+     * The maximum amount of time (in seconds) threads should be blocked
+     * before throwing an exception when the pool is exhausted.
+     * Should be strictly less than the time to live of the maps
+     * to prevent Redis hash object removal due to delayed expiration time update.
+     */
+    private static final int MAX_WAIT = 5;
+
+    /**
+     * The minimum amount of time a connection may remain idle
+     * before it is eligible for eviction if MIN_IDLE instances are available.
+     */
+    private static final int SOFT_IDLE_TIME = 30;
+
+    /**
+     * The connection of the session opened by the current thread, if any.
+     */
+    private static final ThreadLocal<SessionConnection> SESSION = new ThreadLocal<>();
+
+    /**
+     * Service used to run the requests of hedged reads.
+     */
+    private static final ExecutorService HEDGE_EXECUTOR = Threads.newTaskExecutor("redis-map-hedge");
+
+    /**
+     * The timeout that stands for no timeout.
+     */
+    private static final int NO_TIMEOUT = -1;
+
+    static {
+        POOL = new GatedJedisPool(createPoolConfig());
+    }
+
+    /**
+     * Routes read-only operations to replicas.
+     * Is {@code null} if all operations go to the primary.
+     */
+    private final ReplicaRouter replicaRouter;
+
+    /**
+     * The time (in nanoseconds) an operation may take, or zero if it is only limited
+     * by the socket timeout and the maximum pool wait.
+     */
+    private final long operationTimeout;
+
+    /**
+     * The delay after which reads are hedged.
+     * Is {@code null} if reads are not hedged.
+     */
+    private final HedgeDelay hedgeDelay;
+
+    /**
+     * Constructs a backend that routes reads and limits the time of operations
+     * as the specified configuration prescribes.
+     *
+     * @param config the configuration of the replicas, the timeout and hedging
+     * @throws NullPointerException if the specified {@code config} is null
+     */
+    public JedisBackend(RedisMapConfig config) {
+        this.replicaRouter = config.getReplicas().isEmpty() ? null : new ReplicaRouter(POOL, config);
+        this.operationTimeout = config.getOperationTimeout().toNanos();
+        this.hedgeDelay = config.getHedgeQuantile() == 0.0 ? null : new HedgeDelay(config.getHedgeQuantile());
+    }
+
+    /**
+     * Creates the configuration shared by the pools of the primary server and its replicas.
+     */
+    static JedisPoolConfig createPoolConfig() {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(MAX_TOTAL);
+        config.setMaxIdle(MAX_IDLE);
+        config.setMinIdle(MIN_IDLE);
+        config.setBlockWhenExhausted(BLOCK_WHEN_EXHAUSTED);
+        config.setMaxWaitMillis(Duration.ofSeconds(MAX_WAIT).toMillis());
+        config.setTestOnBorrow(TEST_ON_BORROW);
+        config.setTestOnReturn(TEST_ON_RETURN);
+        config.setSoftMinEvictableIdleTimeMillis(SOFT_IDLE_TIME);
+        return config;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Falls back to the primary if the replica connection fails.
+     */
+    @Override
+    public <T> T read(Function<HashOperations, T> function) {
+        return read(function, deadline(), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If reads are hedged and the read takes longer than the hedge delay,
+     * the function is executed once more on another connection, to another replica
+     * if there is one, and the result that comes first is returned: if the second request
+     * answers first, the connection of the first one is closed. The first request is executed
+     * by the calling thread. The read fails only if all of its requests fail.
+     * Reads of a thread that has opened a session are not hedged.
+     */
+    @Override
+    public <T> T hedgedRead(Function<HashOperations, T> function) {
+        long deadline = deadline();
+        if (hedgeDelay == null || SESSION.get() != null) {
+            return read(function, deadline, null);
+        }
+        long start = System.nanoTime();
+        Hedge<T> hedge = new Hedge<>();
+        long delay = hedgeDelay.get();
+        if (delay != Long.MAX_VALUE) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, HEDGE_EXECUTOR)
+                    .execute(() -> hedge(function, deadline, hedge));
+        }
+        try {
+            T value = read(function, deadline, hedge);
+            hedge.finish();
+            return value;
+        } catch (RuntimeException e) {
+            if (!hedge.finish()) {
+                throw e;
+            }
+            return awaitHedge(hedge, deadline, e);
+        } finally {
+            hedgeDelay.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends the second request of a hedged read unless the first one has completed.
+     */
+    private <T> void hedge(Function<HashOperations, T> function, long deadline, Hedge<T> hedge) {
+        if (!hedge.send()) {
+            return;
+        }
+        METRICS.recordHedge();
+        try {
+            hedge.answer(read(function, deadline, null));
+        } catch (RuntimeException | Error e) {
+            hedge.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Returns the result of the second request of a hedged read whose first request has failed.
+     *
+     * @param failure the failure of the first request, which is thrown if the second request fails too
+     */
+    private <T> T awaitHedge(Hedge<T> hedge, long deadline, RuntimeException failure) {
+        try {
+            if (operationTimeout == 0L) {
+                return hedge.result.get();
+            }
+            return hedge.result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw failure;
+        } catch (TimeoutException e) {
+            throw timeout();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    /**
+     * Executes the function on a connection to a replica, or to the primary if the replica connection fails.
+     *
+     * @param hedge the hedged read the function is the first request of, or {@code null}
+     */
+    private <T> T read(Function<HashOperations, T> function, long deadline, Hedge<T> hedge) {
+        GatedJedisPool pool = readPool();
+        try (Borrowed borrowed = connect(pool, deadline)) {
+            return apply(function, borrowed.jedis, hedge);
+        } catch (JedisConnectionException e) {
+            //a connection closed because the hedge has answered is not a failure of the replica
+            if (pool == POOL || hedge != null && hedge.isAnswered()) {
+                throw e;
+            }
+            replicaRouter.failed(pool);
+        }
+        try (Borrowed borrowed = connect(POOL, deadline)) {
+            return apply(function, borrowed.jedis, hedge);
+        }
+    }
+
+    private static <T> T apply(Function<HashOperations, T> function, Jedis jedis, Hedge<T> hedge) {
+        if (hedge == null) {
+            return function.apply(new JedisOperations(jedis));
+        }
+        if (!hedge.attach(jedis)) {
+            throw new JedisConnectionException("Read answered by its hedge");
+        }
+        try {
+            return function.apply(new JedisOperations(jedis));
+        } finally {
+            hedge.detach();
+        }
+    }
+
+    private GatedJedisPool readPool() {
+        return replicaRouter == null ? POOL : replicaRouter.select();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If reads should observe own writes, waits for the replicas to acknowledge the changes.
+     */
+    @Override
+    public <T> T write(Function<HashOperations, T> function) {
+        try (Borrowed borrowed = connect(POOL, deadline())) {
+            T result = function.apply(new JedisOperations(borrowed.jedis));
+            if (replicaRouter != null) {
+                replicaRouter.afterWrite(borrowed.jedis);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Since HSCAN cursors are only valid on the server that returned them,
+     * a scan keeps to the server it started on; the returned cursor is prefixed
+     * with the index of the replica. If the replica fails, the scan of the hash
+     * is restarted on the primary.
+     */
+    @Override
+    public ScanPage scan(String key, String cursor, int count) {
+        return scan(key, cursor, count, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The pattern is passed to HSCAN, so only the matching fields are sent by Redis.
+     */
+    @Override
+    public ScanPage scan(String key, String cursor, int count, String match) {
+        GatedJedisPool pool;
+        int separator = cursor.indexOf(':');
+        if ("0".equals(cursor)) {
+            pool = readPool();
+        } else if (separator < 0) {
+            pool = POOL;
+        } else {
+            pool = replicaRouter.pool(Integer.parseInt(cursor.substring(0, separator)));
+            cursor = cursor.substring(separator + 1);
+        }
+        ScanParams scanParams = new ScanParams().count(count);
+        if (match != null) {
+            scanParams.match(match);
+        }
+        ScanResult<Entry<String, String>> scanResult;
+        long deadline = deadline();
+        try (Borrowed borrowed = connect(pool, deadline)) {
+            scanResult = borrowed.jedis.hscan(key, cursor, scanParams);
+        } catch (JedisConnectionException e) {
+            if (pool == POOL) {
+                throw e;
+            }
+            replicaRouter.failed(pool);
+            pool = POOL;
+            try (Borrowed borrowed = connect(pool, deadline)) {
+                scanResult = borrowed.jedis.hscan(key, "0", scanParams);
+            }
+        }
+        String next = scanResult.getCursor();
+        if (pool != POOL && !"0".equals(next)) {
+            next = replicaRouter.indexOf(pool) + ":" + next;
+        }
+        return new ScanPage(next, scanResult.getResult());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Binary scans are served by the primary.
+     */
+    @Override
+    public BinaryScanPage scanBinary(String key, String cursor, int count) {
+        ScanResult<Entry<byte[], byte[]>> scanResult;
+        try (Borrowed borrowed = connect(POOL, deadline())) {
+            scanResult = borrowed.jedis.hscan(SafeEncoder.encode(key), SafeEncoder.encode(cursor),
+                    new ScanParams().count(count));
+        }
+        List<Entry<String, byte[]>> entries = new ArrayList<>(scanResult.getResult().size());
+        for (Entry<byte[], byte[]> entry : scanResult.getResult()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(SafeEncoder.encode(entry.getKey()), entry.getValue()));
+        }
+        return new BinaryScanPage(scanResult.getCursor(), entries);
+    }
+
+    /**
+     * Opens a session on the current thread.
+     *
+     * @see RedisMap#session()
+     */
+    static Session openSession() {
+        SessionConnection session = SESSION.get();
+        if (session == null) {
+            session = new SessionConnection();
+            SESSION.set(session);
+        }
+        session.depth++;
+        SessionConnection opened = session;
+        return new Session(() -> {
+            if (--opened.depth == 0) {
+                SESSION.remove();
+                if (opened.jedis != null) {
+                    opened.jedis.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the time (in nanoseconds) an operation starting now has to complete by.
+     * Is meaningless if operations have no timeout.
+     */
+    private long deadline() {
+        return System.nanoTime() + operationTimeout;
+    }
+
+    /**
+     * Returns the time (in milliseconds) left until the deadline, or {@link #NO_TIMEOUT}
+     * if operations have no timeout.
+     *
+     * @throws JedisConnectionException if the deadline has passed
+     */
+    private int remaining(long deadline) {
+        if (operationTimeout == 0L) {
+            return NO_TIMEOUT;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0L) {
+            throw timeout();
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    private JedisConnectionException timeout() {
+        return new JedisConnectionException("Operation timeout exceeded: "
+                + TimeUnit.NANOSECONDS.toMillis(operationTimeout) + " ms");
+    }
+
+    /**
+     * Returns the connection of the session of the current thread if the pool is the primary one
+     * and a session is open, or borrows a connection from the pool otherwise.
+     * Waiting for the connection and reading the replies on it are limited by the deadline.
+     */
+    private Borrowed connect(GatedJedisPool pool, long deadline) {
+        SessionConnection session = pool == POOL ? SESSION.get() : null;
+        if (session == null) {
+            Jedis jedis = borrow(pool, remaining(deadline));
+            try {
+                return new Borrowed(jedis, null, remaining(deadline));
+            } catch (RuntimeException e) {
+                jedis.close();
+                throw e;
+            }
+        }
+        if (session.jedis != null && session.jedis.getClient().isBroken()) {
+            session.jedis.close();
+            session.jedis = null;
+        }
+        if (session.jedis == null) {
+            session.jedis = borrow(POOL, remaining(deadline));
+        }
+        return new Borrowed(session.jedis, session, remaining(deadline));
+    }
+
+    /**
+     * Borrows a connection from the specified pool measuring the time spent waiting for it.
+     *
+     * @param timeout the maximum time (in milliseconds) to wait, or {@link #NO_TIMEOUT}
+     */
+    private static Jedis borrow(GatedJedisPool pool, int timeout) {
+        long start = System.nanoTime();
+        try {
+            return timeout == NO_TIMEOUT ? pool.getResource() : pool.getResource(timeout);
+        } finally {
+            METRICS.recordPoolWait(System.nanoTime() - start);
+        }
+    }
+
+    private static NumberFormatException toNumberFormatException(JedisDataException e) {
+        return new NumberFormatException(e.getMessage());
+    }
+
+    /**
+     * The connection of a session and the number of sessions sharing it.
+     */
+    private static final class SessionConnection {
+        private Jedis jedis;
+        private int depth;
+    }
+
+    /**
+     * The state of a hedged read shared by its first request, executed by the calling thread,
+     * and its second request, sent after the hedge delay.
+     */
+    private static final class Hedge<T> {
+        /**
+         * The result of the second request.
+         */
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        /**
+         * The connection the first request is executed on, or {@code null} if it is not executing.
+         */
+        private Jedis connection;
+        private boolean finished;
+        private boolean sent;
+        private boolean answered;
+
+        /**
+         * Returns {@code true} if the second request is to be sent, which it is
+         * unless the first request has completed.
+         */
+        synchronized boolean send() {
+            sent = !finished;
+            return sent;
+        }
+
+        /**
+         * Completes the read with the result of the second request
+         * and aborts the first request by closing its connection.
+         */
+        void answer(T value) {
+            result.complete(value);
+            synchronized (this) {
+                answered = true;
+                if (connection != null) {
+                    try {
+                        //fails the blocked read of the reply; the connection is returned to the pool as broken
+                        connection.getClient().getSocket().close();
+                    } catch (IOException e) {
+                        //the connection is closed anyway
+                    }
+                }
+            }
+        }
+
+        synchronized boolean isAnswered() {
+            return answered;
+        }
+
+        /**
+         * Registers the connection the first request is to be executed on.
+         *
+         * @return {@code false} if the second request has answered, so the first one is not to be executed
+         */
+        synchronized boolean attach(Jedis jedis) {
+            connection = answered ? null : jedis;
+            return !answered;
+        }
+
+        synchronized void detach() {
+            connection = null;
+        }
+
+        /**
+         * Marks the first request completed.
+         *
+         * @return {@code true} if the second request has been sent
+         */
+        synchronized boolean finish() {
+            finished = true;
+            return sent;
+        }
+    }
+
+    /**
+     * A connection used by a single call: borrowed from a pool and returned to it afterwards,
+     * or kept by a session and only reset afterwards, as the pool would reset it.
+     */
+    private static final class Borrowed implements AutoCloseable {
+        private final Jedis jedis;
+        private final SessionConnection session;
+
+        /**
+         * The socket timeout the connection had before the call, or {@link #NO_TIMEOUT} if it was not changed.
+         */
+        private final int soTimeout;
+
+        /**
+         * @param timeout the time (in milliseconds) the call may wait for replies, or {@link #NO_TIMEOUT}
+         */
+        Borrowed(Jedis jedis, SessionConnection session, int timeout) {
+            this.jedis = jedis;
+            this.session = session;
+            if (timeout == NO_TIMEOUT) {
+                this.soTimeout = NO_TIMEOUT;
+            } else {
+                this.soTimeout = jedis.getClient().getSoTimeout();
+                setSoTimeout(Math.min(timeout, soTimeout == 0 ? Integer.MAX_VALUE : soTimeout));
+            }
+        }
+
+        private void setSoTimeout(int timeout) {
+            jedis.getClient().setSoTimeout(timeout);
+            //applies the timeout to the open socket
+            jedis.getClient().rollbackTimeout();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (soTimeout != NO_TIMEOUT && !jedis.getClient().isBroken()) {
+                    //fails and marks the connection broken if its socket has been closed by a hedge
+                    setSoTimeout(soTimeout);
+                }
+            } finally {
+                if (session == null) {
+                    jedis.close();
+                } else if (!jedis.getClient().isBroken()) {
+                    jedis.resetState();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash operations executed on a single connection.
+     */
+    private static final class JedisOperations implements HashOperations {
+        private final Jedis jedis;
+
+        JedisOperations(Jedis jedis) {
+            this.jedis = jedis;
+        }
+
+        @Override
+        public String hget(String key, String field) {
+            return jedis.hget(key, field);
+        }
+
+        @Override
+        public boolean hexists(String key, String field) {
+            return jedis.hexists(key, field);
+        }
+
+        @Override
+        public List<String> hmget(String key, List<String> fields) {
+            return jedis.hmget(key, fields.toArray(new String[0]));
+        }
+
+        @Override
+        public long hlen(String key) {
+            return jedis.hlen(key);
+        }
+
+        @Override
+        public long[] hlenAll(String[] keys) {
+            if (keys.length == 1) {
+                return new long[] {jedis.hlen(keys[0])};
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> responses = new ArrayList<>(keys.length);
+            for (String key : keys) {
+                responses.add(pipeline.hlen(key));
+            }
+            pipeline.sync();
+            long[] lengths = new long[keys.length];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = responses.get(i).get();
+            }
+            return lengths;
+        }
+
+        @Override
+        public void hset(Map<String, Map<String, String>> fields) {
+            if (fields.size() == 1) {
+                fields.forEach(jedis::hset);
+                return;
+            }
+            Transaction transaction = jedis.multi();
+            fields.forEach(transaction::hset);
+            transaction.exec();
+        }
+
+        @Override
+        public void hsetnx(Map<String, Map<String, String>> fields) {
+            Pipeline pipeline = jedis.pipelined();
+            fields.forEach((key, values) -> values.forEach((field, value) -> pipeline.hsetnx(key, field, value)));
+            pipeline.sync();
+        }
+
+        @Override
+        public long hdel(Map<String, ? extends Collection<String>> fields) {
+            if (fields.size() == 1) {
+                Entry<String, ? extends Collection<String>> entry = fields.entrySet().iterator().next();
+                return jedis.hdel(entry.getKey(), entry.getValue().toArray(new String[0]));
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> responses = new ArrayList<>(fields.size());
+            fields.forEach((key, values) -> responses.add(pipeline.hdel(key, values.toArray(new String[0]))));
+            pipeline.sync();
+            long removed = 0L;
+            for (Response<Long> response : responses) {
+                removed += response.get();
+            }
+            return removed;
+        }
+
+        @Override
+        public String getAndSet(String key, String field, String value) {
+            return (String) GET_AND_SET.eval(jedis, key,
+                    field, value == null ? "0" : "1", value == null ? "" : value);
+        }
+
+        @Override
+        public byte[] hgetBinary(String key, String field) {
+            return jedis.hget(SafeEncoder.encode(key), SafeEncoder.encode(field));
+        }
+
+        @Override
+        public byte[] getAndSetBinary(String key, String field, byte[] value) {
+            return (byte[]) GET_AND_SET.evalBinary(jedis, List.of(SafeEncoder.encode(key)),
+                    List.of(SafeEncoder.encode(field), SafeEncoder.encode(value == null ? "0" : "1"),
+                            value == null ? new byte[0] : value));
+        }
+
+        @Override
+        public boolean compareAndSet(String key, String field, String expected, String value) {
+            Object result = COMPARE_AND_SET.eval(jedis, key,
+                    field, expected == null ? "0" : "1", expected == null ? "" : expected,
+                    value == null ? "0" : "1", value == null ? "" : value);
+            return Long.valueOf(1L).equals(result);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<String> hbatch(List<FieldUpdate> updates) {
+            List<String> keys = new ArrayList<>(updates.size());
+            List<String> args = new ArrayList<>(updates.size() * 5);
+            batchArgs(updates, keys, args);
+            return (List<String>) BATCH.eval(jedis, keys, args);
+        }
+
+        /**
+         * Adds the keys and the arguments of {@link #BATCH} to the lists.
+         */
+        static void batchArgs(List<FieldUpdate> updates, List<String> keys, List<String> args) {
+            for (FieldUpdate update : updates) {
+                keys.add(update.getKey());
+                args.add(update.getField());
+                List<String> expected = update.getExpected() == null ? List.of() : update.getExpected();
+                args.add(update.getExpected() == null ? "a" : update.isNegated() ? "n" : "i");
+                args.add(Integer.toString(expected.size()));
+                for (String value : expected) {
+                    args.add(value == null ? "" : "=" + value);
+                }
+                args.add(update.getValue() == null ? "" : "=" + update.getValue());
+            }
+        }
+
+        @Override
+        public long hincrBy(String key, String field, long delta) {
+            try {
+                return jedis.hincrBy(key, field, delta);
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public double hincrByFloat(String key, String field, double delta) {
+            try {
+                return jedis.hincrByFloat(key, field, delta);
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+            Map<String, Map<String, Response<Long>>> responses = new HashMap<>(deltas.size() * 2);
+            Transaction transaction = jedis.multi();
+            deltas.forEach((key, values) -> {
+                Map<String, Response<Long>> fields = new HashMap<>(values.size() * 2);
+                values.forEach((field, delta) -> fields.put(field, transaction.hincrBy(key, field, delta)));
+                responses.put(key, fields);
+            });
+            for (Object result : transaction.exec()) {
+                if (result instanceof JedisDataException) {
+                    throw toNumberFormatException((JedisDataException) result);
+                }
+            }
+            Map<String, Map<String, Long>> output = new HashMap<>(deltas.size() * 2);
+            responses.forEach((key, fields) -> {
+                Map<String, Long> values = new HashMap<>(fields.size() * 2);
+                fields.forEach((field, response) -> values.put(field, response.get()));
+                output.put(key, values);
+            });
+            return output;
+        }
+
+        @Override
+        public void replace(Map<String, Map<String, String>> contents, int seconds) {
+            replace(contents, seconds, new String[0]);
+        }
+
+        /**
+         * Replaces the contents of the hashes, removing the specified keys as well.
+         */
+        void replace(Map<String, Map<String, String>> contents, int seconds, String[] removedKeys) {
+            Transaction transaction = jedis.multi();
+            replace(transaction, contents, seconds, removedKeys);
+            transaction.exec();
+        }
+
+        /**
+         * Queues the replacement of the contents of the hashes in the transaction.
+         */
+        static void replace(Transaction transaction, Map<String, Map<String, String>> contents, int seconds,
+                            String[] removedKeys) {
+            if (removedKeys.length > 0) {
+                transaction.unlink(removedKeys);
+            }
+            transaction.unlink(contents.keySet().toArray(new String[0]));
+            contents.forEach((key, fields) -> {
+                transaction.hset(key, fields);
+                transaction.expire(key, seconds);
+            });
+        }
+
+        @Override
+        public void expire(int seconds, String... keys) {
+            if (keys.length == 1) {
+                jedis.expire(keys[0], seconds);
+                return;
+            }
+            Pipeline pipeline = jedis.pipelined();
+            for (String key : keys) {
+                pipeline.expire(key, seconds);
+            }
+            pipeline.sync();
+        }
+
+        @Override
+        public long lease(String registry, String holder, long millis, String... keys) {
+            List<String> keyList = new ArrayList<>(keys.length + 1);
+            keyList.add(registry);
+            keyList.addAll(Arrays.asList(keys));
+            return (Long) LEASE.eval(jedis, keyList, List.of(holder, Long.toString(millis)));
+        }
+
+        @Override
+        public long release(String registry, String holder, String... keys) {
+            return lease(registry, holder, 0L, keys);
+        }
+
+        @Override
+        public long xadd(String key, Map<String, String> fields, long maxLength) {
+            return (Long) APPEND.eval(jedis, List.of(key), appendArgs(fields, maxLength));
+        }
+
+        /**
+         * Returns the arguments of {@link #APPEND}.
+         */
+        static List<String> appendArgs(Map<String, String> fields, long maxLength) {
+            List<String> args = new ArrayList<>(fields.size() * 2 + 1);
+            args.add(Long.toString(maxLength));
+            fields.forEach((field, value) -> {
+                args.add(field);
+                args.add(value);
+            });
+            return args;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public StreamPage xrange(String key, long after, int count) {
+            List<Object> result = (List<Object>) RANGE.eval(jedis, key, (after + 1L) + "-0", Integer.toString(count));
+            List<Entry<Long, Map<String, String>>> entries = new ArrayList<>();
+            for (Object item : (List<Object>) result.get(2)) {
+                List<Object> entry = (List<Object>) item;
+                List<String> values = (List<String>) entry.get(1);
+                Map<String, String> fields = new HashMap<>(values.size());
+                for (int i = 0; i < values.size(); i += 2) {
+                    fields.put(values.get(i), values.get(i + 1));
+                }
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(number((String) entry.get(0)), fields));
+            }
+            return new StreamPage(number((String) result.get(0)), number((String) result.get(1)), entries);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                                boolean collect) {
+            List<Object> result = (List<Object>) QUERY.eval(jedis, key, cursor, Integer.toString(count), skipped,
+                    filter.getKind().name(), filter.getOperand() == null ? "" : filter.getOperand(),
+                    bound(filter.getMin()), bound(filter.getMax()),
+                    filter.getExcluded() == null ? "" : "=" + filter.getExcluded(), collect ? "1" : "0");
+            long numberCount = (Long) result.get(2);
+            ValueAggregate aggregate = new ValueAggregate((Long) result.get(1), numberCount,
+                    parseNumber((String) result.get(3)),
+                    numberCount == 0L ? Double.POSITIVE_INFINITY : parseNumber((String) result.get(4)),
+                    numberCount == 0L ? Double.NEGATIVE_INFINITY : parseNumber((String) result.get(5)));
+            List<String> values = (List<String>) result.get(6);
+            List<Entry<String, String>> entries = new ArrayList<>(values.size() / 2);
+            for (int i = 0; i < values.size(); i += 2) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(values.get(i), values.get(i + 1)));
+            }
+            return new ValuePage((String) result.get(0), aggregate, entries);
+        }
+
+        /**
+         * Returns the bound of a range in the form understood by Lua, which parses an overflowing number as infinity.
+         */
+        private static String bound(double value) {
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "1e400" : "-1e400";
+            }
+            return Double.toString(value);
+        }
+
+        /**
+         * Parses a number formatted by Lua, which prints infinities and NaN as {@code inf}, {@code -inf}
+         * and {@code nan} or {@code -nan}; these come from values like {@code 1e400} and from sums that overflow.
+         */
+        private static double parseNumber(String value) {
+            switch (value) {
+                case "inf":
+                    return Double.POSITIVE_INFINITY;
+                case "-inf":
+                    return Double.NEGATIVE_INFINITY;
+                case "nan":
+                case "-nan":
+                    return Double.NaN;
+                default:
+                    return Double.parseDouble(value);
+            }
+        }
+
+        /**
+         * Returns the number of the stream entry with the specified id.
+         */
+        private static long number(String id) {
+            return Long.parseLong(id.substring(0, id.indexOf('-')));
+        }
+
+        @Override
+        public boolean exists(String key) {
+            return jedis.exists(key);
+        }
+
+        @Override
+        public String type(String key) {
+            return jedis.type(key);
+        }
+
+        @Override
+        public long incr(String key) {
+            return jedis.incr(key);
+        }
+
+        @Override
+        public void del(String key) {
+            jedis.del(key);
+        }
+
+        @Override
+        public HashOperations bounded(Eviction eviction) {
+            return new BoundedOperations(jedis, this, eviction);
+        }
+
+        @Override
+        public HashOperations publishing(String stream, long maxLength) {
+            return new PublishingOperations(jedis, this, null, stream, maxLength);
+        }
+    }
+
+    /**
+     * Hash operations that keep the hashes within a bound by the means of {@link #BOUNDED} script.
+     */
+    private static final class BoundedOperations implements HashOperations {
+        private final Jedis jedis;
+        private final JedisOperations operations;
+        private final Eviction eviction;
+
+        BoundedOperations(Jedis jedis, JedisOperations operations, Eviction eviction) {
+            this.jedis = jedis;
+            this.operations = operations;
+            this.eviction = eviction;
+        }
+
+        static List<String> keys(String key) {
+            return List.of(key, Eviction.indexKey(key), Eviction.sizeKey(key));
+        }
+
+        private List<String> args(String command, String... args) {
+            return args(eviction, command, args);
+        }
+
+        /**
+         * Returns the arguments of {@link #BOUNDED} for the bound.
+         */
+        static List<String> args(Eviction eviction, String command, String... args) {
+            List<String> list = new ArrayList<>(args.length + 4);
+            list.add(eviction.getPolicy().name());
+            list.add(Long.toString(eviction.getMaxEntries()));
+            list.add(Long.toString(eviction.getMaxBytes()));
+            list.add(command);
+            list.addAll(Arrays.asList(args));
+            return list;
+        }
+
+        static String[] flatten(Map<String, String> fields) {
+            String[] args = new String[fields.size() * 2];
+            int i = 0;
+            for (Entry<String, String> entry : fields.entrySet()) {
+                args[i++] = entry.getKey();
+                args[i++] = entry.getValue();
+            }
+            return args;
+        }
+
+        @Override
+        public String hget(String key, String field) {
+            return (String) BOUNDED.eval(jedis, keys(key), args("get", field));
+        }
+
+        @Override
+        public boolean hexists(String key, String field) {
+            return operations.hexists(key, field);
+        }
+
+        @Override
+        public List<String> hmget(String key, List<String> fields) {
+            //every field is touched by its own script
+            List<String> values = new ArrayList<>(fields.size());
+            for (String field : fields) {
+                values.add(hget(key, field));
+            }
+            return values;
+        }
+
+        @Override
+        public long hlen(String key) {
+            return operations.hlen(key);
+        }
+
+        @Override
+        public long[] hlenAll(String[] keys) {
+            return operations.hlenAll(keys);
+        }
+
+        @Override
+        public void hset(Map<String, Map<String, String>> fields) {
+            if (fields.size() == 1) {
+                fields.forEach((key, values) -> BOUNDED.eval(jedis, keys(key), args("mset", flatten(values))));
+                return;
+            }
+            BOUNDED.load(jedis);
+            Transaction transaction = jedis.multi();
+            fields.forEach((key, values) -> transaction.evalsha(BOUNDED.sha, keys(key), args("mset", flatten(values))));
+            transaction.exec();
+        }
+
+        @Override
+        public void hsetnx(Map<String, Map<String, String>> fields) {
+            operations.hsetnx(fields);
+        }
+
+        @Override
+        public long hdel(Map<String, ? extends Collection<String>> fields) {
+            long removed = 0L;
+            for (Entry<String, ? extends Collection<String>> entry : fields.entrySet()) {
+                removed += (Long) BOUNDED.eval(jedis, keys(entry.getKey()),
+                        args("mdel", entry.getValue().toArray(new String[0])));
+            }
+            return removed;
+        }
+
+        @Override
+        public String getAndSet(String key, String field, String value) {
+            return (String) BOUNDED.eval(jedis, keys(key),
+                    args("getset", field, value == null ? "0" : "1", value == null ? "" : value));
+        }
+
+        @Override
+        public boolean compareAndSet(String key, String field, String expected, String value) {
+            Object result = BOUNDED.eval(jedis, keys(key), args("cas", field,
+                    expected == null ? "0" : "1", expected == null ? "" : expected,
+                    value == null ? "0" : "1", value == null ? "" : value));
+            return Long.valueOf(1L).equals(result);
+        }
+
+        @Override
+        public long hincrBy(String key, String field, long delta) {
+            try {
+                return Long.parseLong((String) BOUNDED.eval(jedis, keys(key),
+                        args("incr", field, Long.toString(delta))));
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public double hincrByFloat(String key, String field, double delta) {
+            try {
+                return Double.parseDouble((String) BOUNDED.eval(jedis, keys(key),
+                        args("incrfloat", field, Double.toString(delta))));
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+            BOUNDED.load(jedis);
+            Map<String, Map<String, Response<Object>>> responses = new HashMap<>(deltas.size() * 2);
+            Transaction transaction = jedis.multi();
+            deltas.forEach((key, values) -> {
+                Map<String, Response<Object>> fields = new HashMap<>(values.size() * 2);
+                values.forEach((field, delta) -> fields.put(field,
+                        transaction.evalsha(BOUNDED.sha, keys(key), args("incr", field, Long.toString(delta)))));
+                responses.put(key, fields);
+            });
+            for (Object result : transaction.exec()) {
+                if (result instanceof JedisDataException) {
+                    throw toNumberFormatException((JedisDataException) result);
+                }
+            }
+            Map<String, Map<String, Long>> output = new HashMap<>(deltas.size() * 2);
+            responses.forEach((key, fields) -> {
+                Map<String, Long> values = new HashMap<>(fields.size() * 2);
+                fields.forEach((field, response) -> values.put(field, Long.parseLong((String) response.get())));
+                output.put(key, values);
+            });
+            return output;
+        }
+
+        @Override
+        public void replace(Map<String, Map<String, String>> contents, int seconds) {
+            operations.replace(contents, seconds, records(contents.keySet()));
+        }
+
+        /**
+         * Returns the keys of the eviction records of the hashes.
+         */
+        static String[] records(Collection<String> keys) {
+            List<String> records = new ArrayList<>(keys.size() * 2);
+            for (String key : keys) {
+                records.add(Eviction.indexKey(key));
+                records.add(Eviction.sizeKey(key));
+            }
+            return records.toArray(new String[0]);
+        }
+
+        @Override
+        public void expire(int seconds, String... keys) {
+            operations.expire(seconds, withRecords(keys));
+        }
+
+        /**
+         * Returns the specified keys followed by the keys of their eviction records.
+         */
+        private static String[] withRecords(String[] keys) {
+            String[] all = new String[keys.length * 3];
+            for (int i = 0; i < keys.length; i++) {
+                all[i * 3] = keys[i];
+                all[i * 3 + 1] = Eviction.indexKey(keys[i]);
+                all[i * 3 + 2] = Eviction.sizeKey(keys[i]);
+            }
+            return all;
+        }
+
+        @Override
+        public long lease(String registry, String holder, long millis, String... keys) {
+            return operations.lease(registry, holder, millis, withRecords(keys));
+        }
+
+        @Override
+        public long release(String registry, String holder, String... keys) {
+            return operations.release(registry, holder, withRecords(keys));
+        }
+
+        /**
+         * Is not supported, since the eviction records of every hash are maintained by a separate script.
+         */
+        @Override
+        public List<String> hbatch(List<FieldUpdate> updates) {
+            throw new UnsupportedOperationException("Batches of bounded hashes are not supported");
+        }
+
+        @Override
+        public long xadd(String key, Map<String, String> fields, long maxLength) {
+            return operations.xadd(key, fields, maxLength);
+        }
+
+        @Override
+        public StreamPage xrange(String key, long after, int count) {
+            return operations.xrange(key, after, count);
+        }
+
+        @Override
+        public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                                boolean collect) {
+            return operations.hquery(key, cursor, count, skipped, filter, collect);
+        }
+
+        @Override
+        public boolean exists(String key) {
+            return operations.exists(key);
+        }
+
+        @Override
+        public String type(String key) {
+            return operations.type(key);
+        }
+
+        @Override
+        public long incr(String key) {
+            return operations.incr(key);
+        }
+
+        @Override
+        public void del(String key) {
+            operations.del(key);
+        }
+
+        @Override
+        public HashOperations bounded(Eviction eviction) {
+            return new BoundedOperations(jedis, operations, eviction);
+        }
+
+        @Override
+        public HashOperations publishing(String stream, long maxLength) {
+            return new PublishingOperations(jedis, this, eviction, stream, maxLength);
+        }
+    }
+
+    /**
+     * Hash operations that append the fields modified by every command to a change stream,
+     * as {@link ChangePublisher} does, but in the same transaction as the command, so a command
+     * is never executed without its entry. The entry is appended whether or not the command
+     * modifies the fields, since the transaction cannot depend on its results; readers of
+     * the stream re-read the fields anyway. The fields evicted from bounded hashes are collected
+     * by {@link #BOUNDED} in a set next to the stream and moved to the stream by {@link #APPEND}.
+     * Scripts are sent by their source, so that a script missing from the cache of the server
+     * does not fail the command alone.
+     */
+    private static final class PublishingOperations implements HashOperations {
+        private final Jedis jedis;
+        private final HashOperations operations;
+        private final Eviction eviction;
+        private final String stream;
+        private final long maxLength;
+
+        /**
+         * @param operations the operations that execute the commands not modifying fields
+         * @param eviction the bound of every hash, or {@code null} if the hashes are not bounded
+         */
+        PublishingOperations(Jedis jedis, HashOperations operations, Eviction eviction, String stream,
+                             long maxLength) {
+            this.jedis = jedis;
+            this.operations = operations;
+            this.eviction = eviction;
+            this.stream = stream;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Executes the commands queued by the function in a transaction, followed by the entries,
+         * and returns the result of the function.
+         *
+         * @throws JedisDataException if a command fails
+         */
+        private <T> T publish(List<Map<String, String>> entries, Function<Transaction, T> commands) {
+            Transaction transaction = jedis.multi();
+            T result = commands.apply(transaction);
+            List<String> keys = eviction == null ? List.of(stream) : List.of(stream, evictedKey());
+            for (Map<String, String> entry : entries) {
+                transaction.eval(APPEND.source, keys, JedisOperations.appendArgs(entry, maxLength));
+            }
+            for (Object reply : transaction.exec()) {
+                if (reply instanceof JedisDataException) {
+                    throw (JedisDataException) reply;
+                }
+            }
+            return result;
+        }
+
+        private static List<Map<String, String>> entries(String field) {
+            return List.of(Map.of(field, ChangePublisher.CHANGED));
+        }
+
+        /**
+         * Returns the key of the set the fields evicted by a transaction are collected in,
+         * which is empty between transactions.
+         */
+        private String evictedKey() {
+            return stream + ":evicted";
+        }
+
+        /**
+         * Queues the command of {@link #BOUNDED} modifying the hash.
+         */
+        private Response<Object> bounded(Transaction transaction, String key, String command, String... args) {
+            List<String> keys = new ArrayList<>(BoundedOperations.keys(key));
+            keys.add(evictedKey());
+            return transaction.eval(BOUNDED.source, keys, BoundedOperations.args(eviction, command, args));
+        }
+
+        /**
+         * Returns the reply of an increment, which {@link #BOUNDED} returns as a string.
+         */
+        private static String number(Response<?> response) {
+            return String.valueOf(response.get());
+        }
+
+        @Override
+        public String hget(String key, String field) {
+            return operations.hget(key, field);
+        }
+
+        @Override
+        public boolean hexists(String key, String field) {
+            return operations.hexists(key, field);
+        }
+
+        @Override
+        public List<String> hmget(String key, List<String> fields) {
+            return operations.hmget(key, fields);
+        }
+
+        @Override
+        public long hlen(String key) {
+            return operations.hlen(key);
+        }
+
+        @Override
+        public long[] hlenAll(String[] keys) {
+            return operations.hlenAll(keys);
+        }
+
+        @Override
+        public void hset(Map<String, Map<String, String>> fields) {
+            publish(ChangePublisher.entries(ChangePublisher.fieldsOf(fields)), transaction -> {
+                fields.forEach((key, values) -> {
+                    if (eviction == null) {
+                        transaction.hset(key, values);
+                    } else {
+                        bounded(transaction, key, "mset", BoundedOperations.flatten(values));
+                    }
+                });
+                return null;
+            });
+        }
+
+        @Override
+        public void hsetnx(Map<String, Map<String, String>> fields) {
+            publish(ChangePublisher.entries(ChangePublisher.fieldsOf(fields)), transaction -> {
+                fields.forEach((key, values) ->
+                        values.forEach((field, value) -> transaction.hsetnx(key, field, value)));
+                return null;
+            });
+        }
+
+        @Override
+        public long hdel(Map<String, ? extends Collection<String>> fields) {
+            List<Response<?>> responses = publish(ChangePublisher.entries(fields), transaction -> {
+                List<Response<?>> list = new ArrayList<>(fields.size());
+                fields.forEach((key, values) -> {
+                    String[] array = values.toArray(new String[0]);
+                    list.add(eviction == null
+                            ? transaction.hdel(key, array)
+                            : bounded(transaction, key, "mdel", array));
+                });
+                return list;
+            });
+            long removed = 0L;
+            for (Response<?> response : responses) {
+                removed += (Long) response.get();
+            }
+            return removed;
+        }
+
+        @Override
+        public String getAndSet(String key, String field, String value) {
+            String[] args = {field, value == null ? "0" : "1", value == null ? "" : value};
+            return (String) publish(entries(field), transaction -> eviction == null
+                    ? transaction.eval(GET_AND_SET.source, List.of(key), Arrays.asList(args))
+                    : bounded(transaction, key, "getset", args)).get();
+        }
+
+        @Override
+        public byte[] hgetBinary(String key, String field) {
+            return operations.hgetBinary(key, field);
+        }
+
+        @Override
+        public byte[] getAndSetBinary(String key, String field, byte[] value) {
+            if (eviction != null) {
+                return HashOperations.super.getAndSetBinary(key, field, value);
+            }
+            List<byte[]> args = List.of(SafeEncoder.encode(field), SafeEncoder.encode(value == null ? "0" : "1"),
+                    value == null ? new byte[0] : value);
+            return (byte[]) publish(entries(field), transaction -> transaction.eval(
+                    SafeEncoder.encode(GET_AND_SET.source), List.of(SafeEncoder.encode(key)), args)).get();
+        }
+
+        @Override
+        public boolean compareAndSet(String key, String field, String expected, String value) {
+            String[] args = {field, expected == null ? "0" : "1", expected == null ? "" : expected,
+                    value == null ? "0" : "1", value == null ? "" : value};
+            Object result = publish(entries(field), transaction -> eviction == null
+                    ? transaction.eval(COMPARE_AND_SET.source, List.of(key), Arrays.asList(args))
+                    : bounded(transaction, key, "cas", args)).get();
+            return Long.valueOf(1L).equals(result);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<String> hbatch(List<FieldUpdate> updates) {
+            if (eviction != null) {
+                throw new UnsupportedOperationException("Batches of bounded hashes are not supported");
+            }
+            List<String> keys = new ArrayList<>(updates.size());
+            List<String> args = new ArrayList<>(updates.size() * 5);
+            JedisOperations.batchArgs(updates, keys, args);
+            Map<String, Collection<String>> fields = new HashMap<>();
+            for (FieldUpdate update : updates) {
+                fields.computeIfAbsent(update.getKey(), k -> new ArrayList<>()).add(update.getField());
+            }
+            return (List<String>) publish(ChangePublisher.entries(fields),
+                    transaction -> transaction.eval(BATCH.source, keys, args)).get();
+        }
+
+        @Override
+        public long hincrBy(String key, String field, long delta) {
+            try {
+                return Long.parseLong(number(publish(entries(field), transaction -> eviction == null
+                        ? transaction.hincrBy(key, field, delta)
+                        : bounded(transaction, key, "incr", field, Long.toString(delta)))));
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public double hincrByFloat(String key, String field, double delta) {
+            try {
+                return Double.parseDouble(number(publish(entries(field), transaction -> eviction == null
+                        ? transaction.hincrByFloat(key, field, delta)
+                        : bounded(transaction, key, "incrfloat", field, Double.toString(delta)))));
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+        }
+
+        @Override
+        public Map<String, Map<String, Long>> hincrByAll(Map<String, Map<String, Long>> deltas) {
+            Map<String, Map<String, Response<?>>> responses = new HashMap<>(deltas.size() * 2);
+            try {
+                publish(ChangePublisher.entries(ChangePublisher.fieldsOf(deltas)), transaction -> {
+                    deltas.forEach((key, values) -> {
+                        Map<String, Response<?>> fields = new HashMap<>(values.size() * 2);
+                        values.forEach((field, delta) -> fields.put(field, eviction == null
+                                ? transaction.hincrBy(key, field, delta)
+                                : bounded(transaction, key, "incr", field, Long.toString(delta))));
+                        responses.put(key, fields);
+                    });
+                    return null;
+                });
+            } catch (JedisDataException e) {
+                throw toNumberFormatException(e);
+            }
+            Map<String, Map<String, Long>> output = new HashMap<>(deltas.size() * 2);
+            responses.forEach((key, fields) -> {
+                Map<String, Long> values = new HashMap<>(fields.size() * 2);
+                fields.forEach((field, response) -> values.put(field, Long.parseLong(number(response))));
+                output.put(key, values);
+            });
+            return output;
+        }
+
+        @Override
+        public void replace(Map<String, Map<String, String>> contents, int seconds) {
+            String[] removedKeys = eviction == null ? new String[0] : BoundedOperations.records(contents.keySet());
+            publish(List.of(ChangePublisher.replaced(contents.keySet())), transaction -> {
+                JedisOperations.replace(transaction, contents, seconds, removedKeys);
+                return null;
+            });
+        }
+
+        @Override
+        public void expire(int seconds, String... keys) {
+            operations.expire(seconds, keys);
+        }
+
+        @Override
+        public long lease(String registry, String holder, long millis, String... keys) {
+            return operations.lease(registry, holder, millis, keys);
+        }
+
+        @Override
+        public long release(String registry, String holder, String... keys) {
+            return operations.release(registry, holder, keys);
+        }
+
+        @Override
+        public long xadd(String key, Map<String, String> fields, long maxLength) {
+            return operations.xadd(key, fields, maxLength);
+        }
+
+        @Override
+        public StreamPage xrange(String key, long after, int count) {
+            return operations.xrange(key, after, count);
+        }
+
+        @Override
+        public ValuePage hquery(String key, String cursor, int count, String skipped, ValueFilter filter,
+                                boolean collect) {
+            return operations.hquery(key, cursor, count, skipped, filter, collect);
+        }
+
+        @Override
+        public boolean exists(String key) {
+            return operations.exists(key);
+        }
+
+        @Override
+        public String type(String key) {
+            return operations.type(key);
+        }
+
+        @Override
+        public long incr(String key) {
+            return operations.incr(key);
+        }
+
+        @Override
+        public void del(String key) {
+            operations.del(key);
+        }
+
+        @Override
+        public HashOperations bounded(Eviction eviction) {
+            return operations.bounded(eviction).publishing(stream, maxLength);
+        }
+
+        @Override
+        public HashOperations publishing(String stream, long maxLength) {
+            return operations.publishing(stream, maxLength);
+        }
+    }
+
+    /**
+     * A Lua script executed by its SHA1 digest, which is loaded on the first miss.
+     */
+    private static final class Script {
+        private final String source;
+        private final String sha;
+
+        Script(String source) {
+            this.source = source;
+            this.sha = sha1(source);
+        }
+
+        Object eval(Jedis jedis, String key, String... args) {
+            return eval(jedis, List.of(key), Arrays.asList(args));
+        }
+
+        Object eval(Jedis jedis, List<String> keys, List<String> args) {
+            try {
+                return jedis.evalsha(sha, keys, args);
+            } catch (JedisNoScriptException e) {
+                return jedis.eval(source, keys, args);
+            }
+        }
+
+        /**
+         * Executes the script with binary arguments, so that the bulk strings it returns are not decoded.
+         */
+        Object evalBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+            try {
+                return jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+            } catch (JedisNoScriptException e) {
+                return jedis.eval(SafeEncoder.encode(source), keys, args);
+            }
+        }
+
+        /**
+         * Makes sure the script can be executed by its digest inside a transaction or a pipeline.
+         */
+        void load(Jedis jedis) {
+            jedis.scriptLoad(source);
+        }
+
+        private static String sha1(String source) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+                StringBuilder builder = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * A read-only copy of a {@link RedisMap} held in the memory of the application
+ * and kept up to date by the change stream of the map.
+ * Reads are served by a snapshot of the map overlaid with the changes made since the snapshot.
+ * The overlay is replaced as a whole when changes arrive, so reads never block and every
+ * iterator sees the state of the replica at some point. Once the overlay has grown large
+ * compared to the snapshot, the two are merged into a new snapshot.
+ *
+ * <p>The replica is created by {@link RedisMap#localReplica()}, which keeps the snapshot
+ * in a {@code HashMap}, or by {@link RedisMap#localReplica(Path)}, which keeps it in
+ * a memory-mapped file that the next replica of the map can start from.
+ * Reads from the file decode the entry on every lookup.
+ * All mutating methods throw {@link UnsupportedOperationException}.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class LocalReplica extends AbstractMap<String, String> implements AutoCloseable {
+    /**
+     * The maximum number of change stream entries read at once.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * The number of changes the overlay has to exceed to be merged into the snapshot,
+     * provided it also exceeds a quarter of the snapshot.
+     */
+    private static final int MERGE_THRESHOLD = 1024;
+
+    /**
+     * The time (in milliseconds) closing the replica waits for a running read of the change stream.
+     */
+    private static final long CLOSE_TIMEOUT = 5000L;
+
+    /**
+     * Service used to read the change stream.
+     */
+    private final ScheduledExecutorService scheduler = Threads.newScheduler("redis-map-replica");
+
+    private final RedisMap map;
+
+    /**
+     * The snapshot file of the replica, or {@code null} if the snapshot is kept in memory.
+     */
+    private final Path file;
+
+    private final String redisKey;
+
+    /**
+     * The epoch of the change stream of the map.
+     */
+    private final String epoch;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * The entries of the replica. Is never modified after it has been published.
+     */
+    private volatile Overlay entries;
+
+    /**
+     * The number of the last change stream entry applied to the replica.
+     * Is only accessed by the scheduler after the replica has been constructed.
+     */
+    private long position;
+
+    /**
+     * The time (in milliseconds) the replica last caught up with the change stream at.
+     */
+    private volatile long syncTime;
+
+    LocalReplica(RedisMap map, long interval, Path file, String redisKey, String epoch) {
+        this.map = map;
+        this.file = file;
+        this.redisKey = redisKey;
+        this.epoch = epoch;
+        if (restore()) {
+            sync();
+        } else {
+            load();
+        }
+        scheduler.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts from the snapshot file if it has been written for the same map.
+     * Whether the changes since the snapshot are still kept by the change stream
+     * is checked by the first read of the stream.
+     *
+     * @return {@code true} if the replica has started from the file
+     */
+    private boolean restore() {
+        if (file == null) {
+            return false;
+        }
+        try {
+            MappedSnapshot snapshot = MappedSnapshot.open(file);
+            if (!redisKey.equals(snapshot.getRedisKey()) || !epoch.equals(snapshot.getEpoch())) {
+                return false;
+            }
+            entries = new Overlay(snapshot);
+            position = snapshot.getPosition();
+            syncTime = snapshot.getTime();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads a snapshot of the map.
+     * The position is read first, so that no change made during the load is missed.
+     */
+    private void load() {
+        long start = System.currentTimeMillis();
+        long snapshotPosition = map.getChangesPosition();
+        Map<String, String> snapshot = new HashMap<>(map);
+        position = snapshotPosition;
+        Map<String, String> persisted = persist(snapshot, start);
+        entries = new Overlay(persisted != null ? persisted : snapshot);
+        syncTime = start;
+    }
+
+    /**
+     * Writes the entries to the snapshot file at the current position.
+     *
+     * @return the snapshot read from the file, or {@code null} if the replica has no file
+     *      or the file cannot be written
+     */
+    private Map<String, String> persist(Map<String, String> snapshot, long time) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            MappedSnapshot.write(file, redisKey, epoch, position, time, snapshot);
+            return MappedSnapshot.open(file);
+        } catch (IOException e) {
+            //the replica stays in memory
+            return null;
+        }
+    }
+
+    /**
+     * Applies the changes published since the last run.
+     */
+    private void sync() {
+        try {
+            long start = System.currentTimeMillis();
+            Map<String, String> values = new HashMap<>();
+            Set<String> removed = new HashSet<>();
+            long next;
+            while ((next = map.readChanges(position, BATCH_SIZE, values, removed)) != position) {
+                if (next < 0L) {
+                    load();
+                    return;
+                }
+                position = next;
+            }
+            if (!values.isEmpty() || !removed.isEmpty()) {
+                Overlay updated = entries.with(values, removed);
+                if (updated.isLarge()) {
+                    Map<String, String> persisted = persist(updated, start);
+                    updated = new Overlay(persisted != null ? persisted : new HashMap<>(updated));
+                }
+                entries = updated;
+            }
+            syncTime = start;
+        } catch (RuntimeException e) {
+            //the lag grows until Redis is reachable again; the error is counted by the map metrics
+        }
+    }
+
+    /**
+     * Returns the time (in milliseconds) since the replica last caught up with the map,
+     * which bounds the staleness of its entries.
+     *
+     * @return the replication lag
+     */
+    public long getLag() {
+        return Math.max(System.currentTimeMillis() - syncTime, 0L);
+    }
+
+    /**
+     * Stops following the map and writes the entries to the snapshot file, if the replica has one.
+     * The replica keeps its entries.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.shutdownNow();
+        if (file == null) {
+            return;
+        }
+        try {
+            if (scheduler.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                persist(entries, syncTime);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return entries.containsValue(value);
+    }
+
+    @Override
+    public String get(Object key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public String getOrDefault(Object key, String defaultValue) {
+        return entries.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+
+    /**
+     * A snapshot overlaid with the changes made since the snapshot.
+     */
+    private static final class Overlay extends AbstractMap<String, String> {
+        /**
+         * Marks the keys removed since the snapshot. Is compared by identity.
+         */
+        private static final String REMOVED = new String("");
+
+        private final Map<String, String> snapshot;
+        private final Map<String, String> changes;
+        private final int size;
+
+        private transient Set<Entry<String, String>> entrySet;
+
+        Overlay(Map<String, String> snapshot) {
+            this(snapshot, Collections.emptyMap(), snapshot.size());
+        }
+
+        private Overlay(Map<String, String> snapshot, Map<String, String> changes, int size) {
+            this.snapshot = snapshot;
+            this.changes = changes;
+            this.size = size;
+        }
+
+        /**
+         * Returns an overlay of the same snapshot with the changes applied.
+         * Takes time proportional to the number of changes since the snapshot.
+         */
+        Overlay with(Map<String, String> values, Set<String> removed) {
+            Map<String, String> copy = new HashMap<>(changes);
+            for (String key : removed) {
+                if (snapshot.containsKey(key)) {
+                    copy.put(key, REMOVED);
+                } else {
+                    copy.remove(key);
+                }
+            }
+            copy.putAll(values);
+            int size = snapshot.size();
+            for (Entry<String, String> entry : copy.entrySet()) {
+                size += (entry.getValue() == REMOVED ? 0 : 1) - (snapshot.containsKey(entry.getKey()) ? 1 : 0);
+            }
+            return new Overlay(snapshot, copy, size);
+        }
+
+        /**
+         * Returns {@code true} if the changes should be merged into the snapshot.
+         */
+        boolean isLarge() {
+            return changes.size() > MERGE_THRESHOLD && changes.size() > snapshot.size() / 4;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            String value = changes.get(key);
+            if (value == null && !changes.containsKey(key)) {
+                return snapshot.containsKey(key);
+            }
+            return value != REMOVED;
+        }
+
+        @Override
+        public String get(Object key) {
+            String value = changes.get(key);
+            if (value == null && !changes.containsKey(key)) {
+                return snapshot.get(key);
+            }
+            return value == REMOVED ? null : value;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            Set<Entry<String, String>> es;
+            return (es = entrySet) == null ? (entrySet = new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return Stream.concat(
+                            changes.entrySet().stream().filter(entry -> entry.getValue() != REMOVED),
+                            snapshot.entrySet().stream().filter(entry -> !changes.containsKey(entry.getKey())))
+                            .iterator();
+                }
+            }) : es;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A read-only snapshot of map entries stored in a memory-mapped file.
+ * Lookups probe a hash table of entry offsets stored in the file,
+ * so opening a snapshot takes no time proportional to its size.
+ *
+ * <p>The file consists of a header, a table of the offsets of entries indexed by
+ * the hash codes of their keys with linear probing, and the entries. The header
+ * records the map and the change stream position the snapshot was taken at.
+ * Snapshots are limited to 2 GB.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class MappedSnapshot extends AbstractMap<String, String> {
+    /**
+     * The first bytes of a snapshot file, "RMSS".
+     */
+    private static final int MAGIC = 0x524d5353;
+
+    private static final int VERSION = 1;
+
+    private static final int NULL_LENGTH = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MappedByteBuffer buffer;
+    private final String redisKey;
+    private final String epoch;
+    private final long position;
+    private final long time;
+    private final int size;
+    private final int tableOffset;
+    private final int tableSize;
+    private final int dataOffset;
+
+    private transient Set<Entry<String, String>> entrySet;
+
+    private MappedSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        try {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Illegal snapshot header");
+            }
+            time = buffer.getLong(8);
+            position = buffer.getLong(16);
+            size = buffer.getInt(24);
+            tableSize = buffer.getInt(28);
+            int offset = 32;
+            redisKey = readString(offset);
+            offset += 4 + buffer.getInt(offset);
+            epoch = readString(offset);
+            tableOffset = offset + 4 + buffer.getInt(offset);
+            dataOffset = tableOffset + tableSize * 4;
+            if (size < 0 || Integer.bitCount(tableSize) != 1 || dataOffset > buffer.limit()) {
+                throw new IOException("Illegal snapshot header");
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Illegal snapshot header", e);
+        }
+    }
+
+    /**
+     * Maps the snapshot stored in the specified file.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static MappedSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Illegal snapshot size: " + channel.size());
+            }
+            return new MappedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entries to the specified file, replacing it atomically.
+     *
+     * @param path the file
+     * @param redisKey the key of the map
+     * @param epoch the epoch of the change stream of the map
+     * @param position the change stream position the entries reflect
+     * @param time the time (in milliseconds) the entries were up to date at
+     * @param entries the entries
+     * @throws IOException if an I/O error occurs or the snapshot exceeds 2 GB
+     */
+    static void write(Path path, String redisKey, String epoch, long position, long time,
+                      Map<String, String> entries) throws IOException {
+        byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] epochBytes = epoch.getBytes(StandardCharsets.UTF_8);
+        int tableSize = Integer.highestOneBit(Math.max(entries.size() * 2 - 1, 1)) << 1;
+        long tableOffset = 32L + 4 + key.length + 4 + epochBytes.length;
+        long dataOffset = tableOffset + tableSize * 4L;
+        if (dataOffset > Integer.MAX_VALUE) {
+            throw new IOException("Illegal snapshot size: " + dataOffset);
+        }
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0L, dataOffset);
+                header.putInt(MAGIC).putInt(VERSION).putLong(time).putLong(position)
+                        .putInt(entries.size()).putInt(tableSize)
+                        .putInt(key.length).put(key).putInt(epochBytes.length).put(epochBytes);
+                channel.position(dataOffset);
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                long offset = dataOffset;
+                for (Entry<String, String> entry : entries.entrySet()) {
+                    if (offset > Integer.MAX_VALUE) {
+                        throw new IOException("Illegal snapshot size: " + offset);
+                    }
+                    int hash = Objects.hashCode(entry.getKey());
+                    int slot = spread(hash) & (tableSize - 1);
+                    while (header.getInt((int) tableOffset + slot * 4) != 0) {
+                        slot = (slot + 1) & (tableSize - 1);
+                    }
+                    header.putInt((int) tableOffset + slot * 4, (int) offset);
+                    output.writeInt(hash);
+                    offset += 4 + writeString(output, entry.getKey()) + writeString(output, entry.getValue());
+                }
+                output.flush();
+                header.force();
+                channel.force(false);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static int writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(NULL_LENGTH);
+            return 4;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    String getRedisKey() {
+        return redisKey;
+    }
+
+    String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of the last change stream entry reflected by the snapshot.
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the time (in milliseconds) the snapshot was up to date at.
+     */
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the string stored at the offset as its length and UTF-8 bytes.
+     */
+    private String readString(int offset) {
+        int length = buffer.getInt(offset);
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the offset of the value of the entry starting at the offset.
+     */
+    private int valueOffset(int offset) {
+        int length = buffer.getInt(offset + 4);
+        return offset + 8 + Math.max(length, 0);
+    }
+
+    /**
+     * Returns the offset of the entry with the key, or -1 if there is no such entry.
+     */
+    private int find(Object key) {
+        int hash = Objects.hashCode(key);
+        int slot = spread(hash) & (tableSize - 1);
+        int offset;
+        while ((offset = buffer.getInt(tableOffset + slot * 4)) != 0) {
+            if (buffer.getInt(offset) == hash && Objects.equals(readString(offset + 4), key)) {
+                return offset;
+            }
+            slot = (slot + 1) & (tableSize - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int offset = find(key);
+        return offset < 0 ? null : readString(valueOffset(offset));
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        Set<Entry<String, String>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, String>> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new Iterator<>() {
+                private int offset = dataOffset;
+                private int remaining = size;
+
+                @Override
+                public boolean hasNext() {
+                    return remaining > 0;
+                }
+
+                @Override
+                public Entry<String, String> next() {
+                    if (remaining == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    String key = readString(offset + 4);
+                    int valueOffset = valueOffset(offset);
+                    String value = readString(valueOffset);
+                    offset = valueOffset + 4 + Math.max(buffer.getInt(valueOffset), 0);
+                    remaining--;
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free implementation of {@link RedisMapMetrics}.
+ * Recording a value costs a few uncontended atomic additions.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class Metrics implements RedisMapMetrics {
+    private static final double MICROS = TimeUnit.MICROSECONDS.toNanos(1);
+
+    static final Metrics INSTANCE = new Metrics();
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> retries = new EnumMap<>(Operation.class);
+    private final Histogram poolWait = new Histogram();
+    private final Histogram heartbeatLag = new Histogram();
+    private final Histogram scanPageSize = new Histogram();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            //metrics stay available through RedisMap.getMetrics
+        }
+    }
+
+    private Metrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+            errors.put(operation, new LongAdder());
+            retries.put(operation, new LongAdder());
+        }
+    }
+
+    void recordLatency(Operation operation, long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    void recordError(Operation operation) {
+        errors.get(operation).increment();
+    }
+
+    void recordRetry(Operation operation) {
+        retries.get(operation).increment();
+    }
+
+    void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    void recordHeartbeatLag(long nanos) {
+        heartbeatLag.record(nanos);
+    }
+
+    void recordHedge() {
+        hedges.increment();
+    }
+
+    void recordRejection() {
+        rejections.increment();
+    }
+
+    void recordScanPage(int size) {
+        scanPageSize.record(size);
+    }
+
+    /**
+     * Records the bytes sent to Redis.
+     *
+     * @return the number of bytes
+     */
+    long recordBytesOut(String string) {
+        long length = utf8Length(string);
+        bytesOut.add(length);
+        return length;
+    }
+
+    /**
+     * Records the bytes sent to Redis.
+     *
+     * @return the number of bytes
+     */
+    long recordBytesOut(byte[] bytes) {
+        bytesOut.add(bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Records the bytes received from Redis.
+     *
+     * @return the number of bytes
+     */
+    long recordBytesIn(byte[] bytes) {
+        bytesIn.add(bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Records the bytes received from Redis.
+     *
+     * @return the number of bytes
+     */
+    long recordBytesIn(String string) {
+        long length = utf8Length(string);
+        bytesIn.add(length);
+        return length;
+    }
+
+    @Override
+    public Map<String, OperationStats> getOperations() {
+        Map<String, OperationStats> operations = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            HistogramStats latency = latencies.get(operation).snapshot(MICROS);
+            if (latency.getCount() > 0L) {
+                operations.put(operation.name(), new OperationStats(errors.get(operation).sum(),
+                        retries.get(operation).sum(), latency));
+            }
+        }
+        return operations;
+    }
+
+    @Override
+    public HistogramStats getPoolWait() {
+        return poolWait.snapshot(MICROS);
+    }
+
+    @Override
+    public HistogramStats getHeartbeatLag() {
+        return heartbeatLag.snapshot(MICROS);
+    }
+
+    @Override
+    public HistogramStats getScanPageSize() {
+        return scanPageSize.snapshot(1.0);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (Operation operation : Operation.values()) {
+            latencies.get(operation).reset();
+            errors.get(operation).reset();
+            retries.get(operation).reset();
+        }
+        poolWait.reset();
+        heartbeatLag.reset();
+        scanPageSize.reset();
+        bytesOut.reset();
+        bytesIn.reset();
+        hedges.reset();
+        rejections.reset();
+    }
+
+    private static long utf8Length(String string) {
+        if (string == null) {
+            return 0L;
+        }
+        long length = string.length();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                //surrogate pairs take 4 bytes for 2 chars
+                length += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return length;
+    }
+}
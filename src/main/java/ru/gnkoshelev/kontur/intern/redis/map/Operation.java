@@ -0,0 +1,30 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Operations of {@link RedisMap} that are measured separately.
+ *
+ *  @author  Veronica Kazarina
+ */
+enum Operation {
+    GET,
+    CONTAINS_KEY,
+    SIZE,
+    SCAN,
+    PUT,
+    PUT_IF_ABSENT,
+    PUT_ALL,
+    REMOVE,
+    REMOVE_ALL,
+    CLEAR,
+    REPLACE,
+    REPLACE_ALL,
+    COMPUTE,
+    COMPUTE_IF_ABSENT,
+    COMPUTE_IF_PRESENT,
+    MERGE,
+    INCREMENT,
+    BATCH,
+    HEARTBEAT,
+    REPLICATE,
+    QUERY
+}
@@ -0,0 +1,44 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Immutable statistics of a {@link RedisMap} operation.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class OperationStats {
+    private final long errors;
+    private final long retries;
+    private final HistogramStats latency;
+
+    OperationStats(long errors, long retries, HistogramStats latency) {
+        this.errors = errors;
+        this.retries = retries;
+        this.latency = latency;
+    }
+
+    /**
+     * Returns the number of operations that threw an exception.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the number of optimistic locking attempts aborted due to concurrent modification.
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the latency (in microseconds) of the operations, including pool waits and retries.
+     */
+    public HistogramStats getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "errors=" + errors + ", retries=" + retries + ", latency={" + latency + "}";
+    }
+}
@@ -0,0 +1,154 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * Coalesces concurrent reads of single fields of a hash into one {@code HMGET}.
+ * The first thread to read a field of a hash opens a batch, waits for the window
+ * to let other threads join it, and then reads all fields of the batch at once;
+ * the other threads wait for the result. Reads of the same field share a slot of the batch.
+ * A batch that reaches {@link #MAX_FIELDS} fields is sent without waiting any longer.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class ReadCoalescer {
+    /**
+     * The maximum number of fields read by one command.
+     */
+    static final int MAX_FIELDS = 1000;
+
+    private final long window;
+    private final BiFunction<String, List<String>, List<String>> loader;
+
+    /**
+     * The batches that are open for new fields by key of the hash.
+     */
+    private final Map<String, Batch> open = new ConcurrentHashMap<>();
+
+    /**
+     * @param window the time (in nanoseconds) a batch waits for other reads
+     * @param loader reads the values of the fields of the hash
+     */
+    ReadCoalescer(long window, BiFunction<String, List<String>, List<String>> loader) {
+        this.window = window;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the value of the field of the hash, or {@code null} if there is no such field.
+     */
+    String get(String key, String field) {
+        while (true) {
+            Batch batch = open.get(key);
+            if (batch == null) {
+                Batch created = new Batch(key);
+                batch = open.putIfAbsent(key, created);
+                if (batch == null) {
+                    CompletableFuture<String> value = created.add(field);
+                    created.send();
+                    return join(value);
+                }
+            }
+            CompletableFuture<String> value = batch.add(field);
+            if (value != null) {
+                return join(value);
+            }
+            //the batch has been closed in the meantime
+            open.remove(key, batch);
+        }
+    }
+
+    private static String join(CompletableFuture<String> value) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return value.get();
+                } catch (InterruptedException e) {
+                    //the value is on its way, so the interrupt only has to be preserved
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The fields of a hash read by one command.
+     */
+    private final class Batch {
+        private final String key;
+        private final Thread sender = Thread.currentThread();
+        private final Map<String, CompletableFuture<String>> fields = new LinkedHashMap<>();
+        private boolean closed;
+
+        Batch(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the value of the field to be read by this batch,
+         * or {@code null} if the batch is closed for new fields.
+         */
+        synchronized CompletableFuture<String> add(String field) {
+            if (closed) {
+                return null;
+            }
+            CompletableFuture<String> value = fields.computeIfAbsent(field, f -> new CompletableFuture<>());
+            if (fields.size() >= MAX_FIELDS) {
+                closed = true;
+                LockSupport.unpark(sender);
+            }
+            return value;
+        }
+
+        /**
+         * Waits for the window to elapse or the batch to fill up, and reads the fields.
+         */
+        void send() {
+            long deadline = System.nanoTime() + window;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0L && !isClosed()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            List<String> keys;
+            List<CompletableFuture<String>> values;
+            synchronized (this) {
+                closed = true;
+                keys = new ArrayList<>(fields.keySet());
+                values = new ArrayList<>(fields.values());
+            }
+            open.remove(key, this);
+            try {
+                List<String> result = loader.apply(key, keys);
+                for (int i = 0; i < values.size(); i++) {
+                    values.get(i).complete(result.get(i));
+                }
+            } catch (RuntimeException | Error e) {
+                for (CompletableFuture<String> value : values) {
+                    value.completeExceptionally(e);
+                }
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+}
@@ -1,19 +1,21 @@
 package ru.gnkoshelev.kontur.intern.redis.map;
 
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.ScanParams;
-import redis.clients.jedis.ScanResult;
-import redis.clients.jedis.Transaction;
-
-import java.time.Duration;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -22,12 +24,20 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -51,9 +61,12 @@ import java.util.stream.Collectors;
  * Both create a new Redis hash object with the specified key/id
  * if no existing object with such a key/id is found.
  *
+ * <p>The Redis hash lives while any of the maps linked to it is open
+ * and is removed when the last of them is closed.
+ *
  *  @author  Veronica Kazarina
  */
-public class RedisMap implements Map<String, String> {
+public class RedisMap implements Map<String, String>, AutoCloseable {
     /*
     * Implementation notes.
     *
@@ -64,14 +77,19 @@ public class RedisMap implements Map<String, String> {
     * memory shortage, lack of activity, etc.
     *
     * Since Redis does not store nulls, String tokens are used instead.
+    * Values other than the null token are passed through ValueCodec
+    * right before they are sent to Redis and right after they are received.
     *
     * To overcome the inability of Redis to store empty objects, every RedisMap
     * instance contains an "empty entry", that has no effect on map operations
     * other than to make it visible in Redis even when it has no actual entries.
     *
-    * Lifetime of linked Redis hash objects is controlled through their "time to live"
-    * that is reset to default value at fixed intervals. Redis automatically disposes
-    * of the hashes when their associated RedisMap objects are no longer accessible.
+    * Lifetime of linked Redis hash objects is controlled through a registry of holders
+    * stored at redisKey + ":holders". Every RedisMap instance holds a lease in it
+    * that is renewed at fixed intervals, and every renewal makes the hashes expire
+    * when the latest lease of all holders lapses. A holder that misses a renewal
+    * thus does not put the data at risk while other holders are alive, and the
+    * hashes are removed at once when the last holder closes its map.
     *
     * All iterators are based on RedisIterator class that uses HSCAN command
     * to iterate over hash keys. The implementation was tested on RedisMap objects
@@ -86,6 +104,43 @@ public class RedisMap implements Map<String, String> {
     * duplicate entries may be introduced by Redis; moreover, some duplicate keys
     * may also change value. To address this issue, every key provided by
     * RedisIterator is checked in case it has been seen in previous iterations.
+    *
+    * A map may be spread across several Redis hashes (shards) stored at
+    * redisKey + ":shard:" + index. Every field belongs to exactly one shard
+    * chosen by String.hashCode, which is specified by the language and thus
+    * gives the same result in every application sharing the map. Every shard
+    * has its own "empty entry", so that it is never evicted between scheduler
+    * runs. The hash at redisKey then holds nothing but the "empty entry", whose
+    * value records the number of shards so that maps linked to the same key
+    * later use the same layout. The layout also includes an optional key prefix
+    * that is stored as a single reserved character in every field that starts with it.
+    * Multi-shard operations are sent in a single pipeline or transaction,
+    * and value scans run over groups of shards concurrently.
+    *
+    * All commands go through RedisMapBackend, which is JedisBackend unless
+    * the configuration says otherwise. Conditional updates read the current value
+    * and then replace it with compareAndSet, retrying if the value has changed
+    * in between; JedisBackend executes compareAndSet as a Lua script. The reads
+    * made by these loops go to the primary, since the comparison is made there.
+    *
+    * A bounded map writes through HashOperations.bounded, which records accesses
+    * to the fields of every shard in a companion sorted set and counts the size
+    * of the shard, evicting the coldest fields in the same script as the write.
+    * The bound is split evenly between shards, so eviction never crosses shards.
+    *
+    * Read-only operations may be routed to replicas by ReplicaRouter. Every
+    * RedisIterator keeps to the server it started on, because HSCAN cursors
+    * are not portable between servers.
+    *
+    * A map with a change stream writes through HashOperations.publishing, which appends
+    * the modified fields to a stream at redisKey + ":changes" in the same transaction
+    * as every write (JedisBackend) or right after it (ChangePublisher).
+    * A LocalReplica loads a snapshot of the map and then re-reads the fields named
+    * by the stream entries that follow the snapshot. Since the entry of a write is
+    * appended no earlier than the write, re-reading a field observes the write even
+    * though entries of concurrent writers may be out of order. Entries are numbered
+    * consecutively, so a replica notices the entries trimmed before it read them,
+    * and loads a new snapshot.
     */
 
     /* ---------------- Constants -------------- */
@@ -104,9 +159,15 @@ public class RedisMap implements Map<String, String> {
     /**
      * The expiration time of the linked Redis hash object (in seconds).
      * The time is reset to this value when Redis object is accessed.
+     * Is also the duration of the lease of every holder of the hash.
      */
     private static final int KEY_TTL = 30;
 
+    /**
+     * The suffix of the key of the registry of holders of a Redis hash.
+     */
+    private static final String HOLDERS_SUFFIX = ":holders";
+
     /**
      * The key for a Redis object that stores the number
      * of RedisMap instances created with the default constructor.
@@ -130,6 +191,11 @@ public class RedisMap implements Map<String, String> {
      */
     private static final String NULL_TOKEN = "NULL_TOKEN";
 
+    /**
+     * The UTF-8 bytes of the {@code NULL_TOKEN}.
+     */
+    private static final byte[] NULL_TOKEN_BYTES = NULL_TOKEN.getBytes(StandardCharsets.UTF_8);
+
     /**
      * The String used to create an "empty entry".
      * Putting this entry to an empty RedisMap makes it visible in Redis,
@@ -138,86 +204,198 @@ public class RedisMap implements Map<String, String> {
     private static final String EMPTY_FIELD_TOKEN = "EMPTY_FIELD_TOKEN";
 
     /**
-     * The number of elements returned by Redis at every scan call.
-     * Used by RedisIterator class.
+     * The prefix of the "empty entry" value of a map with non-default layout.
+     * The value is followed by the number of shards, the change stream option with the epoch
+     * of the stream if the map publishes its changes, and the compacted key prefix separated by a colon.
      */
-    private static final int SCAN_COUNT = 100;
+    private static final String LAYOUT_TOKEN = "LAYOUT_TOKEN:";
+
+    /**
+     * The option of the layout of a map that publishes its changes, followed by the epoch of the stream.
+     * The epoch is chosen at random when the map is created, so a snapshot of the map taken
+     * at a position of its stream is not mistaken for a snapshot of a map created anew.
+     */
+    private static final String CHANGES_OPTION = "+changes=";
+
+    /**
+     * The suffix of the key of the change stream of a map.
+     */
+    private static final String CHANGES_SUFFIX = ":changes";
+
+    /**
+     * The number of latest entries kept in the change stream.
+     * A replica that falls further behind loads a new snapshot.
+     */
+    private static final long CHANGES_LENGTH = 10_000L;
+
+    /**
+     * The interval (in milliseconds) local replicas read the change stream at.
+     */
+    private static final long REPLICA_POLL_INTERVAL = 100L;
+
+    /**
+     * Characters of the key of a map replaced in the name of the snapshot file of its replica.
+     */
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("[^A-Za-z0-9._-]");
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
 
     /**
-     * Connection pool.
+     * The first character of the Redis field of a key that starts with the compacted prefix.
+     * The character is followed by the rest of the key.
      */
-    private static final JedisPool POOL;
+    private static final char PREFIXED_KEY = '\u0001';
 
-    //pool configuration parameters
+    /**
+     * The first character of the Redis field of a key that starts with
+     * one of the reserved characters itself. The character is followed by the key.
+     */
+    private static final char ESCAPED_KEY = '\u0002';
+
+    /**
+     * The infix used for shard key generation.
+     */
+    private static final String SHARD_INFIX = ":shard:";
 
     /**
-     * The upper bound of connections managed by the pool.
+     * The maximum number of concurrent tasks a sharded value scan is split into on platform threads.
+     * On virtual threads, every shard is scanned by a task of its own.
      */
-    //the set value assumes that the number of RedisMap instances equals 10
-    private static final int MAX_TOTAL = 100;
+    private static final int SCAN_PARALLELISM = 4;
 
     /**
-     * The upper bound of connections that can be idle
-     * without being immediately closed.
+     * The number of elements returned by Redis at every scan call.
+     * Used by RedisIterator class.
      */
-    private static final int MAX_IDLE = MAX_TOTAL;
+    private static final int SCAN_COUNT = 100;
 
     /**
-     * The minimum number of idle connections to maintain in the pool.
+     * The number of fields a query script visits at once.
+     * Redis serves other commands between the chunks.
      */
-    //each RedisMap instance needs at least 1 connection to update its expiration time
-    private static final int MIN_IDLE = 10;
+    private static final int QUERY_CHUNK = 1000;
 
     /**
-     * The parameter that determines whether connections are tested
-     * before they are borrowed from the pool.
+     * The number of entries an import sends to Redis at once.
      */
-    private static final boolean TEST_ON_BORROW = true;
+    private static final int IMPORT_CHUNK = 1000;
 
     /**
-     * The parameter that determines whether connections are tested
-     * before they are returned to the pool.
+     * Operation metrics shared by all maps.
      */
-    private static final boolean TEST_ON_RETURN = true;
+    private static final Metrics METRICS = Metrics.INSTANCE;
 
     /**
-     * The parameter that determines whether to block threads
-     * when no connections are available.
+     * The logger of slow operations.
      */
-    private static final boolean BLOCK_WHEN_EXHAUSTED = true;
+    private static final System.Logger LOGGER = System.getLogger(RedisMap.class.getName());
 
     /**
-     * The maximum amount of time (in milliseconds) threads should be blocked
-     * before throwing an exception when the pool is exhausted.
-     * If set to -1, waits indefinitely.
-     * Should be strictly less than KEY_TTL value to prevent Redis hash object
-     * removal due to delayed expiration time update.
+     * The retries and the value size of the operation the current thread executes,
+     * or {@code null} if the thread executes no operation.
      */
-    private static final int MAX_WAIT = 5;
+    private static final ThreadLocal<Call> CALL = new ThreadLocal<>();
 
     /**
-     * The minimum amount of time a connection may remain idle
-     * before it is eligible for eviction if MIN_IDLE instances are available.
+     * Service used to scan groups of shards concurrently and to serve the subscribers of publishers.
      */
-    private static final int SOFT_IDLE_TIME = 30;
+    private static final ExecutorService SHARD_EXECUTOR = Threads.newTaskExecutor(KEY_PREFIX + "-shard-scan");
 
     /**
      * The delay used by RedisMap instance's scheduler.
      */
-    private static final int UPDATE_INTERVAL = KEY_TTL - MAX_WAIT;
+    //a lease survives two missed renewals
+    private static final int UPDATE_INTERVAL = KEY_TTL / 3;
+
+    /**
+     * The codes of the errors Redis replies with while it cannot serve commands for a while,
+     * unlike the errors caused by the command or the stored data, such as WRONGTYPE.
+     */
+    private static final List<String> OVERLOAD_ERRORS = List.of("OOM", "BUSY", "LOADING", "MASTERDOWN", "TRYAGAIN");
 
     /* ---------------- Fields -------------- */
 
     /**
      * Service used to update Redis hash expiration time.
      */
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService scheduler = Threads.newScheduler(KEY_PREFIX + "-heartbeat");
 
     /**
      * The key of the Redis hash object this map is linked to.
      */
     private final String redisKey;
 
+    /**
+     * The keys of the Redis hashes that store the entries of this map.
+     * Consists of the {@code redisKey} alone unless the map is sharded.
+     */
+    private final String[] shardKeys;
+
+    /**
+     * The storage the entries of this map are kept in.
+     */
+    private final RedisMapBackend backend;
+
+    /**
+     * Converts values to the form they are stored in Redis.
+     */
+    private final ValueCodec codec;
+
+    /**
+     * The common key prefix stored as a single character.
+     * Is empty if keys are stored as they are.
+     */
+    private final String keyPrefix;
+
+    /**
+     * The id of the lease of this map in the registry of holders.
+     */
+    private final String holderId = UUID.randomUUID().toString();
+
+    /**
+     * Is set when this map releases its lease.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * The bound of every shard of this map.
+     * Is {@code null} if the map is not bounded.
+     */
+    private final Eviction eviction;
+
+    /**
+     * The key of the stream the changes of this map are published to.
+     * Is {@code null} if the map does not publish its changes.
+     */
+    private final String changesKey;
+
+    /**
+     * The epoch of the change stream of this map, or {@code null} if the map does not publish its changes.
+     */
+    private final String changesEpoch;
+
+    /**
+     * Samples the operations of this map to find its hot and big fields.
+     */
+    private final FieldSampler sampler;
+
+    /**
+     * The latency (in nanoseconds) above which operations are logged, or zero if they are not.
+     */
+    private final long slowOperationThreshold;
+
+    /**
+     * Coalesces concurrent reads of single keys.
+     * Is {@code null} if every read is sent on its own.
+     */
+    private final ReadCoalescer coalescer;
+
+    /**
+     * Limits the number of operations executed at once.
+     * Is {@code null} if the number is unlimited.
+     */
+    private final ConcurrencyLimiter limiter;
+
     //views
     private transient Set<String> keySet;
     private transient Collection<String> values;
@@ -225,26 +403,11 @@ public class RedisMap implements Map<String, String> {
 
     /* ---------------- Public operations -------------- */
 
-    static {
-        JedisPoolConfig config = new JedisPoolConfig();
-        config.setMaxTotal(MAX_TOTAL);
-        config.setMaxIdle(MAX_IDLE);
-        config.setMinIdle(MIN_IDLE);
-        config.setBlockWhenExhausted(BLOCK_WHEN_EXHAUSTED);
-        config.setMaxWaitMillis(Duration.ofSeconds(MAX_WAIT).toMillis());
-        config.setTestOnBorrow(TEST_ON_BORROW);
-        config.setTestOnReturn(TEST_ON_RETURN);
-        config.setSoftMinEvictableIdleTimeMillis(SOFT_IDLE_TIME);
-        POOL = new JedisPool(config);
-    }
-
     /**
      * Constructs an empty {@code RedisMap} linked to a new Redis hash.
      */
     public RedisMap() {
-        redisKey = generateKey();
-        initialize();
-        setScheduler();
+        this(new RedisMapConfig(), RedisMap::generateKey);
     }
 
     /**
@@ -257,9 +420,23 @@ public class RedisMap implements Map<String, String> {
      *      the type of value stored at key with this {@code id} is not hash
      */
     public RedisMap(long id) {
-        redisKey = validateKey(id);
-        initialize();
-        setScheduler();
+        this(id, new RedisMapConfig());
+    }
+
+    /**
+     * Constructs a {@code RedisMap} with the specified configuration linked to a Redis hash
+     * stored at the key with the specified id.
+     * If the key exists, the layout stored with it takes precedence over the configuration.
+     *
+     * @param id the id of the key whose associated value is to be linked to this map
+     * @param config the configuration of this map
+     * @throws NullPointerException if the specified {@code config} is null
+     * @throws IllegalArgumentException if the {@code id} is not a valid id or
+     *      the type of value stored at key with this {@code id} is not hash
+     * @see #RedisMap(long)
+     */
+    public RedisMap(long id, RedisMapConfig config) {
+        this(config, backend -> validateKey(backend, id));
     }
 
     /**
@@ -274,28 +451,302 @@ public class RedisMap implements Map<String, String> {
      *      the type of value stored at {@code key} is not hash
      */
     public RedisMap(String key) {
-        redisKey = validateKey(key);
-        initialize();
+        this(key, new RedisMapConfig());
+    }
+
+    /**
+     * Constructs a {@code RedisMap} with the specified configuration linked to a Redis hash
+     * stored at the specified key.
+     * If the key exists, the layout stored with it takes precedence over the configuration.
+     *
+     * @param key the key whose associated value is to be linked to this map
+     * @param config the configuration of this map
+     * @throws NullPointerException if the specified {@code key} or {@code config} is null
+     * @throws IllegalArgumentException if the {@code key} is not valid or
+     *      the type of value stored at {@code key} is not hash
+     * @see #RedisMap(String)
+     */
+    public RedisMap(String key, RedisMapConfig config) {
+        this(config, backend -> validateKey(backend, key));
+    }
+
+    private RedisMap(RedisMapConfig config, Function<RedisMapBackend, String> keySupplier) {
+        this.backend = config.getBackend() == null ? new JedisBackend(config) : config.getBackend();
+        this.redisKey = keySupplier.apply(backend);
+        this.codec = Objects.requireNonNull(config.getValueCodec());
+        String layout = initialize(layoutToken(config.getShards(), config.getKeyPrefix(),
+                config.isChangeStream() ? UUID.randomUUID().toString() : null));
+        this.shardKeys = assembleShardKeys(parseShards(layout));
+        this.keyPrefix = parseKeyPrefix(layout);
+        this.changesEpoch = parseChangesEpoch(layout);
+        this.changesKey = changesEpoch == null ? null : redisKey + CHANGES_SUFFIX;
+        this.eviction = config.getMaxEntries() == 0L && config.getMaxBytes() == 0L ? null :
+                new Eviction(config.getEvictionPolicy(), ceilDiv(config.getMaxEntries(), shardKeys.length),
+                        ceilDiv(config.getMaxBytes(), shardKeys.length));
+        this.sampler = new FieldSampler(config.getSamplingRate());
+        this.slowOperationThreshold = config.getSlowOperationThreshold().toNanos();
+        //reads of a bounded map record accesses one by one
+        this.coalescer = config.getReadCoalescingWindow().isZero() || eviction != null ? null :
+                new ReadCoalescer(config.getReadCoalescingWindow().toNanos(),
+                        (hash, fields) -> backend.hedgedRead(operations -> operations.hmget(hash, fields)));
+        this.limiter = config.getMaxConcurrency() == 0 ? null : new ConcurrencyLimiter(config.getMaxConcurrency());
+        if (isSharded()) {
+            initializeShards();
+        }
         setScheduler();
     }
 
+    /**
+     * Constructs an empty {@code RedisMap} with the specified configuration linked to a new Redis hash.
+     *
+     * @param config the configuration of the map
+     * @return the new map
+     * @throws NullPointerException if the specified {@code config} is null
+     */
+    public static RedisMap create(RedisMapConfig config) {
+        return new RedisMap(config, RedisMap::generateKey);
+    }
+
     /**
      * Makes an empty {@code RedisMap} visible in Redis.
+     * Returns the layout of the linked hash,
+     * which is set to the specified value if the hash does not exist.
+     */
+    private String initialize(String layout) {
+        return backend.write(operations -> {
+            operations.hsetnx(Map.of(redisKey, Map.of(EMPTY_FIELD_TOKEN, layout)));
+            String token = operations.hget(redisKey, EMPTY_FIELD_TOKEN);
+            return token == null ? layout : token;
+        });
+    }
+
+    /**
+     * Makes empty shards visible in Redis.
      */
-    private void initialize() {
-        try (Jedis jedis = POOL.getResource()) {
-            jedis.hset(redisKey, EMPTY_FIELD_TOKEN, EMPTY_FIELD_TOKEN);
+    private void initializeShards() {
+        Map<String, Map<String, String>> fields = new HashMap<>(shardKeys.length * 2);
+        for (String shardKey : shardKeys) {
+            fields.put(shardKey, Map.of(EMPTY_FIELD_TOKEN, EMPTY_FIELD_TOKEN));
         }
+        backend.write(operations -> {
+            operations.hsetnx(fields);
+            operations.expire(KEY_TTL, shardKeys);
+            return null;
+        });
     }
 
     /**
      * Sets the scheduler to update Redis hash expiration time at regular intervals.
      */
     private void setScheduler() {
+        String[] keys = expiringKeys();
+        //the lease is taken before the map is returned, so that a holder that closes
+        //its map in the meantime does not remove the hash
+        write(Operation.HEARTBEAT, operations -> bound(operations).lease(redisKey + HOLDERS_SUFFIX, holderId,
+                TimeUnit.SECONDS.toMillis(KEY_TTL), keys));
+        long interval = TimeUnit.SECONDS.toNanos(UPDATE_INTERVAL);
+        long[] lastRun = {System.nanoTime()};
         scheduler.scheduleWithFixedDelay(() -> {
-            try (Jedis jedis = POOL.getResource()) {
-                jedis.expire(redisKey, KEY_TTL);
-            }}, 0, UPDATE_INTERVAL, TimeUnit.SECONDS);
+            long start = System.nanoTime();
+            METRICS.recordHeartbeatLag(start - lastRun[0] - interval);
+            try {
+                backend.write(operations -> bound(operations).lease(redisKey + HOLDERS_SUFFIX, holderId,
+                        TimeUnit.SECONDS.toMillis(KEY_TTL), keys));
+            } catch (RuntimeException e) {
+                //a failed task would never run again, so the lease is renewed by the next run
+                METRICS.recordError(Operation.HEARTBEAT);
+            } finally {
+                lastRun[0] = System.nanoTime();
+                METRICS.recordLatency(Operation.HEARTBEAT, lastRun[0] - start);
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Releases the lease this map holds on the linked Redis hash and stops renewing it.
+     * If no other open map is linked to the hash, the hash is removed.
+     * The map should not be used after it has been closed.
+     * Subsequent calls have no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.shutdownNow();
+        String[] keys = expiringKeys();
+        write(Operation.HEARTBEAT, operations -> bound(operations).release(redisKey + HOLDERS_SUFFIX, holderId, keys));
+    }
+
+    /**
+     * Returns the keys of all Redis objects linked to this map.
+     */
+    private String[] expiringKeys() {
+        List<String> keys = new ArrayList<>(Arrays.asList(shardKeys));
+        if (isSharded()) {
+            keys.add(redisKey);
+        }
+        if (changesKey != null) {
+            keys.add(changesKey);
+        }
+        return keys.toArray(new String[0]);
+    }
+
+    /**
+     * Executes a read-only operation on the backend,
+     * which may route it to a replica.
+     */
+    private <T> T read(Operation operation, Function<HashOperations, T> function) {
+        return read(operation, null, function);
+    }
+
+    /**
+     * Executes a read-only operation on the specified key on the backend,
+     * which may route it to a replica.
+     */
+    private <T> T read(Operation operation, String key, Function<HashOperations, T> function) {
+        return call(operation, key, () -> backend.read(function));
+    }
+
+    /**
+     * Reads the value of the specified key, coalescing the read with the concurrent ones
+     * if this map coalesces reads.
+     *
+     * @return the decoded value, or {@code null} if there is no such key
+     */
+    private String readField(Operation operation, String key) {
+        if (coalescer == null) {
+            return call(operation, key,
+                    () -> decode(backend.hedgedRead(operations -> operations.hget(shardKey(key), encodeKey(key)))));
+        }
+        return call(operation, key, () -> decode(coalescer.get(shardKey(key), encodeKey(key))));
+    }
+
+    /**
+     * Executes a call on the specified key measuring its latency.
+     */
+    private <T> T call(Operation operation, String key, Supplier<T> supplier) {
+        //heartbeats keep the lease of the map and are never rejected,
+        //operations nested in another one, as by a remapping function, run within its limit
+        ConcurrencyLimiter limiter = operation == Operation.HEARTBEAT || CALL.get() != null ? null : this.limiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            METRICS.recordRejection();
+            int limit = limiter.getLimit();
+            throw new RedisMapOverloadException("Concurrency limit exceeded: " + limit, limit);
+        }
+        Call call = Call.start();
+        boolean failed = false;
+        try {
+            return supplier.get();
+        } catch (RuntimeException e) {
+            METRICS.recordError(operation);
+            failed = isServerFailure(e);
+            throw e;
+        } finally {
+            call.end();
+            long latency = finish(operation, key, call);
+            if (limiter != null) {
+                limiter.release(call.start, latency, failed);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the exception tells of a failure of Redis or of the connection to it,
+     * including an exceeded operation timeout, rather than of the caller or the stored data.
+     * Error replies are told apart by their codes, see {@link #OVERLOAD_ERRORS}.
+     * Such failures shrink the concurrency limit.
+     */
+    private static boolean isServerFailure(RuntimeException e) {
+        if (e instanceof JedisConnectionException) {
+            return true;
+        }
+        if (!(e instanceof JedisDataException) || e.getMessage() == null) {
+            return false;
+        }
+        String message = e.getMessage();
+        for (String code : OVERLOAD_ERRORS) {
+            if (message.equals(code) || message.startsWith(code + " ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans a page of fields of the hash as a metered call.
+     */
+    private ScanPage scan(String hash, String cursor, int count, String match) {
+        ScanPage page = call(Operation.SCAN, null, () -> backend.scan(hash, cursor, count, match));
+        METRICS.recordScanPage(page.getEntries().size());
+        return page;
+    }
+
+    /**
+     * Executes an operation on the primary.
+     */
+    private <T> T write(Operation operation, Function<HashOperations, T> function) {
+        return write(operation, null, function);
+    }
+
+    /**
+     * Executes an operation on the specified key on the primary.
+     */
+    private <T> T write(Operation operation, String key, Function<HashOperations, T> function) {
+        return call(operation, key, () -> backend.write(function));
+    }
+
+    /**
+     * Records the latency of the operation, samples the key it was executed on
+     * and logs the operation if it is slow.
+     *
+     * @return the latency (in nanoseconds)
+     */
+    private long finish(Operation operation, String key, Call call) {
+        long latency = System.nanoTime() - call.start;
+        METRICS.recordLatency(operation, latency);
+        if (key != null && sampler.sample()) {
+            sampler.record(key, call.valueSize);
+        }
+        if (slowOperationThreshold != 0L && latency >= slowOperationThreshold) {
+            int retries = call.retries;
+            LOGGER.log(System.Logger.Level.WARNING, () -> "Slow " + operation
+                    + (key == null ? "" : " of key " + key) + " in map " + redisKey + ": "
+                    + TimeUnit.NANOSECONDS.toMillis(latency) + " ms, " + retries + " retries");
+        }
+        return latency;
+    }
+
+    /**
+     * Records a retry of an optimistic transaction of the current operation.
+     */
+    private static void retry(Operation operation) {
+        METRICS.recordRetry(operation);
+        Call call = CALL.get();
+        if (call != null) {
+            call.retries++;
+        }
+    }
+
+    /**
+     * Returns the operations that keep the shards of this map within its bound
+     * and publish the changes of the map.
+     */
+    private HashOperations bound(HashOperations operations) {
+        HashOperations bounded = eviction == null ? operations : operations.bounded(eviction);
+        return changesKey == null ? bounded : bounded.publishing(changesKey, CHANGES_LENGTH);
+    }
+
+    /**
+     * Executes an operation that returns nothing on the primary.
+     *
+     * @see #write(Operation, Function)
+     */
+    private void execute(Operation operation, Consumer<HashOperations> consumer) {
+        write(operation, operations -> {
+            consumer.accept(operations);
+            return null;
+        });
     }
 
     /**
@@ -321,9 +772,16 @@ public class RedisMap implements Map<String, String> {
      * Assumes that the "empty entry" is in place.
      */
     private long getHashSize() {
-        try (Jedis jedis = POOL.getResource()) {
-            return Math.max(jedis.hlen(redisKey) - 1, 0);
-        }
+        return read(Operation.SIZE, operations -> {
+            if (!isSharded()) {
+                return Math.max(operations.hlen(redisKey) - 1, 0);
+            }
+            long size = 0L;
+            for (long length : operations.hlenAll(shardKeys)) {
+                size += Math.max(length - 1, 0);
+            }
+            return size;
+        });
     }
 
     /**
@@ -345,9 +803,12 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.containsKey and related methods.
      */
     private boolean containsHashKey(String key) {
-        try (Jedis jedis = POOL.getResource()) {
-            return jedis.hexists(redisKey, key);
+        if (coalescer != null) {
+            return readField(Operation.CONTAINS_KEY, key) != null;
         }
+        return read(Operation.CONTAINS_KEY, key, operations -> {
+            return operations.hexists(shardKey(key), encodeKey(key));
+        });
     }
 
     /**
@@ -369,10 +830,33 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.containsValue and related methods.
      */
     private boolean containsHashValue(String value) {
-        Iterator<List<Entry<String, String>>> iterator = new RedisIterator();
+        if (!isSharded()) {
+            return containsHashValue(value, shardKeys);
+        }
+        int parallelism = Threads.VIRTUAL ? shardKeys.length : Math.min(SCAN_PARALLELISM, shardKeys.length);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            String[] group = new String[(shardKeys.length - i + parallelism - 1) / parallelism];
+            for (int j = 0; j < group.length; j++) {
+                group[j] = shardKeys[i + j * parallelism];
+            }
+            futures.add(CompletableFuture.supplyAsync(() -> containsHashValue(value, group), SHARD_EXECUTOR));
+        }
+        boolean found = false;
+        for (CompletableFuture<Boolean> future : futures) {
+            found |= future.join();
+        }
+        return found;
+    }
+
+    /**
+     * Scans the specified shards for the value.
+     */
+    private boolean containsHashValue(String value, String[] shards) {
+        Iterator<List<Entry<String, String>>> iterator = new RedisIterator(shards);
         while (iterator.hasNext()) {
             for (Entry<String, String> entry : iterator.next()) {
-                if (entry.getValue().equals(value)) {
+                if (!EMPTY_FIELD_TOKEN.equals(entry.getKey()) && decode(entry.getValue()).equals(value)) {
                     return true;
                 }
             }
@@ -406,10 +890,15 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.get and related methods.
      */
     private Entry<String, String> getHashField(String key) {
-        try (Jedis jedis = POOL.getResource()) {
-            String value = jedis.hget(redisKey, key);
+        if (eviction == null) {
+            String value = readField(Operation.GET, key);
             return value == null ? null : new AbstractMap.SimpleEntry<>(key, value);
         }
+        //reads of a bounded map record accesses
+        return write(Operation.GET, key, operations -> {
+            String value = decode(bound(operations).hget(shardKey(key), encodeKey(key)));
+            return value == null ? null : new AbstractMap.SimpleEntry<>(key, value);
+        });
     }
 
     /**
@@ -434,22 +923,25 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.put and related methods.
      */
     private String setField(String key, String value, boolean onlyIfAbsent) {
-        try (Jedis jedis = POOL.getResource()) {
+        Operation operation = onlyIfAbsent ? Operation.PUT_IF_ABSENT : Operation.PUT;
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(operation, key, operations -> {
+            if (!onlyIfAbsent) {
+                return decode(bound(operations).getAndSet(hash, field, encode(value)));
+            }
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (!onlyIfAbsent || (output == null || NULL_TOKEN.equals(output))) {
-                    Transaction transaction = jedis.multi();
-                    transaction.hset(redisKey, key, value);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (output != null && !NULL_TOKEN.equals(output)) {
+                    return output;
+                }
+                if (bound(operations).compareAndSet(hash, field, stored, encode(value))) {
+                    return output;
                 }
-                jedis.unwatch();
-                return output;
+                retry(operation);
             }
-        }
+        });
     }
 
     /**
@@ -475,25 +967,25 @@ public class RedisMap implements Map<String, String> {
      * Attempts to atomize remove operation.
      */
     private Entry<String, String> removeField(String key, String value) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.REMOVE, key, operations -> {
+            if (value == null) {
+                String output = decode(bound(operations).getAndSet(hash, field, null));
+                return output == null ? null : new AbstractMap.SimpleEntry<>(key, output);
+            }
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (output != null) {
-                    if (value == null || output.equals(value)) {
-                        Transaction transaction = jedis.multi();
-                        transaction.hdel(redisKey, key);
-                        List<Object> results = transaction.exec();
-                        if (results == null) {
-                            continue;
-                        }
-                        return new AbstractMap.SimpleEntry<>(key, output);
-                    }
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (output == null || !output.equals(value)) {
+                    return null;
                 }
-                jedis.unwatch();
-                return null;
+                if (bound(operations).compareAndSet(hash, field, stored, null)) {
+                    return new AbstractMap.SimpleEntry<>(key, output);
+                }
+                retry(Operation.REMOVE);
             }
-        }
+        });
     }
 
     /**
@@ -521,9 +1013,13 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.putAll.
      */
     private void setAllFields(Map<String, String> map) {
-        try (Jedis jedis = POOL.getResource()) {
-            jedis.hset(redisKey, map);
+        if (map.isEmpty()) {
+            return;
         }
+        Map<String, Map<String, String>> shards = map.entrySet().stream()
+                .collect(Collectors.groupingBy(e -> shardKey(e.getKey()),
+                        Collectors.toMap(e -> encodeKey(e.getKey()), e -> encode(e.getValue()))));
+        execute(Operation.PUT_ALL, operations -> bound(operations).hset(shards));
     }
 
     /**
@@ -539,13 +1035,14 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.clear and related methods.
      */
     private void clearHash() {
-        try (Jedis jedis = POOL.getResource()) {
-            Transaction transaction = jedis.multi();
-            transaction.unlink(redisKey);
-            transaction.hset(redisKey, EMPTY_FIELD_TOKEN, EMPTY_FIELD_TOKEN);
-            transaction.expire(redisKey, KEY_TTL);
-            transaction.exec();
+        Map<String, Map<String, String>> contents = new HashMap<>(shardKeys.length * 2 + 1);
+        contents.put(redisKey, Map.of(EMPTY_FIELD_TOKEN, layoutToken(shardKeys.length, keyPrefix, changesEpoch)));
+        if (isSharded()) {
+            for (String shardKey : shardKeys) {
+                contents.put(shardKey, Map.of(EMPTY_FIELD_TOKEN, EMPTY_FIELD_TOKEN));
+            }
         }
+        execute(Operation.CLEAR, operations -> bound(operations).replace(contents, KEY_TTL));
     }
 
     /**
@@ -781,9 +1278,10 @@ public class RedisMap implements Map<String, String> {
      * Implements removeAll method.
      */
     private long removeAllFields(String[] keys) {
-        try (Jedis jedis = POOL.getResource()) {
-            return jedis.hdel(redisKey, keys);
-        }
+        Map<String, List<String>> shards = Arrays.stream(keys)
+                .collect(Collectors.groupingBy(this::shardKey,
+                        Collectors.mapping(this::encodeKey, Collectors.toList())));
+        return write(Operation.REMOVE_ALL, operations -> bound(operations).hdel(shards));
     }
 
     /**
@@ -906,6 +1404,31 @@ public class RedisMap implements Map<String, String> {
         }
     }
 
+    /**
+     * Performs the given action for each entry of this map, in the order the entries come from Redis.
+     * Unlike {@link #forEach}, the method does not check that a key is still present before
+     * the action, and passes the same mutable entry object to every call of the action:
+     * the entry is only valid until the action returns and must be copied to be kept.
+     * Pages of entries are consumed as they are, so iterating over a map allocates
+     * next to nothing beyond the pages themselves.
+     *
+     * <p>As with the iterators of this map, every entry present during the whole iteration
+     * is passed once; entries added or removed during the iteration may or may not be passed.
+     *
+     * @param action the action to be performed for each entry
+     * @throws NullPointerException if the specified action is null
+     */
+    public void forEachEntry(Consumer<? super Entry<String, String>> action) {
+        Objects.requireNonNull(action);
+        ReusedEntry entry = new ReusedEntry();
+        EntryIterator iterator = new EntryIterator();
+        while (iterator.hasNext()) {
+            entry.value = tokenToNull(decode(iterator.nextRaw().getValue()));
+            entry.key = iterator.getCurrentKey();
+            action.accept(entry);
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -928,25 +1451,23 @@ public class RedisMap implements Map<String, String> {
      */
     private void replaceFieldValue(String key,
                                    BiFunction<? super String, ? super String, ? extends String> function) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        execute(Operation.REPLACE_ALL, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (output != null) {
-                    String value = function.apply(key, tokenToNull(output));
-                    value = (String) nullToToken(value);
-                    Transaction transaction = jedis.multi();
-                    transaction.hset(redisKey, key, value);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (output == null) {
                     return;
                 }
-                jedis.unwatch();
-                return;
+                String value = function.apply(key, tokenToNull(output));
+                value = (String) nullToToken(value);
+                if (bound(operations).compareAndSet(hash, field, stored, encode(value))) {
+                    return;
+                }
+                retry(Operation.REPLACE_ALL);
             }
-        }
+        });
     }
 
     @Override
@@ -969,25 +1490,21 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.replace methods.
      */
     private Entry<String, String> replaceFieldValue(String key, String oldValue, String newValue) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.REPLACE, key, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (output != null) {
-                    if (oldValue == null || output.equals(oldValue)) {
-                        Transaction transaction = jedis.multi();
-                        transaction.hset(redisKey, key, newValue);
-                        List<Object> results = transaction.exec();
-                        if (results == null) {
-                            continue;
-                        }
-                        return new AbstractMap.SimpleEntry<>(key, output);
-                    }
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (output == null || (oldValue != null && !output.equals(oldValue))) {
+                    return null;
                 }
-                jedis.unwatch();
-                return null;
+                if (bound(operations).compareAndSet(hash, field, stored, encode(newValue))) {
+                    return new AbstractMap.SimpleEntry<>(key, output);
+                }
+                retry(Operation.REPLACE);
             }
-        }
+        });
     }
 
     @Override
@@ -1023,25 +1540,21 @@ public class RedisMap implements Map<String, String> {
      * Implements RedisMap.computeIfAbsent.
      */
     private String resetFieldIfAbsent(String key, String value) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.COMPUTE_IF_ABSENT, key, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (value != null)  {
-                    if (output == null || NULL_TOKEN.equals(output)) {
-                        Transaction transaction = jedis.multi();
-                        transaction.hset(redisKey, key, value);
-                        List<Object> results = transaction.exec();
-                        if (results == null) {
-                            continue;
-                        }
-                        return value;
-                    }
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (value == null || (output != null && !NULL_TOKEN.equals(output))) {
+                    return output;
+                }
+                if (bound(operations).compareAndSet(hash, field, stored, encode(value))) {
+                    return value;
                 }
-                jedis.unwatch();
-                return output;
+                retry(Operation.COMPUTE_IF_ABSENT);
             }
-        }
+        });
     }
 
     @Override
@@ -1060,33 +1573,22 @@ public class RedisMap implements Map<String, String> {
      */
     private String resetFieldIfPresent(String key,
                                        BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.COMPUTE_IF_PRESENT, key, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
-                if (output != null && !NULL_TOKEN.equals(output)) {
-                    String value = remappingFunction.apply(key, output);
-                    if (value != null) {
-                        Transaction transaction = jedis.multi();
-                        transaction.hset(redisKey, key, value);
-                        List<Object> results = transaction.exec();
-                        if (results == null) {
-                            continue;
-                        }
-                        return value;
-                    }
-                    Transaction transaction = jedis.multi();
-                    transaction.hdel(redisKey, key);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
-                    return null;
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
+                if (output == null || NULL_TOKEN.equals(output)) {
+                    return output;
                 }
-                jedis.unwatch();
-                return output;
+                String value = remappingFunction.apply(key, output);
+                if (bound(operations).compareAndSet(hash, field, stored, value == null ? null : encode(value))) {
+                    return value;
+                }
+                retry(Operation.COMPUTE_IF_PRESENT);
             }
-        }
+        });
     }
 
     @Override
@@ -1104,33 +1606,22 @@ public class RedisMap implements Map<String, String> {
      */
     private String resetField(String key,
                               BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.COMPUTE, key, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
                 String value = remappingFunction.apply(key, tokenToNull(output));
-                if (value != null) {
-                    Transaction transaction = jedis.multi();
-                    transaction.hset(redisKey, key, value);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
-                    return value;
-                }
-                if (output != null) {
-                    Transaction transaction = jedis.multi();
-                    transaction.hdel(redisKey, key);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
+                if (value == null && output == null) {
                     return null;
                 }
-                jedis.unwatch();
-                return null;
+                if (bound(operations).compareAndSet(hash, field, stored, value == null ? null : encode(value))) {
+                    return value;
+                }
+                retry(Operation.COMPUTE);
             }
-        }
+        });
     }
 
     @Override
@@ -1148,34 +1639,571 @@ public class RedisMap implements Map<String, String> {
      */
     private String mergeField(String key, String value,
                               BiFunction<? super String, ? super String, ? extends String> remappingFunction) {
-        try (Jedis jedis = POOL.getResource()) {
+        String hash = shardKey(key);
+        String field = encodeKey(key);
+        return write(Operation.MERGE, key, operations -> {
             while (true) {
-                jedis.watch(redisKey);
-                String output = jedis.hget(redisKey, key);
+                String stored = operations.hget(hash, field);
+                String output = decode(stored);
                 String newValue;
                 if (output == null || NULL_TOKEN.equals(output)) {
                     newValue = value;
                 } else {
                     newValue = remappingFunction.apply(output, value);
                 }
-                if (newValue != null) {
-                    Transaction transaction = jedis.multi();
-                    transaction.hset(redisKey, key, newValue);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
-                    }
+                String encoded = newValue == null ? null : encode(newValue);
+                if (bound(operations).compareAndSet(hash, field, stored, encoded)) {
                     return newValue;
                 }
-                Transaction transaction = jedis.multi();
-                transaction.hdel(redisKey, key);
-                List<Object> results = transaction.exec();
-                if (results == null) {
+                retry(Operation.MERGE);
+            }
+        });
+    }
+
+    //Counters
+
+    /**
+     * Atomically adds the specified delta to the integer value the key is mapped to.
+     * If the map contains no mapping for the key, the key is mapped to the delta.
+     * Unlike {@code merge}, the operation is executed by a single Redis command
+     * and never retries under contention.
+     *
+     * <p>The value is stored as a decimal number and is not passed through the value codec.
+     *
+     * @param key the key whose value is to be incremented
+     * @param delta the value to be added
+     * @return the value the key is mapped to after the increment
+     * @throws NumberFormatException if the key is mapped to a value that is not
+     *      a 64-bit integer or the result overflows
+     */
+    public long incrementBy(String key, long delta) {
+        String token = (String) nullToToken(key);
+        try {
+            return write(Operation.INCREMENT, token,
+                    operations -> bound(operations).hincrBy(shardKey(token), encodeKey(token), delta));
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Illegal counter value for key " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Atomically adds the specified delta to the numeric value the key is mapped to.
+     * If the map contains no mapping for the key, the key is mapped to the delta.
+     *
+     * <p>The value is stored as a decimal number and is not passed through the value codec.
+     *
+     * @param key the key whose value is to be incremented
+     * @param delta the value to be added
+     * @return the value the key is mapped to after the increment
+     * @throws NumberFormatException if the key is mapped to a value that is not a number
+     *      or the result is not finite
+     */
+    public double incrementByFloat(String key, double delta) {
+        String token = (String) nullToToken(key);
+        try {
+            return write(Operation.INCREMENT, token,
+                    operations -> bound(operations).hincrByFloat(shardKey(token), encodeKey(token), delta));
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Illegal counter value for key " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Atomically adds the specified deltas to the integer values the keys are mapped to,
+     * as if by calling {@link #incrementBy} for every entry of the specified map.
+     * The increments are applied in a single transaction, so no other operation
+     * observes some of them applied and others not. As with Redis transactions,
+     * a failed increment does not roll back the others.
+     *
+     * @param deltas the keys and the values to be added
+     * @return the keys and the values they are mapped to after the increment
+     * @throws NullPointerException if the specified map or any of its values is null
+     * @throws NumberFormatException if any of the keys is mapped to a value that is not
+     *      a 64-bit integer or the result overflows
+     */
+    public Map<String, Long> incrementAll(Map<String, Long> deltas) {
+        Map<String, Long> output = new HashMap<>(deltas.size() * 2);
+        if (deltas.isEmpty()) {
+            return output;
+        }
+        Map<String, String[]> fields = new HashMap<>(deltas.size() * 2);
+        Map<String, Map<String, Long>> shards = new HashMap<>();
+        deltas.forEach((key, delta) -> {
+            String token = (String) nullToToken(key);
+            String[] field = {shardKey(token), encodeKey(token)};
+            shards.computeIfAbsent(field[0], k -> new HashMap<>()).put(field[1], Objects.requireNonNull(delta));
+            fields.put(key, field);
+        });
+        Map<String, Map<String, Long>> results;
+        try {
+            results = write(Operation.INCREMENT, operations -> bound(operations).hincrByAll(shards));
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Illegal counter value: " + e.getMessage());
+        }
+        fields.forEach((key, field) -> output.put(key, results.get(field[0]).get(field[1])));
+        return output;
+    }
+
+    //Batches
+
+    /**
+     * Applies the operations recorded by the specified action to this map atomically:
+     * no other operation observes some of them applied and others not.
+     * The operations, including the conditional ones, are executed by Redis
+     * in a single round trip, so none of them retries under contention.
+     *
+     * <p>Conditions comparing values compare their stored form, which requires
+     * the value codec to encode equal values equally.
+     *
+     * @param action the action that records the operations
+     * @return the value every operation found, in the order the operations were recorded
+     * @throws NullPointerException if the specified action is null
+     * @throws UnsupportedOperationException if the map is bounded
+     */
+    public List<String> atomically(Consumer<Batch> action) {
+        Batch batch = new Batch();
+        action.accept(batch);
+        List<FieldUpdate> updates = new ArrayList<>(batch.getCommands().size());
+        for (Batch.Command command : batch.getCommands()) {
+            String key = (String) nullToToken(command.key);
+            String hash = shardKey(key);
+            String field = encodeKey(key);
+            String value = encode((String) nullToToken(command.value));
+            switch (command.kind) {
+                case PUT:
+                    updates.add(FieldUpdate.set(hash, field, value));
+                    break;
+                case PUT_IF_ABSENT:
+                    updates.add(FieldUpdate.setIf(hash, field, value, null, NULL_TOKEN));
+                    break;
+                case REPLACE:
+                    updates.add(FieldUpdate.setUnless(hash, field, value, (String) null));
+                    break;
+                case REPLACE_IF_EQUAL:
+                    updates.add(FieldUpdate.setIf(hash, field, value, encode((String) nullToToken(command.expected))));
+                    break;
+                case REMOVE:
+                    updates.add(FieldUpdate.set(hash, field, null));
+                    break;
+                case REMOVE_IF_EQUAL:
+                    updates.add(FieldUpdate.setIf(hash, field, null, encode((String) nullToToken(command.expected))));
+                    break;
+                default:
+                    throw new IllegalStateException("Illegal command: " + command.kind);
+            }
+        }
+        List<String> output = new ArrayList<>(updates.size());
+        if (updates.isEmpty()) {
+            return output;
+        }
+        for (String result : write(Operation.BATCH, operations -> bound(operations).hbatch(updates))) {
+            output.add(tokenToNull(decode(result)));
+        }
+        return output;
+    }
+
+    //Export and import
+
+    /**
+     * Writes all entries of this map to the specified file in the binary format.
+     *
+     * @param path the file, which is created or replaced
+     * @return the number of written entries
+     * @throws IOException if an I/O error occurs
+     * @see #exportTo(Path, ExportFormat, boolean)
+     */
+    public long exportTo(Path path) throws IOException {
+        return exportTo(path, ExportFormat.BINARY, false);
+    }
+
+    /**
+     * Writes all entries of this map to the specified file.
+     * Entries are written page by page as they are scanned, so the memory taken
+     * by the export does not depend on the size of the map. As with iterators,
+     * the file reflects the state of the map at some point at/since the start of the export;
+     * a key may be written more than once if the map is resized meanwhile.
+     *
+     * @param path the file, which is created or replaced
+     * @param format the format of the file
+     * @param compressed {@code true} to compress the file with GZIP
+     * @return the number of written entries
+     * @throws IOException if an I/O error occurs
+     */
+    public long exportTo(Path path, ExportFormat format, boolean compressed) throws IOException {
+        long count = 0L;
+        try (EntryFile.EntryWriter writer = new EntryFile.EntryWriter(path, format, compressed)) {
+            Iterator<List<Entry<String, String>>> iterator = new RedisIterator();
+            while (iterator.hasNext()) {
+                for (Entry<String, String> entry : iterator.next()) {
+                    if (!EMPTY_FIELD_TOKEN.equals(entry.getKey())) {
+                        writer.write(tokenToNull(decodeKey(entry.getKey())), tokenToNull(decode(entry.getValue())));
+                        count++;
+                    }
+                }
+            }
+            writer.finish();
+        }
+        return count;
+    }
+
+    /**
+     * Copies all entries of the specified file written by {@link #exportTo} to this map,
+     * replacing the values of the keys that are already present.
+     * The format of the file is recognized by its contents. Entries are sent to Redis
+     * in chunks as they are read, each chunk applied atomically as by {@code putAll};
+     * the import as a whole is not atomic.
+     *
+     * @param path the file
+     * @return the number of read entries
+     * @throws IOException if an I/O error occurs or the file is truncated or malformed,
+     *      in which case the chunks sent before the error remain in the map;
+     *      see {@link ExportFormat#NDJSON} for the truncation that is not detected
+     */
+    public long importFrom(Path path) throws IOException {
+        long count = 0L;
+        try (EntryFile.EntryReader reader = new EntryFile.EntryReader(path)) {
+            Map<String, String> chunk = new HashMap<>(IMPORT_CHUNK * 2);
+            Entry<String, String> entry;
+            while ((entry = reader.next()) != null) {
+                chunk.put((String) nullToToken(entry.getKey()), (String) nullToToken(entry.getValue()));
+                count++;
+                if (chunk.size() == IMPORT_CHUNK) {
+                    setAllFields(chunk);
+                    chunk.clear();
+                }
+            }
+            setAllFields(chunk);
+        }
+        return count;
+    }
+
+    //Publishers
+
+    /**
+     * Returns a publisher of all entries of this map.
+     * Every subscriber gets its own scan of the map, which fetches a page of entries
+     * only when the subscriber has requested more entries than are left from the previous page,
+     * asking Redis for no more entries than requested. Redis may return more, as it returns
+     * small hashes whole; the entries beyond the request are kept until they are requested.
+     * The scan stops when the subscription is cancelled.
+     * Entries are fetched and delivered on a shared pool of daemon threads, one subscriber at a time;
+     * no thread is taken while the subscriber does not request entries.
+     *
+     * <p>As with iterators, the subscriber observes the state of the map at some point
+     * at/since the subscription, and every key is delivered once.
+     * An error of Redis, or an exception thrown by {@code onNext}, terminates the subscription
+     * with {@code onError}.
+     *
+     * @return the publisher
+     */
+    public Flow.Publisher<Entry<String, String>> publishEntries() {
+        return subscriber -> subscribe(subscriber, Function.identity());
+    }
+
+    /**
+     * Returns a publisher of all keys of this map.
+     * As publishers may not deliver {@code null}, the {@code null} key is skipped;
+     * it is delivered by {@link #publishEntries()}.
+     *
+     * @return the publisher
+     * @see #publishEntries()
+     */
+    public Flow.Publisher<String> publishKeys() {
+        return subscriber -> subscribe(subscriber, Entry::getKey);
+    }
+
+    /**
+     * Returns a publisher of all values of this map.
+     * As publishers may not deliver {@code null}, {@code null} values are skipped;
+     * they are delivered by {@link #publishEntries()}.
+     *
+     * @return the publisher
+     * @see #publishEntries()
+     */
+    public Flow.Publisher<String> publishValues() {
+        return subscriber -> subscribe(subscriber, Entry::getValue);
+    }
+
+    private <T> void subscribe(Flow.Subscriber<? super T> subscriber, Function<Entry<String, String>, T> mapper) {
+        subscriber.onSubscribe(new ScanSubscription<>(Objects.requireNonNull(subscriber), mapper));
+    }
+
+    //Pattern scans
+
+    /**
+     * Returns the keys of this map that match the glob-style pattern with the syntax
+     * of the Redis {@code MATCH} option: {@code *} matches any sequence of characters,
+     * {@code ?} matches any character, {@code [abc]}, {@code [a-z]} and {@code [^a]} match
+     * a character of a class, and {@code \} escapes the character following it.
+     * The {@code null} key matches no pattern.
+     *
+     * <p>The pattern is passed to HSCAN, so only the matching entries are sent by Redis.
+     * If the map compacts a key prefix, this holds for the patterns that spell the prefix
+     * literally or cannot match the keys with the prefix; the others are matched by the client.
+     * Since Redis matches {@code ?} and classes against UTF-8 bytes rather than characters,
+     * they are passed to Redis as {@code *}, and the keys it returns are matched by the client,
+     * so a pattern matches the same keys on every backend.
+     * As with iterators, the result reflects the state of the map at some point at/since the call.
+     *
+     * @param pattern the pattern
+     * @return a new set of the matching keys
+     * @see #keysWithPrefix
+     */
+    public Set<String> keysMatching(String pattern) {
+        return entriesMatching(pattern).keySet();
+    }
+
+    /**
+     * Returns the entries of this map whose keys match the glob-style pattern.
+     *
+     * @param pattern the pattern
+     * @return a new map of the matching entries
+     * @see #keysMatching
+     */
+    public Map<String, String> entriesMatching(String pattern) {
+        Objects.requireNonNull(pattern);
+        Map<String, String> result = new HashMap<>();
+        Iterator<List<Entry<String, String>>> iterator = new RedisIterator(shardKeys, fieldPattern(pattern));
+        while (iterator.hasNext()) {
+            for (Entry<String, String> entry : iterator.next()) {
+                if (EMPTY_FIELD_TOKEN.equals(entry.getKey()) || NULL_TOKEN.equals(entry.getKey())) {
                     continue;
                 }
-                return null;
+                String key = decodeKey(entry.getKey());
+                //the key is checked again if the pattern could not be passed to Redis as is
+                if (Glob.matches(pattern, key)) {
+                    result.put(key, tokenToNull(decode(entry.getValue())));
+                }
             }
         }
+        return result;
+    }
+
+    /**
+     * Returns the keys of this map that start with the specified prefix.
+     *
+     * @param prefix the prefix
+     * @return a new set of the matching keys
+     * @see #keysMatching
+     */
+    public Set<String> keysWithPrefix(String prefix) {
+        return keysMatching(Glob.escape(prefix) + "*");
+    }
+
+    /**
+     * Returns the entries of this map whose keys start with the specified prefix.
+     *
+     * @param prefix the prefix
+     * @return a new map of the matching entries
+     * @see #entriesMatching
+     */
+    public Map<String, String> entriesWithPrefix(String prefix) {
+        return entriesMatching(Glob.escape(prefix) + "*");
+    }
+
+    //Queries
+
+    /**
+     * Returns the number of the values of this map that pass the filter,
+     * and the sum and the bounds of those of them that are numbers.
+     * The values are scanned by scripts executed by Redis in chunks of about
+     * a thousand fields, so only the aggregates are sent over the network
+     * and Redis serves other commands between the chunks. If the map is configured
+     * with a value codec other than {@link ValueCodec#IDENTITY}, the values are
+     * decoded and filtered by the client instead.
+     *
+     * <p>As with iterators, the result reflects the state of the map at some point at/since the call;
+     * a value may be counted more than once if the map is resized meanwhile.
+     *
+     * @param filter the filter of the values
+     * @return the aggregate
+     */
+    public ValueAggregate aggregate(ValueFilter filter) {
+        return query(filter, null);
+    }
+
+    /**
+     * Returns the number of the values of this map that pass the filter.
+     *
+     * @param filter the filter of the values
+     * @return the number of values
+     * @see #aggregate
+     */
+    public long count(ValueFilter filter) {
+        return aggregate(filter).getCount();
+    }
+
+    /**
+     * Returns the entries of this map whose values pass the filter.
+     * Only the matching entries are sent by Redis.
+     *
+     * @param filter the filter of the values
+     * @return a new map of the matching entries
+     * @see #aggregate
+     */
+    public Map<String, String> filter(ValueFilter filter) {
+        Map<String, String> entries = new HashMap<>();
+        query(filter, entries);
+        return entries;
+    }
+
+    /**
+     * Implements RedisMap.aggregate and related methods.
+     *
+     * @param entries the map to put the entries that pass the filter to, or {@code null}
+     */
+    private ValueAggregate query(ValueFilter filter, Map<String, String> entries) {
+        ValueAggregate aggregate = ValueAggregate.EMPTY;
+        if (codec != ValueCodec.IDENTITY) {
+            Iterator<List<Entry<String, String>>> iterator = new RedisIterator();
+            while (iterator.hasNext()) {
+                for (Entry<String, String> entry : iterator.next()) {
+                    if (EMPTY_FIELD_TOKEN.equals(entry.getKey())) {
+                        continue;
+                    }
+                    String value = tokenToNull(decode(entry.getValue()));
+                    if (filter.test(value)) {
+                        aggregate = aggregate.add(value);
+                        if (entries != null) {
+                            entries.put(tokenToNull(decodeKey(entry.getKey())), value);
+                        }
+                    }
+                }
+            }
+            return aggregate;
+        }
+        //null values are stored as the null token, which passes no filter but the ones for null
+        ValueFilter stored = filter.getKind() == ValueFilter.Kind.EQUAL && filter.getOperand() == null ?
+                ValueFilter.equalTo(NULL_TOKEN) :
+                filter.getKind() == ValueFilter.Kind.PREFIX ? filter.excluding(NULL_TOKEN) : filter;
+        for (String shardKey : shardKeys) {
+            String cursor = "0";
+            do {
+                String current = cursor;
+                //HSCAN cursors are only valid on the server that returned them, so the primary serves every chunk
+                ValuePage page = write(Operation.QUERY, operations ->
+                        operations.hquery(shardKey, current, QUERY_CHUNK, EMPTY_FIELD_TOKEN, stored, entries != null));
+                aggregate = aggregate.combine(page.getAggregate());
+                if (entries != null) {
+                    for (Entry<String, String> entry : page.getEntries()) {
+                        entries.put(tokenToNull(decodeKey(entry.getKey())), tokenToNull(entry.getValue()));
+                    }
+                }
+                cursor = page.getCursor();
+            } while (!"0".equals(cursor));
+        }
+        return aggregate;
+    }
+
+    //Replication
+
+    /**
+     * Returns a read-only view of this map held in the memory of the application.
+     * The replica loads all entries of the map and then keeps up with the changes
+     * published by the writers of the map, so its reads make no requests to Redis.
+     * Changes become visible to the replica with a delay of about a hundred milliseconds;
+     * the delay grows while Redis is unreachable, and the replica catches up when it reconnects.
+     * Entries evicted from a bounded map remain in its replicas until they change again.
+     *
+     * <p>The replica follows the map while the map is open. The replica should be closed
+     * when it is no longer needed.
+     *
+     * @return the replica
+     * @throws IllegalStateException if the map does not publish its changes
+     * @see RedisMapConfig#setChangeStream
+     */
+    public LocalReplica localReplica() {
+        if (changesKey == null) {
+            throw new IllegalStateException("Illegal layout for a local replica: " + redisKey);
+        }
+        return new LocalReplica(this, REPLICA_POLL_INTERVAL, null, redisKey, changesEpoch);
+    }
+
+    /**
+     * Returns a read-only view of this map held in the memory of the application
+     * and persisted to a memory-mapped file in the specified directory.
+     * The file is named after the key of the map and survives restarts of the application:
+     * a replica created from a file written for the same map serves its entries
+     * right away and only reads the changes made since the file was written.
+     * The file is discarded if the map has been created anew since, or if it is
+     * older than the oldest change kept by the change stream of the map,
+     * in which case the replica loads all entries of the map as {@link #localReplica()} does.
+     *
+     * <p>The file is rewritten when the replica loads all entries of the map,
+     * when enough changes have accumulated since it was written, and when the replica is closed.
+     * A file that cannot be written leaves the replica in memory.
+     *
+     * @param directory the directory of the file
+     * @return the replica
+     * @throws IllegalStateException if the map does not publish its changes
+     * @see #localReplica()
+     */
+    public LocalReplica localReplica(Path directory) {
+        if (changesKey == null) {
+            throw new IllegalStateException("Illegal layout for a local replica: " + redisKey);
+        }
+        Path file = directory.resolve(SNAPSHOT_NAME.matcher(redisKey).replaceAll("_") + SNAPSHOT_SUFFIX);
+        return new LocalReplica(this, REPLICA_POLL_INTERVAL, file, redisKey, changesEpoch);
+    }
+
+    /**
+     * Returns the number of the latest entry of the change stream.
+     */
+    long getChangesPosition() {
+        return read(Operation.REPLICATE, operations -> operations.xrange(changesKey, 0L, 0).getLast());
+    }
+
+    /**
+     * Reads up to {@code count} entries of the change stream following the specified one,
+     * and the current values of the keys changed by them. The keys and values are put
+     * to {@code values}, the keys that are no longer present are added to {@code removed};
+     * a key is removed from the other collection, so that collections filled by several calls
+     * hold the latest state of every key.
+     *
+     * @return the number of the last entry read, or {@code -1} if the entries following
+     *      the specified one have been trimmed or the map has been cleared,
+     *      in which case the replica has to load a new snapshot
+     */
+    long readChanges(long after, int count, Map<String, String> values, Set<String> removed) {
+        return read(Operation.REPLICATE, operations -> {
+            StreamPage page = operations.xrange(changesKey, after, count);
+            if (page.getLast() < after || page.getFirst() > after + 1L) {
+                return -1L;
+            }
+            long position = after;
+            Map<String, String> keys = new HashMap<>();
+            for (Entry<Long, Map<String, String>> entry : page.getEntries()) {
+                for (Entry<String, String> change : entry.getValue().entrySet()) {
+                    if (ChangePublisher.REPLACED.equals(change.getValue())) {
+                        return -1L;
+                    }
+                    if (!EMPTY_FIELD_TOKEN.equals(change.getKey())) {
+                        keys.put(change.getKey(), decodeKey(change.getKey()));
+                    }
+                }
+                position = entry.getKey();
+            }
+            Map<String, List<String>> fieldsByShard = new HashMap<>();
+            keys.forEach((field, key) ->
+                    fieldsByShard.computeIfAbsent(shardKey(key), hash -> new ArrayList<>()).add(field));
+            for (Entry<String, List<String>> shard : fieldsByShard.entrySet()) {
+                List<String> fields = shard.getValue();
+                List<String> stored = operations.hmget(shard.getKey(), fields);
+                for (int i = 0; i < fields.size(); i++) {
+                    String key = tokenToNull(keys.get(fields.get(i)));
+                    String value = decode(stored.get(i));
+                    //a key may have been changed by the previous pages read into the same collections
+                    if (value == null) {
+                        values.remove(key);
+                        removed.add(key);
+                    } else {
+                        removed.remove(key);
+                        values.put(key, tokenToNull(value));
+                    }
+                }
+            }
+            return position;
+        });
     }
 
     // RedisMap getters
@@ -1188,70 +2216,149 @@ public class RedisMap implements Map<String, String> {
         return KEY_TTL;
     }
 
-    /* ---------------- Key management -------------- */
+    public int getShards() {
+        return shardKeys.length;
+    }
 
-    private String generateKey() {
-        long id;
-        String key;
-        try (Jedis jedis = POOL.getResource()) {
-            while (true) {
-                if ((id = jedis.incr(OBJECT_COUNTER)) > MAX_COUNT) { //atomic
-                    resetCounter();
-                    continue;
-                }
-                if (!jedis.exists(key = assembleKey(id))) { //maps initialized with user-defined id/key
-                    jedis.expire(OBJECT_COUNTER, COUNTER_TTL);
-                    return key;
-                }
-            }
+    /**
+     * Returns a view of this map that reads and writes values as the bytes they are stored as,
+     * without converting them to Strings.
+     *
+     * @return the binary view
+     * @throws IllegalStateException if the map stores values encoded by a codec
+     * @see BinaryView
+     */
+    public BinaryView binary() {
+        if (codec != ValueCodec.IDENTITY) {
+            throw new IllegalStateException("Illegal value codec for a binary view: " + codec);
         }
+        return new BinaryView();
     }
 
-    // Prevents multiple deletions by different threads
-    private void resetCounter() {
-        try (Jedis jedis = POOL.getResource()) {
+    /**
+     * Opens a session in which the maps called by the current thread share a single connection
+     * to the primary Redis server instead of borrowing one from the pool on every call.
+     * The session has to be closed by the same thread.
+     *
+     * @return the session
+     * @see Session
+     */
+    public static Session session() {
+        return JedisBackend.openSession();
+    }
+
+    /**
+     * Returns the operation metrics of all maps of the application.
+     *
+     * @return the metrics
+     */
+    public static RedisMapMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Returns the estimated numbers of accesses to the most accessed keys of this map,
+     * in descending order. The numbers are extrapolated from the sampled operations
+     * executed on single keys through this instance.
+     *
+     * @return the hot keys with their estimated numbers of accesses
+     * @see RedisMapConfig#setSamplingRate
+     */
+    public Map<String, Long> getHotFields() {
+        return sampler.hotFields(FieldSampler.CAPACITY);
+    }
+
+    /**
+     * Returns the keys of this map with the biggest values seen by the sampled operations,
+     * in descending order of the sizes (in bytes) the values are stored in.
+     *
+     * @return the big keys with the sizes of their values
+     * @see RedisMapConfig#setSamplingRate
+     */
+    public Map<String, Long> getBigFields() {
+        return sampler.bigFields(FieldSampler.CAPACITY);
+    }
+
+    /**
+     * Returns the sizes (in bytes) of the values seen by the sampled operations.
+     *
+     * @return the value sizes
+     * @see RedisMapConfig#setSamplingRate
+     */
+    public HistogramStats getValueSizes() {
+        return sampler.valueSizes();
+    }
+
+    /**
+     * Discards the hot and big keys and the value sizes collected so far.
+     */
+    public void resetSampling() {
+        sampler.reset();
+    }
+
+    /**
+     * Returns the number of operations this map currently executes at once at most,
+     * or zero if the number is unlimited.
+     *
+     * @return the concurrency limit, or zero
+     * @see RedisMapConfig#setMaxConcurrency
+     */
+    public int getConcurrencyLimit() {
+        return limiter == null ? 0 : limiter.getLimit();
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    /* ---------------- Key management -------------- */
+
+    private static String generateKey(RedisMapBackend backend) {
+        return backend.write(operations -> {
             while (true) {
-                jedis.watch(OBJECT_COUNTER);
-                long counter = Long.parseLong(jedis.get(OBJECT_COUNTER));
-                if (counter > MAX_COUNT) {
-                    Transaction transaction = jedis.multi();
-                    transaction.del(OBJECT_COUNTER);
-                    List<Object> results = transaction.exec();
-                    if (results == null) {
-                        continue;
+                long id;
+                if ((id = operations.incr(OBJECT_COUNTER)) > MAX_COUNT) { //atomic
+                    // only the caller that crossed the limit resets the counter,
+                    // which prevents multiple deletions by different threads
+                    if (id == MAX_COUNT + 1L) {
+                        operations.del(OBJECT_COUNTER);
                     }
+                    continue;
+                }
+                String key;
+                if (!operations.exists(key = assembleKey(id))) { //maps initialized with user-defined id/key
+                    operations.expire(COUNTER_TTL, OBJECT_COUNTER);
+                    return key;
                 }
-                jedis.unwatch();
-                return;
             }
-        }
+        });
     }
 
-    private String assembleKey(long id) {
+    private static String assembleKey(long id) {
         return String.format("%s:%d", KEY_PREFIX, id);
     }
 
-    private String validateKey(String key) {
+    private static String validateKey(RedisMapBackend backend, String key) {
         if (key == null) {
             throw new NullPointerException();
         }
-        if (isValidKey(key) && isValidType(key)) {
+        if (isValidKey(key) && isValidType(backend, key)) {
             return key;
         }
         throw new IllegalArgumentException("Illegal key: " + key);
     }
 
-    private String validateKey(long id) {
+    private static String validateKey(RedisMapBackend backend, long id) {
         if (isValidId(id)) {
             String key = assembleKey(id);
-            if (isValidType(key)) {
+            if (isValidType(backend, key)) {
                 return key;
             }
         }
         throw new IllegalArgumentException("Illegal id: " + id);
     }
 
-    private boolean isValidKey(String key) {
+    private static boolean isValidKey(String key) {
         if (Pattern.compile(KEY_PATTERN).matcher(key.trim()).matches()) {
             long id = Long.parseLong(key.substring(key.indexOf(':') + 1));
             return isValidId(id);
@@ -1259,15 +2366,147 @@ public class RedisMap implements Map<String, String> {
         return false;
     }
 
-    private boolean isValidId(long id) {
+    private static boolean isValidId(long id) {
         return id > 0L && id <= MAX_COUNT;
     }
 
-    private boolean isValidType(String key) {
-        try (Jedis jedis = POOL.getResource()) {
-            String type = jedis.type(key);
-            return "none".equals(type) || "hash".equals(type);
+    private static boolean isValidType(RedisMapBackend backend, String key) {
+        String type = backend.write(operations -> operations.type(key));
+        return "none".equals(type) || "hash".equals(type);
+    }
+
+    /* ---------------- Shard management -------------- */
+
+    private boolean isSharded() {
+        return shardKeys.length > 1;
+    }
+
+    /**
+     * Returns the key of the Redis hash the specified field belongs to.
+     */
+    private String shardKey(String field) {
+        return isSharded() ? shardKeys[Math.floorMod(field.hashCode(), shardKeys.length)] : redisKey;
+    }
+
+    private String[] assembleShardKeys(int shards) {
+        if (shards == 1) {
+            return new String[] {redisKey};
+        }
+        String[] keys = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            keys[i] = redisKey + SHARD_INFIX + i;
         }
+        return keys;
+    }
+
+    /* ---------------- Layout -------------- */
+
+    private static String layoutToken(int shards, String keyPrefix, String changesEpoch) {
+        return shards == 1 && keyPrefix.isEmpty() && changesEpoch == null ? EMPTY_FIELD_TOKEN :
+                LAYOUT_TOKEN + shards + (changesEpoch != null ? CHANGES_OPTION + changesEpoch : "") + ":" + keyPrefix;
+    }
+
+    private static long ceilDiv(long value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static int parseShards(String token) {
+        if (token.startsWith(LAYOUT_TOKEN)) {
+            try {
+                String shards = token.substring(LAYOUT_TOKEN.length(), token.indexOf(':', LAYOUT_TOKEN.length()));
+                int option = shards.indexOf('+');
+                return Integer.parseInt(option < 0 ? shards : shards.substring(0, option));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IllegalStateException("Illegal layout: " + token, e);
+            }
+        }
+        return 1;
+    }
+
+    private static String parseChangesEpoch(String token) {
+        if (!token.startsWith(LAYOUT_TOKEN)) {
+            return null;
+        }
+        String options = token.substring(LAYOUT_TOKEN.length(), token.indexOf(':', LAYOUT_TOKEN.length()));
+        int option = options.indexOf(CHANGES_OPTION);
+        return option < 0 ? null : options.substring(option + CHANGES_OPTION.length());
+    }
+
+    private static String parseKeyPrefix(String token) {
+        if (token.startsWith(LAYOUT_TOKEN)) {
+            return token.substring(token.indexOf(':', LAYOUT_TOKEN.length()) + 1);
+        }
+        return "";
+    }
+
+    /* ---------------- Value and key conversion -------------- */
+
+    private String encode(String value) {
+        String output = NULL_TOKEN.equals(value) ? value : codec.encode(value);
+        Call.recordValue(METRICS.recordBytesOut(output));
+        return output;
+    }
+
+    private String decode(String value) {
+        if (value != null) {
+            Call.recordValue(METRICS.recordBytesIn(value));
+        }
+        return value == null || NULL_TOKEN.equals(value) ? value : codec.decode(value);
+    }
+
+    /**
+     * Returns the Redis field of the specified key.
+     */
+    private String encodeKey(String key) {
+        METRICS.recordBytesOut(key);
+        if (keyPrefix.isEmpty()) {
+            return key;
+        }
+        if (key.startsWith(keyPrefix)) {
+            return PREFIXED_KEY + key.substring(keyPrefix.length());
+        }
+        if (!key.isEmpty() && (key.charAt(0) == PREFIXED_KEY || key.charAt(0) == ESCAPED_KEY)) {
+            return ESCAPED_KEY + key;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the pattern of the Redis fields of the keys matching the specified pattern,
+     * or {@code null} if the fields cannot be told by a pattern and have to be matched after decoding.
+     */
+    private String fieldPattern(String pattern) {
+        if (keyPrefix.isEmpty()) {
+            return Glob.widen(pattern);
+        }
+        String rest = Glob.stripLiteralPrefix(pattern, keyPrefix);
+        if (rest != null) {
+            return PREFIXED_KEY + Glob.widen(rest);
+        }
+        //a key that does not start with the prefix is stored as is unless it starts with a reserved character
+        String literal = Glob.literalPrefix(pattern);
+        if (literal.isEmpty() || keyPrefix.startsWith(literal)
+                || literal.charAt(0) == PREFIXED_KEY || literal.charAt(0) == ESCAPED_KEY) {
+            return null;
+        }
+        return Glob.widen(pattern);
+    }
+
+    /**
+     * Returns the key stored in the specified Redis field.
+     */
+    private String decodeKey(String field) {
+        METRICS.recordBytesIn(field);
+        if (keyPrefix.isEmpty() || field.isEmpty()) {
+            return field;
+        }
+        if (field.charAt(0) == PREFIXED_KEY) {
+            return keyPrefix + field.substring(1);
+        }
+        if (field.charAt(0) == ESCAPED_KEY) {
+            return field.substring(1);
+        }
+        return field;
     }
 
     /* ---------------- Null conversion -------------- */
@@ -1286,103 +2525,545 @@ public class RedisMap implements Map<String, String> {
 
     /* ---------------- Iterators -------------- */
 
+    /**
+     * Iterates over the fields of this map as they come in the pages returned by Redis,
+     * skipping the "empty entry" and the fields already returned.
+     */
     abstract class BaseIterator {
-        Iterator<List<Entry<String, String>>> iterator;
-        Queue<Entry<String, String>> queue;
-        Set<String> keys;
-        Entry<String, String> current;
+        private final RedisIterator iterator = new RedisIterator();
+        private List<Entry<String, String>> page = Collections.emptyList();
+        private int position;
+
+        /**
+         * The entry to be returned next, as it came from Redis.
+         */
+        private Entry<String, String> next;
+
+        /**
+         * The key of the entry returned last as it is stored, or {@code null} if there is none.
+         */
+        private String currentKey;
 
         BaseIterator() {
-            queue = new ArrayDeque<>();
-            iterator = new RedisIterator();
-            keys = new HashSet<>();
-            while (queue.isEmpty() && iterator.hasNext()) {
-                processEntries(iterator.next());
+            next = advance();
+        }
+
+        private Entry<String, String> advance() {
+            while (true) {
+                while (position < page.size()) {
+                    Entry<String, String> entry = page.get(position++);
+                    if (iterator.isNewField(entry.getKey())) {
+                        return entry;
+                    }
+                }
+                if (!iterator.hasNext()) {
+                    return null;
+                }
+                page = iterator.next();
+                position = 0;
             }
         }
 
         public boolean hasNext() {
-            return !queue.isEmpty();
+            return next != null;
         }
 
-        public Entry<String, String> nextEntry() {
-            if (queue.isEmpty()) {
+        /**
+         * Returns the next entry as it came from Redis and remembers its key.
+         */
+        Entry<String, String> nextRaw() {
+            Entry<String, String> entry = next;
+            if (entry == null) {
                 throw new NoSuchElementException();
             }
-            current = queue.remove();
-            while (queue.isEmpty() && iterator.hasNext()) {
-                processEntries(iterator.next());
-            }
-            return current;
+            next = advance();
+            currentKey = decodeKey(entry.getKey());
+            return entry;
         }
 
         public void remove() {
-            Entry<String, String> entry = current;
-            if (entry == null) {
+            String key = currentKey;
+            if (key == null) {
                 throw new IllegalStateException();
             }
-            current = null;
-            RedisMap.this.removeField((String) nullToToken(entry.getKey()), null);
+            currentKey = null;
+            RedisMap.this.removeField(key, null);
         }
 
         //helper method used by Values removeAll and retainAll methods
         protected String getCurrentKey() {
-            return current.getKey();
-        }
-
-        private void processEntries(List<Entry<String, String>> entries) {
-            entries.stream()
-                    .filter(e -> !EMPTY_FIELD_TOKEN.equals(e.getKey()))
-                    .filter(e -> keys.add(e.getKey())) //remove possible (k,v) duplicates
-                    .map(e -> tokenToEntry(e.getKey(), e.getValue()))
-                    .forEach(e -> queue.add(e));
+            return tokenToNull(currentKey);
         }
     }
 
     final class KeyIterator extends BaseIterator implements Iterator<String> {
         @Override
         public String next() {
-            return nextEntry().getKey();
+            nextRaw();
+            return getCurrentKey();
         }
     }
 
     final class ValueIterator extends BaseIterator implements Iterator<String> {
         @Override
         public String next() {
-            return nextEntry().getValue();
+            return tokenToNull(decode(nextRaw().getValue()));
         }
     }
 
     final class EntryIterator extends BaseIterator implements Iterator<Entry<String, String>> {
         @Override
         public Entry<String, String> next() {
-            return nextEntry();
+            Entry<String, String> entry = nextRaw();
+            String key = getCurrentKey();
+            String value = tokenToNull(decode(entry.getValue()));
+            //the entry that came from Redis is returned as is if nothing has to be converted
+            if (key == entry.getKey() && value == entry.getValue()) {
+                return entry;
+            }
+            return new AbstractMap.SimpleEntry<>(key, value);
         }
     }
 
+    /**
+     * Iterates over the pages of fields of the hashes returned by Redis.
+     * A field may only be returned twice by a scan of a hash that takes several pages,
+     * so the fields of such a hash are remembered until its scan is complete
+     * to let {@link #isNewField} tell the fields already returned.
+     */
     final class RedisIterator implements Iterator<List<Entry<String, String>>> {
-        private final ScanParams scanParams;
+        private final String[] hashes;
+        private final String match;
+        private int index;
         private String cursor;
 
+        /**
+         * The fields of the hash being scanned returned so far,
+         * or {@code null} if the page returned last holds all fields of a hash.
+         */
+        private Set<String> seen;
+
         public RedisIterator() {
-            this.scanParams = new ScanParams().count(SCAN_COUNT);
+            this(shardKeys);
+        }
+
+        public RedisIterator(String[] hashes) {
+            this(hashes, null);
+        }
+
+        /**
+         * Creates an iterator over the fields of the hashes that match the glob-style pattern.
+         */
+        public RedisIterator(String[] hashes, String match) {
+            this.hashes = hashes;
+            this.match = match;
         }
 
         @Override
         public boolean hasNext() {
-            return !"0".equals(cursor);
+            return !("0".equals(cursor) && index == hashes.length - 1);
         }
 
         @Override
         public List<Entry<String, String>> next() {
-            try (Jedis jedis = POOL.getResource()) {
-                if (cursor == null) {
-                    cursor = "0";
+            return next(SCAN_COUNT);
+        }
+
+        /**
+         * Returns the next page of entries, asking Redis for about {@code count} entries.
+         */
+        List<Entry<String, String>> next(int count) {
+            String hash = nextHash();
+            ScanPage page = scan(hash, cursor, count, match);
+            return endPage(page.getCursor(), page.getEntries());
+        }
+
+        /**
+         * Returns the next page of entries with the values as they are stored, asking Redis
+         * for about {@code count} entries. The fields are not matched against the pattern.
+         */
+        List<Entry<String, byte[]>> nextBinary(int count) {
+            String hash = nextHash();
+            String pageCursor = cursor;
+            BinaryScanPage page = call(Operation.SCAN, null, () -> backend.scanBinary(hash, pageCursor, count));
+            METRICS.recordScanPage(page.getEntries().size());
+            return endPage(page.getCursor(), page.getEntries());
+        }
+
+        /**
+         * Returns the hash the next page is to be scanned from.
+         */
+        private String nextHash() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (cursor == null) {
+                cursor = "0";
+            } else if ("0".equals(cursor)) {
+                index++;
+            }
+            return hashes[index];
+        }
+
+        /**
+         * Moves the scan past the page of entries and returns them.
+         */
+        private <V> List<Entry<String, V>> endPage(String nextCursor, List<Entry<String, V>> entries) {
+            boolean firstPage = "0".equals(cursor);
+            cursor = nextCursor;
+            if (firstPage && "0".equals(cursor)) {
+                seen = null;
+            } else if (firstPage || seen == null) {
+                seen = new HashSet<>();
+            }
+            return entries;
+        }
+
+        /**
+         * Returns {@code true} if the field of the page returned last is an entry of the map
+         * that has not been returned before, which is to be called once for every field of the page.
+         */
+        boolean isNewField(String field) {
+            return !EMPTY_FIELD_TOKEN.equals(field) && (seen == null || seen.add(field));
+        }
+    }
+
+    /**
+     * A view of the map that reads and writes values as the bytes they are stored as in Redis.
+     * The view shares the entries with the map: a String value is seen as its UTF-8 bytes,
+     * and bytes written by the view are seen by the map as decoded from UTF-8.
+     * Values that are not valid UTF-8 are kept intact as long as they are accessed through the view
+     * of a map backed by {@link JedisBackend}; other backends store values as Strings.
+     * As in the map, a {@code null} value stands both for a missing key and for a key mapped to {@code null}.
+     *
+     * <p>Values cross the view without being copied or converted, so passing values
+     * through to a socket or a file takes no encoding work.
+     */
+    public final class BinaryView {
+        private BinaryView() {
+        }
+
+        /**
+         * Returns the map this view belongs to.
+         */
+        public RedisMap map() {
+            return RedisMap.this;
+        }
+
+        /**
+         * Returns the bytes the specified key is mapped to,
+         * or {@code null} if this map contains no mapping for the key.
+         *
+         * @param key the key
+         * @return the value, or {@code null}
+         */
+        public byte[] get(String key) {
+            String token = (String) nullToToken(key);
+            String hash = shardKey(token);
+            String field = encodeKey(token);
+            if (eviction == null) {
+                return read(Operation.GET, token, operations -> received(operations.hgetBinary(hash, field)));
+            }
+            //reads of a bounded map record accesses
+            return write(Operation.GET, token, operations -> received(bound(operations).hgetBinary(hash, field)));
+        }
+
+        /**
+         * Returns the bytes the specified key is mapped to wrapped into a buffer,
+         * or {@code null} if this map contains no mapping for the key.
+         *
+         * @param key the key
+         * @return the value, or {@code null}
+         */
+        public ByteBuffer getBuffer(String key) {
+            byte[] value = get(key);
+            return value == null ? null : ByteBuffer.wrap(value);
+        }
+
+        /**
+         * Associates the specified bytes with the specified key.
+         * The array is not copied and must not be modified until the method returns.
+         *
+         * @param key the key
+         * @param value the value, or {@code null}
+         * @return the previous value, or {@code null} if there was no mapping for the key
+         */
+        public byte[] put(String key, byte[] value) {
+            String token = (String) nullToToken(key);
+            String hash = shardKey(token);
+            String field = encodeKey(token);
+            byte[] encoded = value == null ? NULL_TOKEN_BYTES : value;
+            return write(Operation.PUT, token,
+                    operations -> received(bound(operations).getAndSetBinary(hash, field, sent(encoded))));
+        }
+
+        /**
+         * Associates the remaining bytes of the specified buffer with the specified key.
+         * The position of the buffer is not changed.
+         *
+         * @param key the key
+         * @param value the value, or {@code null}
+         * @return the previous value, or {@code null} if there was no mapping for the key
+         */
+        public byte[] put(String key, ByteBuffer value) {
+            if (value == null) {
+                return put(key, (byte[]) null);
+            }
+            if (value.hasArray() && value.arrayOffset() == 0 && value.position() == 0
+                    && value.remaining() == value.array().length) {
+                return put(key, value.array());
+            }
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            return put(key, bytes);
+        }
+
+        /**
+         * Removes the mapping for the specified key.
+         *
+         * @param key the key
+         * @return the previous value, or {@code null} if there was no mapping for the key
+         */
+        public byte[] remove(String key) {
+            String token = (String) nullToToken(key);
+            String hash = shardKey(token);
+            String field = encodeKey(token);
+            return write(Operation.REMOVE, token,
+                    operations -> received(bound(operations).getAndSetBinary(hash, field, null)));
+        }
+
+        /**
+         * Performs the given action for each entry of this map, in the order the entries come from Redis.
+         * The values are passed as the arrays returned by Redis and are not copied.
+         * As with the iterators of the map, every entry present during the whole iteration
+         * is passed once; entries added or removed during the iteration may or may not be passed.
+         *
+         * @param action the action to be performed for each entry
+         * @throws NullPointerException if the specified action is null
+         */
+        public void forEach(BiConsumer<? super String, ? super byte[]> action) {
+            Objects.requireNonNull(action);
+            RedisIterator iterator = new RedisIterator();
+            while (iterator.hasNext()) {
+                for (Entry<String, byte[]> entry : iterator.nextBinary(SCAN_COUNT)) {
+                    if (iterator.isNewField(entry.getKey())) {
+                        action.accept(tokenToNull(decodeKey(entry.getKey())), received(entry.getValue()));
+                    }
                 }
-                ScanResult<Entry<String, String>> scanResult = jedis.hscan(redisKey, cursor, scanParams);
-                cursor = scanResult.getCursor();
-                return scanResult.getResult();
             }
         }
+
+        private byte[] sent(byte[] value) {
+            Call.recordValue(METRICS.recordBytesOut(value));
+            return value;
+        }
+
+        /**
+         * Returns the value received from Redis, or {@code null} if it stands for {@code null}.
+         */
+        private byte[] received(byte[] value) {
+            if (value == null) {
+                return null;
+            }
+            Call.recordValue(METRICS.recordBytesIn(value));
+            return Arrays.equals(value, NULL_TOKEN_BYTES) ? null : value;
+        }
+    }
+
+    /**
+     * The subscription of a subscriber of a publisher of this map.
+     * Entries are delivered by a drain loop that runs on {@link #SHARD_EXECUTOR} whenever
+     * the subscriber requests entries; the loop runs at most once at a time,
+     * so the subscriber is signalled serially.
+     */
+    final class ScanSubscription<T> implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Function<Entry<String, String>, T> mapper;
+        private final RedisIterator iterator = new RedisIterator();
+        private final Queue<Entry<String, String>> queue = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * The number of times the drain loop has been requested to run and has not run yet.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException illegalRequest;
+
+        ScanSubscription(Flow.Subscriber<? super T> subscriber, Function<Entry<String, String>, T> mapper) {
+            this.subscriber = subscriber;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                illegalRequest = new IllegalArgumentException("Illegal request: " + n);
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0L ? Long.MAX_VALUE : current + added);
+            }
+            if (pending.getAndIncrement() == 0) {
+                SHARD_EXECUTOR.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                deliver();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            while (!cancelled) {
+                if (illegalRequest != null) {
+                    cancelled = true;
+                    subscriber.onError(illegalRequest);
+                    return;
+                }
+                if (queue.isEmpty()) {
+                    if (!iterator.hasNext()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    long requested = demand.get();
+                    if (requested == 0L) {
+                        return;
+                    }
+                    try {
+                        //Redis may return more entries than asked for, they wait in the queue for requests
+                        for (Entry<String, String> entry : iterator.next((int) Math.min(requested, SCAN_COUNT))) {
+                            if (iterator.isNewField(entry.getKey())) {
+                                queue.add(tokenToEntry(decodeKey(entry.getKey()), decode(entry.getValue())));
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        return;
+                    }
+                    continue;
+                }
+                if (demand.get() == 0L) {
+                    return;
+                }
+                try {
+                    T item = mapper.apply(queue.remove());
+                    if (item != null) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(item);
+                    }
+                } catch (RuntimeException e) {
+                    //a subscriber that throws is in breach of the protocol, so the subscription is cancelled
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            cancelled = true;
+            queue.clear();
+            subscriber.onError(e);
+        }
+    }
+
+    /**
+     * The state of an operation the current thread executes.
+     * An operation may execute others, as a remapping function may access the map,
+     * so every operation has its own state and the state of the enclosing one is restored when it ends.
+     */
+    private static final class Call {
+        /**
+         * The state of the enclosing operation, or {@code null} if there is none.
+         */
+        private final Call outer;
+        final long start = System.nanoTime();
+        int retries;
+
+        /**
+         * The size of the biggest value written or read, or -1 if there is none.
+         */
+        long valueSize = -1L;
+
+        private Call(Call outer) {
+            this.outer = outer;
+        }
+
+        static Call start() {
+            Call call = new Call(CALL.get());
+            CALL.set(call);
+            return call;
+        }
+
+        /**
+         * Makes the enclosing operation the current one again.
+         */
+        void end() {
+            if (outer == null) {
+                CALL.remove();
+            } else {
+                CALL.set(outer);
+            }
+        }
+
+        /**
+         * Records the size of a value written or read by the current operation, if there is one.
+         */
+        static void recordValue(long size) {
+            Call call = CALL.get();
+            if (call != null) {
+                call.valueSize = Math.max(call.valueSize, size);
+            }
+        }
+    }
+
+    /**
+     * The entry passed to every call of a {@link #forEachEntry} action.
+     */
+    private static final class ReusedEntry implements Entry<String, String> {
+        private String key;
+        private String value;
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String setValue(String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return Objects.equals(key, entry.getKey()) && Objects.equals(value, entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Storage a {@link RedisMap} keeps its entries in.
+ * The default backend, {@link JedisBackend}, talks to a Redis server;
+ * {@link InMemoryBackend} keeps the data in the application itself.
+ *
+ * <p>A backend executes functions against {@link HashOperations} bound to one server,
+ * so that several commands issued by a function share a connection.
+ * Implementations must be thread-safe.
+ *
+ *  @author  Veronica Kazarina
+ */
+public interface RedisMapBackend {
+    /**
+     * Executes a read-only function. The function may be served by a replica
+     * and thus observe a slightly stale state.
+     *
+     * @param function the function to be executed
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    <T> T read(Function<HashOperations, T> function);
+
+    /**
+     * Executes a read-only function that only reads and returns values, which lets the backend
+     * execute it more than once, even at the same time on different threads, to get the result sooner.
+     * The function must have no side effects. By default, the function is executed by {@link #read}.
+     *
+     * @param function the function to be executed
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    default <T> T hedgedRead(Function<HashOperations, T> function) {
+        return read(function);
+    }
+
+    /**
+     * Executes a function that may modify data.
+     * The function is always served by the primary server,
+     * so its reads observe the latest state.
+     *
+     * @param function the function to be executed
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    <T> T write(Function<HashOperations, T> function);
+
+    /**
+     * Returns the next page of the fields of the hash stored at the specified key.
+     * A scan is started with the cursor {@code "0"} and is complete when
+     * the returned cursor is {@code "0"} again. Cursors are opaque and are only
+     * valid for the backend that returned them.
+     *
+     * <p>Every field present in the hash during the whole scan is returned at least once.
+     * A field may be returned more than once; fields added or removed during the scan
+     * may or may not be returned.
+     *
+     * @param key the key of the hash
+     * @param cursor the cursor returned by the previous call, or {@code "0"}
+     * @param count the hint of the number of fields to be returned
+     * @return the page
+     */
+    ScanPage scan(String key, String cursor, int count);
+
+    /**
+     * Returns the next page of the fields of the hash stored at the specified key
+     * that match the glob-style pattern, as the {@code MATCH} option of HSCAN does.
+     * The count is the hint of the number of fields visited rather than returned,
+     * so a page may be empty before the scan is complete.
+     *
+     * <p>The default implementation filters the pages returned by {@link #scan(String, String, int)}.
+     *
+     * @param key the key of the hash
+     * @param cursor the cursor returned by the previous call, or {@code "0"}
+     * @param count the hint of the number of fields to be visited
+     * @param match the pattern, or {@code null} to return all fields
+     * @return the page
+     */
+    default ScanPage scan(String key, String cursor, int count, String match) {
+        ScanPage page = scan(key, cursor, count);
+        if (match == null) {
+            return page;
+        }
+        return new ScanPage(page.getCursor(), page.getEntries().stream()
+                .filter(entry -> Glob.matches(match, entry.getKey()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Returns the next page of the fields of the hash stored at the specified key
+     * with the values as the bytes they are stored as. The pages follow the same rules
+     * as the pages returned by {@link #scan(String, String, int)}.
+     *
+     * <p>The default implementation encodes the values of the pages returned by
+     * {@link #scan(String, String, int)} in UTF-8.
+     *
+     * @param key the key of the hash
+     * @param cursor the cursor returned by the previous call, or {@code "0"}
+     * @param count the hint of the number of fields to be returned
+     * @return the page
+     */
+    default BinaryScanPage scanBinary(String key, String cursor, int count) {
+        ScanPage page = scan(key, cursor, count);
+        List<Entry<String, byte[]>> entries = new ArrayList<>(page.getEntries().size());
+        for (Entry<String, String> entry : page.getEntries()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    entry.getValue().getBytes(StandardCharsets.UTF_8)));
+        }
+        return new BinaryScanPage(page.getCursor(), entries);
+    }
+}
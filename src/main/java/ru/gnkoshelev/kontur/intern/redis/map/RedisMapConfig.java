@@ -0,0 +1,487 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import redis.clients.jedis.HostAndPort;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Configuration of a {@link RedisMap} instance.
+ * A configuration object is read once when a map is constructed;
+ * later changes to it do not affect maps that have already been created.
+ *
+ * <p>Parameters that determine how data is laid out in Redis
+ * (the number of shards, the key prefix and the change stream) are stored together with the hash.
+ * A map linked to an existing Redis hash adopts the stored layout
+ * and ignores the corresponding values of its configuration.
+ *
+ *  @author  Veronica Kazarina
+ */
+public class RedisMapConfig {
+    /**
+     * The default number of Redis hashes a map is spread across.
+     */
+    public static final int DEFAULT_SHARDS = 1;
+
+    /**
+     * The maximum number of Redis hashes a map can be spread across.
+     */
+    public static final int MAX_SHARDS = 1024;
+
+    /**
+     * The default bound of the staleness of data read from replicas.
+     */
+    public static final Duration DEFAULT_MAX_STALENESS = Duration.ofSeconds(1);
+
+    /**
+     * The default time to wait for replicas to acknowledge a write.
+     */
+    public static final Duration DEFAULT_REPLICATION_TIMEOUT = Duration.ofMillis(100);
+
+    /**
+     * The default sampling rate of hot and big fields.
+     */
+    public static final int DEFAULT_SAMPLING_RATE = 64;
+
+    /**
+     * The default latency above which operations are logged.
+     */
+    public static final Duration DEFAULT_SLOW_OPERATION_THRESHOLD = Duration.ofMillis(100);
+
+    private int shards = DEFAULT_SHARDS;
+    private List<HostAndPort> replicas = new ArrayList<>();
+    private Duration maxStaleness = DEFAULT_MAX_STALENESS;
+    private boolean readYourWrites;
+    private Duration replicationTimeout = DEFAULT_REPLICATION_TIMEOUT;
+    private ValueCodec valueCodec = ValueCodec.IDENTITY;
+    private String keyPrefix = "";
+    private boolean changeStream;
+    private RedisMapBackend backend;
+    private long maxEntries;
+    private long maxBytes;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private int samplingRate = DEFAULT_SAMPLING_RATE;
+    private Duration slowOperationThreshold = DEFAULT_SLOW_OPERATION_THRESHOLD;
+    private Duration operationTimeout = Duration.ZERO;
+    private double hedgeQuantile;
+    private Duration readCoalescingWindow = Duration.ZERO;
+    private int maxConcurrency;
+
+    /**
+     * Returns the number of Redis hashes the map is spread across.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Sets the number of Redis hashes (shards) the map is spread across.
+     * Fields are assigned to shards by their hash code, so the value
+     * has to be chosen before the map is created and cannot be changed afterwards.
+     *
+     * <p>Shards holding no more than {@code hash-max-listpack-entries}
+     * (128 by default) small fields keep Redis compact hash encoding,
+     * so for big maps the value should be close to the expected size
+     * divided by this threshold.
+     *
+     * @param shards the number of shards, from 1 to {@link #MAX_SHARDS}
+     * @throws IllegalArgumentException if the {@code shards} is out of range
+     */
+    public void setShards(int shards) {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Illegal number of shards: " + shards);
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Returns the common prefix of keys that is stored in a compact form.
+     */
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    /**
+     * Sets the common prefix of keys that is stored in Redis as a single character.
+     * Keys that do not start with the prefix are stored as they are.
+     * The prefix is a part of the layout and has to be chosen before the map is created.
+     * An empty prefix, which is the default, disables compaction.
+     *
+     * @param keyPrefix the key prefix
+     * @throws NullPointerException if the {@code keyPrefix} is null
+     */
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = Objects.requireNonNull(keyPrefix);
+    }
+
+    /**
+     * Returns {@code true} if the map publishes its changes to a change stream.
+     */
+    public boolean isChangeStream() {
+        return changeStream;
+    }
+
+    /**
+     * Sets whether the map publishes the keys it changes to a Redis stream,
+     * which makes {@link RedisMap#localReplica() local replicas} of the map possible.
+     * Every write then takes an additional command. The setting is a part of the layout,
+     * so all writers of the map publish their changes once the map is created with it.
+     * The default is {@code false}.
+     *
+     * @param changeStream {@code true} to publish changes
+     */
+    public void setChangeStream(boolean changeStream) {
+        this.changeStream = changeStream;
+    }
+
+    /**
+     * Returns the codec values are stored with.
+     */
+    public ValueCodec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the codec values are stored with, for example {@link DeflateCodec}.
+     * Unlike the layout, the codec is not stored with the hash, so all maps
+     * linked to the same hash have to use compatible codecs.
+     * The default codec stores values as they are.
+     *
+     * @param valueCodec the codec
+     * @throws NullPointerException if the {@code valueCodec} is null
+     */
+    public void setValueCodec(ValueCodec valueCodec) {
+        this.valueCodec = Objects.requireNonNull(valueCodec);
+    }
+
+    /**
+     * Returns the maximum number of entries of the map, or zero if it is not bounded.
+     */
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of entries of the map. When a write makes the map exceed
+     * the bound, the coldest entries, as determined by the eviction policy, are evicted
+     * atomically with the write. Zero, which is the default, leaves the map unbounded.
+     *
+     * <p>Accesses are recorded in Redis next to the hash, so reads of a bounded map
+     * go to the primary. A sharded map bounds every shard by its share of the value.
+     * Like the codec, the bounds are not stored with the hash,
+     * so all maps linked to the same hash have to use the same bounds.
+     *
+     * @param maxEntries the maximum number of entries, or zero
+     * @throws IllegalArgumentException if the {@code maxEntries} is negative
+     */
+    public void setMaxEntries(long maxEntries) {
+        if (maxEntries < 0L) {
+            throw new IllegalArgumentException("Illegal max entries: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the maximum total size of the keys and values of the map, or zero if it is not bounded.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum total size (in UTF-8 bytes of their stored form)
+     * of the keys and values of the map. Entries are evicted as with {@link #setMaxEntries}.
+     * Zero, which is the default, leaves the size unbounded.
+     *
+     * @param maxBytes the maximum size, or zero
+     * @throws IllegalArgumentException if the {@code maxBytes} is negative
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0L) {
+            throw new IllegalArgumentException("Illegal max bytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the policy entries of a bounded map are evicted by.
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets the policy entries of a bounded map are evicted by. The default is {@link EvictionPolicy#LRU}.
+     *
+     * @param evictionPolicy the policy
+     * @throws NullPointerException if the {@code evictionPolicy} is null
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy);
+    }
+
+    /**
+     * Returns the backend the map stores its entries in,
+     * or {@code null} if the map uses a {@link JedisBackend} created from this configuration.
+     */
+    public RedisMapBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the backend the map stores its entries in, for example an {@link InMemoryBackend}
+     * shared by the maps of a test. Maps see each other's data only if they share a backend.
+     * The default value {@code null} makes the map connect to Redis through a {@link JedisBackend}
+     * that routes reads as the replica settings of this configuration prescribe;
+     * other backends ignore these settings.
+     *
+     * @param backend the backend, or {@code null} to connect to Redis
+     */
+    public void setBackend(RedisMapBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Returns the replicas read-only operations are routed to.
+     */
+    public List<HostAndPort> getReplicas() {
+        return new ArrayList<>(replicas);
+    }
+
+    /**
+     * Sets the replicas of the primary Redis server that read-only operations
+     * ({@code get}, {@code containsKey}, {@code size}, iteration, etc.) are routed to.
+     * Writes and the reads made by conditional updates always go to the primary.
+     * An empty collection, which is the default, routes all operations to the primary.
+     *
+     * @param replicas the addresses of the replicas
+     * @throws NullPointerException if the {@code replicas} or any of its elements is null
+     */
+    public void setReplicas(Collection<HostAndPort> replicas) {
+        List<HostAndPort> list = new ArrayList<>(replicas);
+        list.forEach(Objects::requireNonNull);
+        this.replicas = list;
+    }
+
+    /**
+     * Returns the bound of the staleness of data read from replicas.
+     */
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Sets the bound of the staleness of data read from replicas.
+     * A replica is used only if it has been seen to catch up with the primary
+     * within this period; otherwise reads go to the primary.
+     *
+     * @param maxStaleness the staleness bound
+     * @throws NullPointerException if the {@code maxStaleness} is null
+     * @throws IllegalArgumentException if the {@code maxStaleness} is not positive
+     */
+    public void setMaxStaleness(Duration maxStaleness) {
+        if (maxStaleness.isNegative() || maxStaleness.isZero()) {
+            throw new IllegalArgumentException("Illegal staleness: " + maxStaleness);
+        }
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Returns {@code true} if the map reads its own writes from replicas.
+     */
+    public boolean isReadYourWrites() {
+        return readYourWrites;
+    }
+
+    /**
+     * Sets whether the map should see its own writes when reading from replicas.
+     * If set, every write waits (using {@code WAIT} command) until the replicas
+     * acknowledge it or the replication timeout elapses, in which case
+     * the reads of the map go to the primary for the staleness period.
+     *
+     * @param readYourWrites {@code true} to read own writes
+     */
+    public void setReadYourWrites(boolean readYourWrites) {
+        this.readYourWrites = readYourWrites;
+    }
+
+    /**
+     * Returns the time to wait for replicas to acknowledge a write.
+     */
+    public Duration getReplicationTimeout() {
+        return replicationTimeout;
+    }
+
+    /**
+     * Sets the time to wait for replicas to acknowledge a write
+     * if the map reads its own writes.
+     *
+     * @param replicationTimeout the timeout
+     * @throws NullPointerException if the {@code replicationTimeout} is null
+     * @throws IllegalArgumentException if the {@code replicationTimeout} is not positive
+     */
+    public void setReplicationTimeout(Duration replicationTimeout) {
+        if (replicationTimeout.isNegative() || replicationTimeout.isZero()) {
+            throw new IllegalArgumentException("Illegal replication timeout: " + replicationTimeout);
+        }
+        this.replicationTimeout = replicationTimeout;
+    }
+
+    /**
+     * Returns the sampling rate of hot and big fields.
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Sets the rate the operations on single keys are sampled at to find
+     * {@link RedisMap#getHotFields() hot} and {@link RedisMap#getBigFields() big} fields:
+     * one of every {@code samplingRate} operations is sampled.
+     * Zero disables sampling.
+     *
+     * @param samplingRate the sampling rate, or zero
+     * @throws IllegalArgumentException if the {@code samplingRate} is negative
+     */
+    public void setSamplingRate(int samplingRate) {
+        if (samplingRate < 0) {
+            throw new IllegalArgumentException("Illegal sampling rate: " + samplingRate);
+        }
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Returns the latency above which operations are logged.
+     */
+    public Duration getSlowOperationThreshold() {
+        return slowOperationThreshold;
+    }
+
+    /**
+     * Sets the latency above which operations are logged, together with
+     * the key of the map, the key the operation was executed on and the number of retries
+     * of its optimistic transaction. Operations are logged with {@link System.Logger}
+     * named after {@link RedisMap} at the {@code WARNING} level.
+     * Zero disables logging.
+     *
+     * @param slowOperationThreshold the threshold, or zero
+     * @throws NullPointerException if the {@code slowOperationThreshold} is null
+     * @throws IllegalArgumentException if the {@code slowOperationThreshold} is negative
+     */
+    public void setSlowOperationThreshold(Duration slowOperationThreshold) {
+        if (slowOperationThreshold.isNegative()) {
+            throw new IllegalArgumentException("Illegal slow operation threshold: " + slowOperationThreshold);
+        }
+        this.slowOperationThreshold = slowOperationThreshold;
+    }
+
+    /**
+     * Returns the time an operation may take.
+     */
+    public Duration getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    /**
+     * Sets the time a single Redis call of an operation may take, including the time spent
+     * waiting for a connection: the call fails with {@code JedisConnectionException} once it elapses.
+     * Zero, which is the default, leaves calls limited by the socket timeout and the maximum pool wait alone.
+     * The timeout is applied by {@link JedisBackend}.
+     *
+     * @param operationTimeout the timeout, or zero
+     * @throws NullPointerException if the {@code operationTimeout} is null
+     * @throws IllegalArgumentException if the {@code operationTimeout} is negative
+     */
+    public void setOperationTimeout(Duration operationTimeout) {
+        if (operationTimeout.isNegative()) {
+            throw new IllegalArgumentException("Illegal operation timeout: " + operationTimeout);
+        }
+        this.operationTimeout = operationTimeout;
+    }
+
+    /**
+     * Returns the quantile of read latencies after which reads are hedged.
+     */
+    public double getHedgeQuantile() {
+        return hedgeQuantile;
+    }
+
+    /**
+     * Sets the quantile of the latencies of recent reads after which a read is hedged:
+     * the read is sent once more, over another connection or to another replica,
+     * and the reply that comes first is used. With the quantile of 0.95, about one
+     * of every twenty reads is sent twice. Zero, which is the default, disables hedging.
+     * Reads of single keys by {@code get} and {@code containsKey} are hedged by {@link JedisBackend}.
+     *
+     * @param hedgeQuantile the quantile, from 0 to 1 exclusive, or zero
+     * @throws IllegalArgumentException if the {@code hedgeQuantile} is out of range
+     */
+    public void setHedgeQuantile(double hedgeQuantile) {
+        if (!(hedgeQuantile >= 0.0 && hedgeQuantile < 1.0)) {
+            throw new IllegalArgumentException("Illegal hedge quantile: " + hedgeQuantile);
+        }
+        this.hedgeQuantile = hedgeQuantile;
+    }
+
+    /**
+     * Returns the time a read waits for concurrent reads to be sent together with them.
+     */
+    public Duration getReadCoalescingWindow() {
+        return readCoalescingWindow;
+    }
+
+    /**
+     * Sets the time a {@code get} or {@code containsKey} waits for concurrent reads
+     * of the same shard, so that all of them are sent as a single {@code HMGET}.
+     * Concurrent reads of the same key share the result. A window of tens of microseconds
+     * saves commands and connections under many concurrent reads at the cost of
+     * adding the window to the latency of every read.
+     * Zero, which is the default, sends every read on its own.
+     * Reads of a bounded map are never coalesced.
+     *
+     * @param readCoalescingWindow the window, or zero
+     * @throws NullPointerException if the {@code readCoalescingWindow} is null
+     * @throws IllegalArgumentException if the {@code readCoalescingWindow} is negative
+     */
+    public void setReadCoalescingWindow(Duration readCoalescingWindow) {
+        if (readCoalescingWindow.isNegative()) {
+            throw new IllegalArgumentException("Illegal read coalescing window: " + readCoalescingWindow);
+        }
+        this.readCoalescingWindow = readCoalescingWindow;
+    }
+
+    /**
+     * Returns the maximum number of operations the map executes at once.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of operations the map executes at once.
+     * The map starts with this limit and adapts it to the latency of Redis: the limit shrinks
+     * when operations fail or slow down and grows back while they complete in time.
+     * Only failures of the connection to Redis, such as timeouts, and the errors Redis replies with
+     * while it cannot serve commands ({@code OOM}, {@code BUSY}, {@code LOADING}, {@code MASTERDOWN}
+     * and {@code TRYAGAIN}) count as overload; exceptions thrown by the functions passed to the map
+     * or caused by the stored values, such as {@code WRONGTYPE} or a value that is not a number, do not.
+     * An operation over the limit fails with {@link RedisMapOverloadException} at once,
+     * without waiting for a connection, so an overloaded server is not sent more commands
+     * than it can serve. Retries of an optimistic transaction are executed within the operation
+     * and take no more of the limit. Iterations and other scans take the limit for each page
+     * they read, so they may fail in the middle. Heartbeats are not limited.
+     * Zero, which is the default, leaves the number of operations unlimited.
+     *
+     * @param maxConcurrency the maximum number of operations, or zero
+     * @throws IllegalArgumentException if the {@code maxConcurrency} is negative
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 0) {
+            throw new IllegalArgumentException("Illegal max concurrency: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+}
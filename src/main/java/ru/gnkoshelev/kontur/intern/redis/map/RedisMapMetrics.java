@@ -0,0 +1,67 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import javax.management.MXBean;
+import java.util.Map;
+
+/**
+ * Operation metrics of all {@link RedisMap} instances of the application.
+ * The metrics are registered in the platform MBean server under the name
+ * {@value #OBJECT_NAME} and can also be pulled with {@link RedisMap#getMetrics()}.
+ * Every getter returns a snapshot taken at the time of the call.
+ *
+ *  @author  Veronica Kazarina
+ */
+@MXBean
+public interface RedisMapMetrics {
+    /**
+     * The name the metrics are registered under.
+     */
+    String OBJECT_NAME = "ru.gnkoshelev.kontur.intern.redis.map:type=RedisMapMetrics";
+
+    /**
+     * Returns the statistics of every operation that has been executed at least once,
+     * keyed by operation name.
+     */
+    Map<String, OperationStats> getOperations();
+
+    /**
+     * Returns the time (in microseconds) spent waiting for pool connections.
+     */
+    HistogramStats getPoolWait();
+
+    /**
+     * Returns the delay (in microseconds) of expiration time updates
+     * relative to their schedule.
+     */
+    HistogramStats getHeartbeatLag();
+
+    /**
+     * Returns the number of entries returned by a single HSCAN call.
+     */
+    HistogramStats getScanPageSize();
+
+    /**
+     * Returns the number of key and value bytes sent to Redis.
+     */
+    long getBytesOut();
+
+    /**
+     * Returns the number of key and value bytes received from Redis.
+     */
+    long getBytesIn();
+
+    /**
+     * Returns the number of reads hedged by a second request.
+     */
+    long getHedges();
+
+    /**
+     * Returns the number of operations rejected by the concurrency limit.
+     */
+    long getRejections();
+
+    /**
+     * Resets all metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,27 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Thrown when an operation of a {@link RedisMap} is rejected without being sent to Redis
+ * because the map already executes as many operations as its concurrency limit allows.
+ * The operation may be retried later.
+ *
+ *  @author  Veronica Kazarina
+ * @see RedisMapConfig#setMaxConcurrency
+ */
+public class RedisMapOverloadException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+
+    public RedisMapOverloadException(String message, int limit) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the concurrency limit the operation was rejected at.
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,186 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes read-only operations of a {@link JedisBackend} to Redis replicas
+ * that are known to lag behind the primary by no more than the configured staleness.
+ *
+ * <p>A replica is checked by comparing its replication offset with the offset
+ * of the primary read just before. If the replica has reached the offset,
+ * it reflects every write made before the check, and it is used for reads
+ * until the check is older than the staleness bound.
+ * Checks are repeated twice per staleness period by the reading threads.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class ReplicaRouter {
+    /**
+     * Replica states shared by all maps.
+     */
+    private static final Map<HostAndPort, Replica> REPLICAS = new ConcurrentHashMap<>();
+
+    private final GatedJedisPool primary;
+    private final List<Replica> replicas;
+    private final long maxStaleness;
+    private final boolean readYourWrites;
+    private final long replicationTimeout;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The time (in nanoseconds) until which reads are pinned to the primary
+     * because the latest write of this map has not been acknowledged by replicas.
+     */
+    private volatile long primaryUntil;
+    private volatile boolean pinned;
+
+    ReplicaRouter(GatedJedisPool primary, RedisMapConfig config) {
+        this.primary = primary;
+        this.replicas = new ArrayList<>();
+        for (HostAndPort hostAndPort : config.getReplicas()) {
+            replicas.add(REPLICAS.computeIfAbsent(hostAndPort, Replica::new));
+        }
+        this.maxStaleness = config.getMaxStaleness().toNanos();
+        this.readYourWrites = config.isReadYourWrites();
+        this.replicationTimeout = config.getReplicationTimeout().toMillis();
+    }
+
+    /**
+     * Returns the pool to be used for a read-only operation.
+     * Falls back to the primary if no replica is fresh enough.
+     */
+    GatedJedisPool select() {
+        long now = System.nanoTime();
+        if (pinned) {
+            if (now - primaryUntil < 0) {
+                return primary;
+            }
+            pinned = false;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.isFresh(primary, maxStaleness, now)) {
+                return replica.pool;
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Marks the replica owning the specified pool as unavailable until its next check.
+     */
+    void failed(GatedJedisPool pool) {
+        for (Replica replica : replicas) {
+            if (replica.pool == pool) {
+                replica.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of the replica with the specified index.
+     */
+    GatedJedisPool pool(int index) {
+        return replicas.get(index).pool;
+    }
+
+    /**
+     * Returns the index of the replica owning the specified pool.
+     */
+    int indexOf(GatedJedisPool pool) {
+        for (int i = 0; i < replicas.size(); i++) {
+            if (replicas.get(i).pool == pool) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown pool");
+    }
+
+    /**
+     * Waits for the replicas to acknowledge the writes made through the specified connection
+     * if the map guarantees to read its own writes.
+     * If any replica fails to do it in time, reads are pinned to the primary
+     * for the staleness period.
+     */
+    void afterWrite(Jedis jedis) {
+        if (!readYourWrites) {
+            return;
+        }
+        if (jedis.waitReplicas(replicas.size(), replicationTimeout) < replicas.size()) {
+            primaryUntil = System.nanoTime() + maxStaleness;
+            pinned = true;
+        }
+    }
+
+    private static final class Replica {
+        private final GatedJedisPool pool;
+        private final AtomicBoolean checking = new AtomicBoolean();
+        private volatile boolean checked;
+        private volatile long checkedAt;
+        private volatile boolean caughtUp;
+        private volatile long caughtUpAt;
+
+        Replica(HostAndPort hostAndPort) {
+            this.pool = new GatedJedisPool(JedisBackend.createPoolConfig(),
+                    hostAndPort.getHost(), hostAndPort.getPort());
+        }
+
+        boolean isFresh(GatedJedisPool primary, long maxStaleness, long now) {
+            if ((!checked || now - checkedAt > maxStaleness / 2) && checking.compareAndSet(false, true)) {
+                try {
+                    check(primary);
+                } finally {
+                    checking.set(false);
+                }
+                now = System.nanoTime();
+            }
+            return caughtUp && now - caughtUpAt <= maxStaleness;
+        }
+
+        void invalidate() {
+            caughtUp = false;
+        }
+
+        private void check(GatedJedisPool primary) {
+            long start = System.nanoTime();
+            try {
+                long primaryOffset;
+                try (Jedis jedis = primary.getResource()) {
+                    primaryOffset = parseOffset(jedis.info("replication"), "master_repl_offset");
+                }
+                String info;
+                try (Jedis jedis = pool.getResource()) {
+                    info = jedis.info("replication");
+                }
+                if (info.contains("master_link_status:up")
+                        && parseOffset(info, "slave_repl_offset") >= primaryOffset) {
+                    caughtUpAt = start;
+                    caughtUp = true;
+                }
+            } catch (JedisException | IllegalStateException e) {
+                caughtUp = false;
+            }
+            checkedAt = start;
+            checked = true;
+        }
+
+        private static long parseOffset(String info, String field) {
+            for (String line : info.split("\r\n")) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim());
+                }
+            }
+            throw new IllegalStateException("No " + field + " in replication info");
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A page of hash fields returned by {@link RedisMapBackend#scan}.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class ScanPage {
+    private final String cursor;
+    private final List<Entry<String, String>> entries;
+
+    public ScanPage(String cursor, List<Entry<String, String>> entries) {
+        this.cursor = cursor;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the cursor of the next page, or {@code "0"} if the scan is complete.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns the fields and their values.
+     */
+    public List<Entry<String, String>> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,46 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * A scope in which the maps called by the thread that opened it share a single connection
+ * to the primary Redis server, so that a burst of calls does not borrow and return
+ * a connection on every call. The scope is opened by {@link RedisMap#session()}
+ * and ends when it is closed by the same thread. Sessions opened within a session
+ * share the connection of the outermost one.
+ *
+ * <p>The connection is borrowed on the first call and returned when the session is closed,
+ * so a session should be short, as in
+ * <pre>{@code
+ * try (Session session = RedisMap.session()) {
+ *     ...
+ * }
+ * }</pre>
+ * Reads served by replicas do not use the connection.
+ * Sessions only affect maps with the default {@link JedisBackend}.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class Session implements AutoCloseable {
+    private final Thread thread = Thread.currentThread();
+    private final Runnable onClose;
+    private boolean closed;
+
+    Session(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Ends the session, returning the connection if the session is the outermost one.
+     *
+     * @throws IllegalStateException if called by a thread other than the one that opened the session
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() != thread) {
+            throw new IllegalStateException("Illegal thread: " + Thread.currentThread().getName());
+        }
+        if (!closed) {
+            closed = true;
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A page of stream entries returned by {@link HashOperations#xrange},
+ * together with the numbers of the first and the last entries of the stream.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class StreamPage {
+    private final long first;
+    private final long last;
+    private final List<Entry<Long, Map<String, String>>> entries;
+
+    public StreamPage(long first, long last, List<Entry<Long, Map<String, String>>> entries) {
+        this.first = first;
+        this.last = last;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the number of the oldest entry kept in the stream, or zero if the stream is empty.
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * Returns the number of the latest entry of the stream, or zero if the stream is empty.
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * Returns the entries by their numbers in ascending order.
+     */
+    public List<Entry<Long, Map<String, String>>> getEntries() {
+        return entries;
+    }
+}
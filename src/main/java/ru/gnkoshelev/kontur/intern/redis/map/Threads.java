@@ -0,0 +1,45 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates the threads maps run their background and parallel tasks on.
+ * This version creates platform threads. The build for Java 21 and later
+ * adds a version that creates virtual threads, which the multi-release jar
+ * loads on those versions of Java.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class Threads {
+    /**
+     * Whether the threads are virtual, which makes a task per shard cheap.
+     */
+    static final boolean VIRTUAL = false;
+
+    private Threads() {
+    }
+
+    /**
+     * Returns a new service that runs scheduled tasks one at a time.
+     *
+     * @param name the name of the thread
+     */
+    static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, name));
+    }
+
+    /**
+     * Returns a new service that runs every task as soon as it is submitted, on daemon threads.
+     *
+     * @param name the name of the threads
+     */
+    static ExecutorService newTaskExecutor(String name) {
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
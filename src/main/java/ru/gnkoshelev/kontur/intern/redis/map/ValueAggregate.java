@@ -0,0 +1,89 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.OptionalDouble;
+
+/**
+ * The number of the values of a {@link RedisMap} that have passed a {@link ValueFilter},
+ * and the sum and the bounds of those of them that are numbers.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class ValueAggregate {
+    static final ValueAggregate EMPTY = new ValueAggregate(0L, 0L, 0.0, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY);
+
+    private final long count;
+    private final long numberCount;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    public ValueAggregate(long count, long numberCount, double sum, double min, double max) {
+        this.count = count;
+        this.numberCount = numberCount;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Returns the aggregate of the values of both aggregates.
+     */
+    ValueAggregate combine(ValueAggregate other) {
+        return new ValueAggregate(count + other.count, numberCount + other.numberCount, sum + other.sum,
+                Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    /**
+     * Returns the aggregate with the value added.
+     */
+    ValueAggregate add(String value) {
+        Double number = ValueFilter.parseNumber(value);
+        if (number == null) {
+            return new ValueAggregate(count + 1L, numberCount, sum, min, max);
+        }
+        return new ValueAggregate(count + 1L, numberCount + 1L, sum + number,
+                Math.min(min, number), Math.max(max, number));
+    }
+
+    /**
+     * Returns the number of values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of values that are numbers.
+     */
+    public long getNumberCount() {
+        return numberCount;
+    }
+
+    /**
+     * Returns the sum of the values that are numbers.
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the least of the values that are numbers, or an empty optional if there are none.
+     */
+    public OptionalDouble getMin() {
+        return numberCount == 0L ? OptionalDouble.empty() : OptionalDouble.of(min);
+    }
+
+    /**
+     * Returns the greatest of the values that are numbers, or an empty optional if there are none.
+     */
+    public OptionalDouble getMax() {
+        return numberCount == 0L ? OptionalDouble.empty() : OptionalDouble.of(max);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", numberCount=" + numberCount + ", sum=" + sum
+                + (numberCount == 0L ? "" : ", min=" + min + ", max=" + max);
+    }
+}
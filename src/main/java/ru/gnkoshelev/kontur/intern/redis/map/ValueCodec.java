@@ -0,0 +1,43 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+/**
+ * Converts the values of a {@link RedisMap} to the form they are stored in Redis and back.
+ * Implementations must be thread-safe, and {@code decode(encode(value))}
+ * must be equal to {@code value} for every String.
+ *
+ * <p>All maps linked to the same Redis hash have to use compatible codecs.
+ *
+ *  @author  Veronica Kazarina
+ */
+public interface ValueCodec {
+    /**
+     * The codec that stores values as they are.
+     */
+    ValueCodec IDENTITY = new ValueCodec() {
+        @Override
+        public String encode(String value) {
+            return value;
+        }
+
+        @Override
+        public String decode(String value) {
+            return value;
+        }
+    };
+
+    /**
+     * Converts a value to the form it is stored in Redis.
+     *
+     * @param value the value, never {@code null}
+     * @return the stored form of the value
+     */
+    String encode(String value);
+
+    /**
+     * Converts a value stored in Redis back to its original form.
+     *
+     * @param value the stored form of the value, never {@code null}
+     * @return the original value
+     */
+    String decode(String value);
+}
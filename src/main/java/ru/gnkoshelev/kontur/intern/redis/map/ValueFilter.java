@@ -0,0 +1,155 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.Objects;
+
+/**
+ * A predicate over the values of a {@link RedisMap} evaluated by {@link RedisMap#aggregate}
+ * and {@link RedisMap#filter} where the values are stored, so that only the results are sent by Redis.
+ *
+ * <p>A value is a number if it consists of decimal digits, an optional sign, decimal point
+ * and exponent, as {@code "-1.5e3"}; other values, including {@code null}, are not numbers.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class ValueFilter {
+    public enum Kind {
+        ANY,
+        EQUAL,
+        PREFIX,
+        RANGE
+    }
+
+    private static final ValueFilter ANY = new ValueFilter(Kind.ANY, null, 0.0, 0.0, null);
+
+    private final Kind kind;
+    private final String operand;
+    private final double min;
+    private final double max;
+    private final String excluded;
+
+    private ValueFilter(Kind kind, String operand, double min, double max, String excluded) {
+        this.kind = kind;
+        this.operand = operand;
+        this.min = min;
+        this.max = max;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Returns the filter that passes every value.
+     */
+    public static ValueFilter any() {
+        return ANY;
+    }
+
+    /**
+     * Returns the filter that passes the values equal to the specified one.
+     *
+     * @param value the value, which may be {@code null}
+     * @return the filter
+     */
+    public static ValueFilter equalTo(String value) {
+        return new ValueFilter(Kind.EQUAL, value, 0.0, 0.0, null);
+    }
+
+    /**
+     * Returns the filter that passes the values starting with the specified prefix.
+     *
+     * @param prefix the prefix
+     * @return the filter
+     */
+    public static ValueFilter startingWith(String prefix) {
+        return new ValueFilter(Kind.PREFIX, Objects.requireNonNull(prefix), 0.0, 0.0, null);
+    }
+
+    /**
+     * Returns the filter that passes the numbers within the closed range.
+     *
+     * @param min the lower bound of the range
+     * @param max the upper bound of the range
+     * @return the filter
+     * @throws IllegalArgumentException if a bound is not a number or {@code min > max}
+     */
+    public static ValueFilter between(double min, double max) {
+        if (Double.isNaN(min) || Double.isNaN(max) || min > max) {
+            throw new IllegalArgumentException("Illegal range: [" + min + ", " + max + "]");
+        }
+        return new ValueFilter(Kind.RANGE, null, min, max, null);
+    }
+
+    /**
+     * Returns the same filter that also rejects the specified value.
+     */
+    ValueFilter excluding(String value) {
+        return new ValueFilter(kind, operand, min, max, value);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the value of an {@link Kind#EQUAL} filter or the prefix of a {@link Kind#PREFIX} one.
+     */
+    public String getOperand() {
+        return operand;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value the filter rejects whatever its kind, or {@code null} if there is none.
+     */
+    public String getExcluded() {
+        return excluded;
+    }
+
+    /**
+     * Returns {@code true} if the filter passes the value.
+     *
+     * @param value the value, or {@code null}
+     * @return {@code true} if the value passes
+     */
+    public boolean test(String value) {
+        if (value != null && value.equals(excluded)) {
+            return false;
+        }
+        switch (kind) {
+            case EQUAL:
+                return Objects.equals(operand, value);
+            case PREFIX:
+                return value != null && value.startsWith(operand);
+            case RANGE:
+                Double number = parseNumber(value);
+                return number != null && min <= number && number <= max;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the number the value consists of, or {@code null} if it is not a number.
+     */
+    public static Double parseNumber(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && c != '.' && c != 'e' && c != 'E' && c != '+' && c != '-') {
+                return null;
+            }
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A chunk of a hash scanned by {@link HashOperations#hquery}: the aggregate of the values
+ * that have passed the filter, the fields and values themselves if they were requested,
+ * and the cursor of the next chunk.
+ *
+ *  @author  Veronica Kazarina
+ */
+public final class ValuePage {
+    private final String cursor;
+    private final ValueAggregate aggregate;
+    private final List<Entry<String, String>> entries;
+
+    public ValuePage(String cursor, ValueAggregate aggregate, List<Entry<String, String>> entries) {
+        this.cursor = cursor;
+        this.aggregate = aggregate;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the cursor of the next chunk, or {@code "0"} if the scan is complete.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public ValueAggregate getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Returns the fields and values that have passed the filter, or an empty list if they were not requested.
+     */
+    public List<Entry<String, String>> getEntries() {
+        return entries;
+    }
+}
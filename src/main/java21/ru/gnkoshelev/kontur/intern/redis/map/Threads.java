@@ -0,0 +1,40 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates the threads maps run their background and parallel tasks on.
+ * This version, loaded from the multi-release jar on Java 21 and later, creates virtual threads,
+ * so a map takes no platform thread for its heartbeats and scans may run a task per shard.
+ *
+ *  @author  Veronica Kazarina
+ */
+final class Threads {
+    /**
+     * Whether the threads are virtual, which makes a task per shard cheap.
+     */
+    static final boolean VIRTUAL = true;
+
+    private Threads() {
+    }
+
+    /**
+     * Returns a new service that runs scheduled tasks one at a time.
+     *
+     * @param name the name of the thread
+     */
+    static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name(name).factory());
+    }
+
+    /**
+     * Returns a new service that runs every task as soon as it is submitted, on daemon threads.
+     *
+     * @param name the name of the threads
+     */
+    static ExecutorService newTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name).factory());
+    }
+}
@@ -0,0 +1,60 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeflateCodecTest {
+    @Rule
+    public ExpectedException exceptionRule = ExpectedException.none();
+
+    @Test
+    public void testEncode_Decode_SmallValues() {
+        ValueCodec codec = new DeflateCodec();
+        assertEquals("", codec.encode(""));
+        assertEquals("value", codec.encode("value"));
+        assertEquals("value", codec.decode("value"));
+        assertEquals("\u0000\u0000value", codec.encode("\u0000value"));
+        assertEquals("\u0000value", codec.decode(codec.encode("\u0000value")));
+        assertEquals("\u0000", codec.decode(codec.encode("\u0000")));
+    }
+
+    @Test
+    public void testEncode_Decode_BigValues() {
+        ValueCodec codec = new DeflateCodec(16, Deflater.BEST_SPEED);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("{\"key\":\"\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435 ")
+                    .append(i % 10).append("\"},");
+        }
+        String value = builder.toString();
+        String encoded = codec.encode(value);
+        assertTrue(encoded.length() < value.length() / 4);
+        assertTrue(encoded.startsWith("\u0000D"));
+        assertEquals(value, codec.decode(encoded));
+    }
+
+    @Test
+    public void testEncode_IncompressibleValue() {
+        ValueCodec codec = new DeflateCodec(0, Deflater.DEFAULT_COMPRESSION);
+        assertEquals("abc", codec.encode("abc"));
+    }
+
+    @Test
+    public void testDecode_IllegalFormat() {
+        exceptionRule.expect(IllegalArgumentException.class);
+        new DeflateCodec().decode("\u0000X");
+    }
+
+    @Test
+    public void testConstructor_IllegalThreshold() {
+        exceptionRule.expect(IllegalArgumentException.class);
+        exceptionRule.expectMessage("Illegal threshold: -1");
+        new DeflateCodec(-1, Deflater.DEFAULT_COMPRESSION);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    @Test
+    public void testSnapshot_Empty() {
+        HistogramStats stats = new Histogram().snapshot(1.0);
+        assertEquals(0L, stats.getCount());
+        assertEquals(0.0, stats.getMean(), 0.0);
+        assertEquals(0.0, stats.getP99(), 0.0);
+        assertEquals(0.0, stats.getMax(), 0.0);
+    }
+
+    @Test
+    public void testSnapshot_Percentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HistogramStats stats = histogram.snapshot(1.0);
+        assertEquals(1000L, stats.getCount());
+        assertEquals(500.5, stats.getMean(), 0.001);
+        assertEquals(1000.0, stats.getMax(), 0.0);
+        assertTrue(stats.getP50() >= 500 && stats.getP50() < 500 * 1.25);
+        assertTrue(stats.getP99() >= 990 && stats.getP99() < 990 * 1.25);
+        assertTrue(stats.getP999() >= stats.getP99());
+    }
+
+    @Test
+    public void testValueAt() {
+        Histogram histogram = new Histogram();
+        assertEquals(0L, histogram.valueAt(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertTrue(histogram.valueAt(0.9) >= 900 && histogram.valueAt(0.9) < 900 * 1.25);
+        assertEquals((long) histogram.snapshot(1.0).getP99(), histogram.valueAt(0.99));
+    }
+
+    @Test
+    public void testSnapshot_Scale_Reset() {
+        Histogram histogram = new Histogram();
+        histogram.record(3000L);
+        histogram.record(-1L);
+        HistogramStats stats = histogram.snapshot(1000.0);
+        assertEquals(2L, stats.getCount());
+        assertEquals(3.0, stats.getMax(), 0.0);
+        assertEquals(0.0, stats.getP50(), 0.0);
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.snapshot(1.0).getP999(), 1.0);
+
+        histogram.reset();
+        assertEquals(0L, histogram.snapshot(1.0).getCount());
+    }
+}
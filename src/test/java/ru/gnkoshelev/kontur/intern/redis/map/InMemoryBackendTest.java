@@ -0,0 +1,972 @@
+package ru.gnkoshelev.kontur.intern.redis.map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryBackendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryBackend backend;
+    private RedisMapConfig config;
+
+    @Before
+    public void setUp() {
+        backend = new InMemoryBackend();
+        config = new RedisMapConfig();
+        config.setBackend(backend);
+    }
+
+    @Test
+    public void testCompareAndSet_GetAndSet() {
+        assertFalse(backend.compareAndSet("hash", "field", "value", "other"));
+        assertTrue(backend.compareAndSet("hash", "field", null, "value"));
+        assertFalse(backend.compareAndSet("hash", "field", null, "other"));
+        assertTrue(backend.compareAndSet("hash", "field", "value", "other"));
+        assertEquals("other", backend.getAndSet("hash", "field", "value"));
+        assertEquals("hash", backend.type("hash"));
+
+        assertEquals("value", backend.getAndSet("hash", "field", null));
+        assertFalse(backend.exists("hash"));
+        assertEquals("none", backend.type("hash"));
+    }
+
+    @Test
+    public void testHincrBy() {
+        assertEquals(5L, backend.hincrBy("hash", "counter", 5L));
+        assertEquals(3L, backend.hincrBy("hash", "counter", -2L));
+        assertEquals(4.5, backend.hincrByFloat("hash", "counter", 1.5), 0.0);
+        assertEquals("4.5", backend.hget("hash", "counter"));
+
+        backend.hset(Map.of("hash", Map.of("text", "abc")));
+        try {
+            backend.hincrByAll(Map.of("hash", Map.of("text", 1L, "other", 2L)));
+            throw new AssertionError();
+        } catch (NumberFormatException e) {
+            assertEquals("2", backend.hget("hash", "other"));
+        }
+    }
+
+    @Test
+    public void testScan() {
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < 250; i++) {
+            fields.put("field" + i, "value" + i);
+        }
+        backend.hset(Map.of("hash", fields));
+
+        Set<String> scanned = new HashSet<>();
+        String cursor = "0";
+        int pages = 0;
+        do {
+            ScanPage page = backend.scan("hash", cursor, 100);
+            page.getEntries().forEach(e -> assertTrue(scanned.add(e.getKey())));
+            cursor = page.getCursor();
+            pages++;
+        } while (!"0".equals(cursor));
+        assertEquals(3, pages);
+        assertEquals(fields.keySet(), scanned);
+    }
+
+    @Test
+    public void testScan_Match() {
+        backend.hset(Map.of("hash", Map.of("user:1", "a", "user:2", "b", "order:1", "c")));
+        ScanPage page = backend.scan("hash", "0", 100, "user:*");
+        assertEquals("0", page.getCursor());
+        assertEquals(2, page.getEntries().size());
+
+        assertTrue(Glob.matches("h?llo", "hello"));
+        assertTrue(Glob.matches("h*o", "ho"));
+        assertTrue(Glob.matches("h[ae]llo", "hallo"));
+        assertFalse(Glob.matches("h[^e]llo", "hello"));
+        assertTrue(Glob.matches("h[a-c]*", "hbyy"));
+        assertTrue(Glob.matches("a\\*b", "a*b"));
+        assertFalse(Glob.matches("a\\*b", "axb"));
+        assertTrue(Glob.matches(Glob.escape("[x]*?") + "*", "[x]*?y"));
+
+        assertEquals("h*llo*", Glob.widen("h?llo[a-z\\]]"));
+        assertEquals("a\\?\\[*", Glob.widen("a\\?\\[[^b]"));
+        assertEquals("x*", Glob.widen("x[abc"));
+    }
+
+    @Test
+    public void testExpire_Replace() throws InterruptedException {
+        backend.hset(Map.of("first", Map.of("field", "value"), "second", Map.of("field", "value")));
+        backend.expire(1, "first");
+        backend.replace(Map.of("second", Map.of("other", "value")), 100);
+        assertNull(backend.hget("second", "field"));
+        assertArrayEquals(new long[] {1L, 1L}, backend.hlenAll(new String[] {"first", "second"}));
+
+        Thread.sleep(1100);
+        assertFalse(backend.exists("first"));
+        assertTrue(backend.exists("second"));
+    }
+
+    @Test
+    public void testLease_Release() throws InterruptedException {
+        backend.hset(Map.of("first", Map.of("field", "value"), "second", Map.of("field", "value")));
+        assertEquals(1L, backend.lease("holders", "a", 100_000L, "first", "second"));
+        assertEquals(2L, backend.lease("holders", "b", 500L, "first", "second"));
+        assertEquals(1L, backend.release("holders", "a", "first", "second"));
+        assertTrue(backend.exists("first"));
+
+        Thread.sleep(600);
+        assertFalse(backend.exists("first"));
+        assertFalse(backend.exists("holders"));
+
+        backend.hset(Map.of("first", Map.of("field", "value")));
+        backend.lease("holders", "a", 100_000L, "first");
+        assertEquals(0L, backend.release("holders", "a", "first"));
+        assertFalse(backend.exists("first"));
+    }
+
+    @Test
+    public void testXadd_Xrange() {
+        assertEquals(0L, backend.xrange("stream", 0L, 10).getLast());
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, backend.xadd("stream", Map.of("field", "value" + i), 3L));
+        }
+        StreamPage page = backend.xrange("stream", 3L, 10);
+        assertEquals(3L, page.getFirst());
+        assertEquals(5L, page.getLast());
+        assertEquals(2, page.getEntries().size());
+        assertEquals(Long.valueOf(4L), page.getEntries().get(0).getKey());
+        assertEquals(Map.of("field", "value5"), page.getEntries().get(1).getValue());
+        assertEquals("stream", backend.type("stream"));
+    }
+
+    @Test
+    public void testMap_LocalReplica() throws InterruptedException {
+        config.setChangeStream(true);
+        RedisMap map = RedisMap.create(config);
+        map.put("one", "1");
+        map.put(null, null);
+        try (LocalReplica replica = map.localReplica()) {
+            assertEquals(map, replica);
+            assertTrue(replica.containsKey(null));
+
+            //the layout makes maps linked with a default configuration publish their changes too
+            RedisMapConfig otherConfig = new RedisMapConfig();
+            otherConfig.setBackend(backend);
+            RedisMap other = new RedisMap(map.getRedisKey(), otherConfig);
+            other.put("two", "2");
+            map.remove("one");
+            map.remove(null);
+            map.incrementBy("three", 3L);
+            awaitEqual(map, replica);
+            assertEquals(Map.of("two", "2", "three", "3"), replica);
+
+            map.clear();
+            map.put("four", "4");
+            awaitEqual(map, replica);
+            assertTrue(replica.getLag() < 5_000L);
+        }
+    }
+
+    @Test
+    public void testMap_LocalReplica_RemoveAfterPut() throws InterruptedException {
+        config.setChangeStream(true);
+        RedisMap map = RedisMap.create(config);
+        Map<String, String> values = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        long position = map.getChangesPosition();
+        map.put("one", "1");
+        map.put("two", "2");
+        position = map.readChanges(position, 100, values, removed);
+        map.remove("one");
+        map.readChanges(position, 100, values, removed);
+        assertEquals(Map.of("two", "2"), values);
+        assertEquals(Set.of("one"), removed);
+
+        try (LocalReplica replica = map.localReplica()) {
+            map.put("three", "3");
+            awaitEqual(map, replica);
+            map.remove("three");
+            awaitEqual(map, replica);
+            assertFalse(replica.containsKey("three"));
+        }
+    }
+
+    @Test
+    public void testMap_LocalReplica_Bounded() throws InterruptedException {
+        config.setChangeStream(true);
+        config.setMaxEntries(3);
+        RedisMap map = RedisMap.create(config);
+        try (LocalReplica replica = map.localReplica()) {
+            for (int i = 0; i < 3; i++) {
+                map.put("key" + i, "value" + i);
+            }
+            awaitEqual(map, replica);
+
+            //only the entries of the evicting writes name the evicted fields
+            map.put("key3", "value3");
+            map.put("key4", "value4");
+            awaitEqual(map, replica);
+            assertEquals(Map.of("key2", "value2", "key3", "value3", "key4", "value4"), replica);
+        }
+    }
+
+    @Test
+    public void testMap_LocalReplica_Snapshot() throws IOException, InterruptedException {
+        config.setChangeStream(true);
+        RedisMap map = RedisMap.create(config);
+        map.put("one", "1");
+        map.put(null, null);
+        Path directory = folder.newFolder().toPath();
+        try (LocalReplica replica = map.localReplica(directory)) {
+            assertEquals(map, replica);
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < 1500; i++) {
+                values.put("key" + i, "value" + i);
+            }
+            map.putAll(values);
+            awaitEqual(map, replica);
+            map.remove("key0");
+            awaitEqual(map, replica);
+        }
+
+        //the next replica starts from the file and reads the changes made since
+        map.put("two", "2");
+        map.remove(null);
+        try (LocalReplica replica = map.localReplica(directory)) {
+            assertEquals(new HashMap<>(map), replica);
+            assertFalse(replica.containsKey(null));
+            assertFalse(replica.containsKey("key0"));
+            assertEquals("value1", replica.get("key1"));
+        }
+
+        //a map created anew is not confused with the one the file has been written for
+        backend.del(map.getRedisKey());
+        RedisMap created = new RedisMap(map.getRedisKey(), config);
+        created.put("three", "3");
+        try (LocalReplica replica = created.localReplica(directory)) {
+            assertEquals(Map.of("three", "3"), replica);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMap_LocalReplica_NoChangeStream() {
+        RedisMap.create(config).localReplica();
+    }
+
+    private static void awaitEqual(Map<String, String> expected, Map<String, String> actual)
+            throws InterruptedException {
+        for (int i = 0; i < 50 && !new HashMap<>(expected).equals(actual); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(new HashMap<>(expected), actual);
+    }
+
+    @Test
+    public void testMap_Atomically() {
+        config.setShards(4);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "value1");
+        map.put(null, null);
+        List<String> results = map.atomically(batch -> batch
+                .putIfAbsent(null, "value0")
+                .replace("key2", "value2")
+                .put("key2", "value2")
+                .replace("key2", "value3")
+                .remove("key1", "value1")
+                .remove("key1"));
+
+        assertEquals(Arrays.asList(null, null, null, "value2", "value1", null), results);
+        assertEquals("value0", map.remove(null));
+        assertEquals(Map.of("key2", "value3"), new HashMap<>(map));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMap_Atomically_Bounded() {
+        config.setMaxEntries(10);
+        RedisMap.create(config).atomically(batch -> batch.put("key", "value"));
+    }
+
+    @Test
+    public void testMap_ExportImport() throws IOException {
+        config.setShards(3);
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 2500; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        map.put(null, "\"quoted\"\n\\ \u00e9\u4e2d");
+        map.put("empty", "");
+        map.put("null", null);
+
+        //the copy has a different layout
+        RedisMapConfig copyConfig = new RedisMapConfig();
+        copyConfig.setBackend(backend);
+        copyConfig.setKeyPrefix("key");
+        for (ExportFormat format : ExportFormat.values()) {
+            for (boolean compressed : new boolean[] {false, true}) {
+                Path path = folder.newFile().toPath();
+                assertEquals(2503L, map.exportTo(path, format, compressed));
+                RedisMap copy = RedisMap.create(copyConfig);
+                assertEquals(2503L, copy.importFrom(path));
+                assertEquals(new HashMap<>(map), new HashMap<>(copy));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMap_Import_Truncated() throws IOException {
+        RedisMap map = RedisMap.create(config);
+        map.put("key", "value");
+        Path path = folder.newFile().toPath();
+        map.exportTo(path);
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+        map.importFrom(path);
+    }
+
+    @Test
+    public void testMap_Publish() throws InterruptedException {
+        config.setShards(3);
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 250; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        map.put(null, null);
+
+        //requests one entry at a time
+        CollectingSubscriber<Map.Entry<String, String>> entries = new CollectingSubscriber<>(1L);
+        map.publishEntries().subscribe(entries);
+        entries.await();
+        assertEquals(map.entrySet(), new HashSet<>(entries.items));
+        assertEquals(251, entries.items.size());
+
+        CollectingSubscriber<String> keys = new CollectingSubscriber<>(Long.MAX_VALUE);
+        map.publishKeys().subscribe(keys);
+        keys.await();
+        Set<String> expected = new HashSet<>(map.keySet());
+        expected.remove(null);
+        assertEquals(expected, new HashSet<>(keys.items));
+
+        CollectingSubscriber<String> illegal = new CollectingSubscriber<>(0L);
+        map.publishValues().subscribe(illegal);
+        illegal.await();
+        assertTrue(illegal.error instanceof IllegalArgumentException);
+        assertTrue(illegal.items.isEmpty());
+    }
+
+    @Test
+    public void testMap_Publish_Cancel() throws InterruptedException {
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 250; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        List<String> values = new CopyOnWriteArrayList<>();
+        CountDownLatch received = new CountDownLatch(3);
+        map.publishValues().subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(5L);
+            }
+
+            @Override
+            public void onNext(String item) {
+                values.add(item);
+                received.countDown();
+                if (values.size() == 3) {
+                    subscription.cancel();
+                    subscription.request(10L);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                values.add("error");
+            }
+
+            @Override
+            public void onComplete() {
+                values.add("complete");
+            }
+        });
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(3, values.size());
+    }
+
+    @Test
+    public void testMap_Publish_ThrowingSubscriber() throws InterruptedException {
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 250; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        IllegalStateException failure = new IllegalStateException();
+        CollectingSubscriber<String> keys = new CollectingSubscriber<>(1L) {
+            @Override
+            public void onNext(String item) {
+                super.onNext(item);
+                if (items.size() == 2) {
+                    throw failure;
+                }
+            }
+        };
+        map.publishKeys().subscribe(keys);
+        keys.await();
+        assertEquals(failure, keys.error);
+        Thread.sleep(200);
+        assertEquals(2, keys.items.size());
+    }
+
+    /**
+     * Requests the specified number of items on subscription and after every item.
+     */
+    private static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+        private final long batch;
+        final List<T> items = new CopyOnWriteArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        CollectingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+            if (batch != Long.MAX_VALUE) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testMap_KeysMatching() {
+        for (String keyPrefix : List.of("", "user:")) {
+            config.setKeyPrefix(keyPrefix);
+            config.setShards(2);
+            RedisMap map = RedisMap.create(config);
+            map.put("user:1", "a");
+            map.put("user:2", null);
+            map.put("user:*", "c");
+            map.put("order:1", "d");
+            map.put("\u0001user", "e");
+            map.put(null, "f");
+
+            assertEquals(Set.of("user:1", "user:2", "user:*"), map.keysMatching("user:*"));
+            assertEquals(Set.of("user:1", "order:1"), map.keysMatching("*:1"));
+            assertEquals(Set.of("user:*"), map.keysWithPrefix("user:*"));
+            assertEquals(Set.of("\u0001user"), map.keysWithPrefix("\u0001"));
+            assertEquals(Set.of("order:1"), map.keysMatching("o*"));
+            assertEquals(Set.of("user:1", "user:2", "user:*"), map.keysMatching("u*"));
+            Map<String, String> expected = new HashMap<>();
+            expected.put("user:1", "a");
+            expected.put("user:2", null);
+            assertEquals(expected, map.entriesMatching("user:[0-9]"));
+        }
+    }
+
+    @Test
+    public void testMap_Aggregate_Filter() {
+        config.setShards(3);
+        for (ValueCodec codec : List.of(ValueCodec.IDENTITY, new DeflateCodec(1, 1))) {
+            config.setValueCodec(codec);
+            RedisMap map = RedisMap.create(config);
+            for (int i = 1; i <= 2500; i++) {
+                map.put("key" + i, Integer.toString(i));
+            }
+            map.put("text", "NaN");
+            map.put("hex", "0x10");
+            map.put("null", null);
+            map.put(null, "-1.5e1");
+
+            ValueAggregate all = map.aggregate(ValueFilter.any());
+            assertEquals(2504L, all.getCount());
+            assertEquals(2501L, all.getNumberCount());
+            assertEquals(2500.0 * 2501 / 2 - 15.0, all.getSum(), 0.0);
+            assertEquals(-15.0, all.getMin().getAsDouble(), 0.0);
+            assertEquals(2500.0, all.getMax().getAsDouble(), 0.0);
+
+            assertEquals(12L, map.count(ValueFilter.startingWith("25")));
+            assertEquals(1L, map.count(ValueFilter.startingWith("N")));
+            assertEquals(1L, map.count(ValueFilter.equalTo(null)));
+            assertEquals(Collections.singletonMap("null", null), map.filter(ValueFilter.equalTo(null)));
+            assertEquals(Map.of("key7", "7"), map.filter(ValueFilter.equalTo("7")));
+
+            Map<String, String> expected = new HashMap<>();
+            expected.put(null, "-1.5e1");
+            expected.put("key1", "1");
+            expected.put("key2", "2");
+            assertEquals(expected, map.filter(ValueFilter.between(Double.NEGATIVE_INFINITY, 2.0)));
+            assertFalse(map.aggregate(ValueFilter.equalTo("none")).getMin().isPresent());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueFilter_IllegalRange() {
+        ValueFilter.between(2.0, 1.0);
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        RedisMap map = RedisMap.create(config);
+        Session session = RedisMap.session();
+        Session nested = RedisMap.session();
+        try {
+            map.put("key", "value");
+        } finally {
+            nested.close();
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(session::close).get();
+            throw new AssertionError();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        } finally {
+            executor.shutdown();
+        }
+        session.close();
+        session.close();
+        assertEquals("value", map.get("key"));
+    }
+
+    @Test
+    public void testMap_ForEachEntry_Iterators() {
+        config.setShards(2);
+        config.setKeyPrefix("key");
+        RedisMap map = RedisMap.create(config);
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            expected.put(i % 2 == 0 ? "key" + i : "other" + i, i % 7 == 0 ? null : "value" + i);
+        }
+        expected.put(null, "null");
+        map.putAll(expected);
+
+        Map<String, String> entries = new HashMap<>();
+        Set<Map.Entry<String, String>> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        map.forEachEntry(entry -> {
+            assertNull(entries.put(entry.getKey(), entry.getValue()));
+            instances.add(entry);
+        });
+        assertEquals(expected, entries);
+        assertEquals(1, instances.size());
+
+        assertEquals(expected.keySet(), new HashSet<>(map.keySet()));
+        assertEquals(expected.size(), map.values().size());
+        Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            if (entry.getKey() == null || entry.getKey().startsWith("other")) {
+                iterator.remove();
+            }
+            count++;
+        }
+        assertEquals(expected.size(), count);
+        assertEquals(150, map.size());
+    }
+
+    @Test
+    public void testMap_Sampling() {
+        config.setSamplingRate(1);
+        RedisMap map = RedisMap.create(config);
+        map.put("big", "x".repeat(1000));
+        for (int i = 0; i < 200; i++) {
+            map.put("key" + i, Integer.toString(i));
+            map.get("hot");
+            map.merge("hot", "1", (a, b) -> Integer.toString(Integer.parseInt(a) + 1));
+        }
+
+        Map.Entry<String, Long> hot = map.getHotFields().entrySet().iterator().next();
+        assertEquals("hot", hot.getKey());
+        assertTrue(hot.getValue() >= 400L);
+        assertTrue(map.getHotFields().size() <= FieldSampler.CAPACITY);
+        assertEquals(Long.valueOf(1000L), map.getBigFields().get("big"));
+        assertEquals("big", map.getBigFields().keySet().iterator().next());
+        assertEquals(1000.0, map.getValueSizes().getMax(), 0.0);
+
+        map.resetSampling();
+        assertTrue(map.getHotFields().isEmpty());
+        assertEquals(0L, map.getValueSizes().getCount());
+    }
+
+    @Test
+    public void testMap_Sampling_NestedOperations() {
+        config.setSamplingRate(1);
+        config.setMaxConcurrency(1);
+        RedisMap map = RedisMap.create(config);
+        map.put("outer", "1");
+        assertEquals("2", map.compute("outer", (k, v) -> {
+            map.put("inner", "x".repeat(1000));
+            return map.get("inner").length() == 1000 ? "2" : v;
+        }));
+
+        assertEquals(Long.valueOf(1000L), map.getBigFields().get("inner"));
+        assertEquals(Long.valueOf(1L), map.getBigFields().get("outer"));
+        assertEquals(Long.valueOf(2L), map.getHotFields().get("outer"));
+        assertEquals(1, map.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testMap_Binary() {
+        config.setShards(3);
+        RedisMap map = RedisMap.create(config);
+        RedisMap.BinaryView binary = map.binary();
+        byte[] value = "\u00e9t\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertNull(binary.put("key", value));
+        assertEquals("\u00e9t\u00e9", map.get("key"));
+        assertArrayEquals(value, binary.get("key"));
+        assertEquals(ByteBuffer.wrap(value), binary.getBuffer("key"));
+
+        ByteBuffer buffer = ByteBuffer.wrap("--value--".getBytes(StandardCharsets.UTF_8), 2, 5).slice();
+        assertArrayEquals(value, binary.put("key", buffer));
+        assertEquals(0, buffer.position());
+        assertEquals("value", map.get("key"));
+
+        binary.put("null", (byte[]) null);
+        binary.put(null, new byte[] {'1'});
+        assertTrue(map.containsKey("null"));
+        assertNull(binary.get("null"));
+        assertEquals("1", map.get(null));
+        assertNull(binary.get("absent"));
+
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, Integer.toString(i));
+        }
+        Map<String, String> entries = new HashMap<>();
+        binary.forEach((k, v) -> assertNull(entries.put(k, v == null ? null : new String(v, StandardCharsets.UTF_8))));
+        assertEquals(map, entries);
+
+        assertArrayEquals(new byte[] {'1'}, binary.remove(null));
+        assertNull(binary.remove("absent"));
+        assertFalse(map.containsKey(null));
+        assertEquals(102, map.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMap_Binary_IllegalCodec() {
+        config.setValueCodec(new DeflateCodec(1, 1));
+        RedisMap.create(config).binary();
+    }
+
+    @Test
+    public void testMap_MaxConcurrency() throws Exception {
+        config.setMaxConcurrency(2);
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 100; i++) {
+            map.put("key", "value");
+        }
+        assertEquals(2, map.getConcurrencyLimit());
+
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch released = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                futures.add(executor.submit(() -> map.compute("key", (k, v) -> {
+                    entered.countDown();
+                    try {
+                        released.await();
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return v;
+                })));
+            }
+            entered.await();
+            long rejections = RedisMap.getMetrics().getRejections();
+            try {
+                map.get("key");
+                fail();
+            } catch (RedisMapOverloadException e) {
+                assertEquals(2, e.getLimit());
+            }
+            try {
+                map.keySet().iterator().hasNext();
+                fail();
+            } catch (RedisMapOverloadException e) {
+                assertEquals(2, e.getLimit());
+            }
+            assertEquals(rejections + 2, RedisMap.getMetrics().getRejections());
+            released.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("value", future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        //both slow operations ran at the same time, so the limit shrinks once
+        assertEquals(1, map.getConcurrencyLimit());
+        //the limit grows back as operations complete in time
+        for (int i = 0; i < 100 && map.getConcurrencyLimit() < 2; i++) {
+            assertEquals("value", map.get("key"));
+        }
+        assertEquals(2, map.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testMap_MaxConcurrency_CallerFailures() {
+        config.setMaxConcurrency(2);
+        RedisMap map = RedisMap.create(config);
+        map.put("key", "value");
+        for (int i = 0; i < 100; i++) {
+            try {
+                map.compute("key", (k, v) -> {
+                    throw new IllegalStateException(k);
+                });
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("key", e.getMessage());
+            }
+            try {
+                map.incrementBy("key", 1L);
+                fail();
+            } catch (NumberFormatException e) {
+                //the value is not a number
+            }
+        }
+        assertEquals(2, map.getConcurrencyLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxConcurrency_Negative() {
+        config.setMaxConcurrency(-1);
+    }
+
+    @Test
+    public void testMap_Close() {
+        RedisMap map = RedisMap.create(config);
+        map.put("key", "value");
+        RedisMap other = new RedisMap(map.getRedisKey(), config);
+        map.close();
+        map.close();
+        assertEquals("value", other.get("key"));
+
+        other.close();
+        assertFalse(backend.exists(other.getRedisKey()));
+    }
+
+    @Test
+    public void testMap() {
+        Map<String, String> map = RedisMap.create(config);
+        map.put("one", "1");
+        map.put(null, null);
+        map.merge("one", "1", (a, b) -> a + b);
+        map.computeIfAbsent("two", k -> "2");
+        assertEquals(3, map.size());
+        assertEquals("11", map.get("one"));
+        assertTrue(map.containsKey(null));
+        assertTrue(map.containsValue("2"));
+
+        RedisMap other = new RedisMap(((RedisMap) map).getRedisKey(), config);
+        assertEquals(map, other);
+        other.remove("one");
+        assertFalse(map.containsKey("one"));
+
+        map.clear();
+        assertTrue(other.isEmpty());
+        assertTrue(backend.exists(other.getRedisKey()));
+    }
+
+    @Test
+    public void testMap_MaxEntries_Lru() {
+        config.setMaxEntries(3);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "value1");
+        map.put("key2", "value2");
+        map.put("key3", "value3");
+        map.get("key1");
+        map.put("key4", "value4");
+        assertEquals(Set.of("key1", "key3", "key4"), new HashSet<>(map.keySet()));
+
+        map.putAll(Map.of("key5", "value5", "key6", "value6"));
+        assertEquals(Set.of("key4", "key5", "key6"), new HashSet<>(map.keySet()));
+        map.remove("key5");
+        map.incrementBy("counter", 1L);
+        assertEquals(Set.of("key4", "key6", "counter"), new HashSet<>(map.keySet()));
+
+        map.clear();
+        map.putAll(Map.of("key7", "value7", "key8", "value8"));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testMap_MaxEntries_Lfu() {
+        config.setMaxEntries(2);
+        config.setEvictionPolicy(EvictionPolicy.LFU);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "value1");
+        map.get("key1");
+        map.put("key2", "value2");
+        map.get("key2");
+        map.get("key2");
+        map.put("key3", "value3");
+        assertEquals(Set.of("key2", "key3"), new HashSet<>(map.keySet()));
+    }
+
+    @Test
+    public void testMap_MaxBytes_Shards() {
+        config.setMaxBytes(100);
+        config.setShards(2);
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "0123456789");
+        }
+        //every shard holds at most 50 bytes, i.e. 3 entries of 15-16 bytes
+        assertTrue(map.size() <= 6);
+        assertTrue(map.size() >= 4);
+        assertEquals("0123456789", map.get("key99"));
+    }
+
+    @Test
+    public void testThreads_Version() throws Exception {
+        //the tests run against the multi-release jar on Java 21 and against the classes otherwise
+        assertEquals(Boolean.getBoolean("redis.map.virtualThreads"), Threads.VIRTUAL);
+        ExecutorService executor = Threads.newTaskExecutor("redis-map-test");
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get();
+            assertEquals("redis-map-test", thread.getName());
+            if (Threads.VIRTUAL) {
+                //the tests are compiled for Java 11, which has no virtual threads
+                assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMap_Shards_Concurrent() throws Exception {
+        config.setShards(8);
+        RedisMap map = RedisMap.create(config);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        map.merge("counter", "1", (a, b) -> Integer.toString(Integer.parseInt(a) + 1));
+                        map.incrementBy("key" + (j % 100), 1L);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("4000", map.get("counter"));
+        assertEquals(101, map.size());
+        assertEquals(101, map.keySet().size());
+        assertEquals("40", map.get("key42"));
+    }
+
+    @Test
+    public void testReadCoalescer() throws Exception {
+        backend.hset(Map.of("hash", Map.of("field1", "value1", "field2", "value2")));
+        AtomicInteger loads = new AtomicInteger();
+        ReadCoalescer coalescer = new ReadCoalescer(TimeUnit.MILLISECONDS.toNanos(200), (key, fields) -> {
+            loads.incrementAndGet();
+            return backend.hmget(key, fields);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String field = "field" + (i % 3);
+                futures.add(executor.submit(() -> coalescer.get("hash", field)));
+            }
+            for (int i = 0; i < 8; i++) {
+                assertEquals(i % 3 == 0 ? null : "value" + i % 3, futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(loads.get() < 8);
+    }
+
+    @Test
+    public void testMap_ReadCoalescing() throws Exception {
+        config.setShards(4);
+        config.setReadCoalescingWindow(Duration.ofNanos(50_000));
+        RedisMap map = RedisMap.create(config);
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i % 10 == 0 ? null : "value" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        assertEquals(j % 10 == 0 || j >= 100 ? null : "value" + j, map.get("key" + j));
+                        assertEquals(j < 100, map.containsKey("key" + j));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
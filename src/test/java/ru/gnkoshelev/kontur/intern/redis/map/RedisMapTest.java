@@ -5,10 +5,16 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,6 +24,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -25,6 +32,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RedisMapTest {
     static Jedis jedis;
@@ -1159,6 +1167,453 @@ public class RedisMapTest {
         new RedisMap("key");
     }
 
+    @Test
+    public void testShards_MapOperations() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setShards(8);
+        RedisMap map = RedisMap.create(config);
+        Map<String, String> other = new HashMap<>();
+        assertEquals(8, map.getShards());
+        assertTrue(map.isEmpty());
+
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, "value" + i);
+            other.put("key" + i, "value" + i);
+        }
+        map.put(null, null);
+        other.put(null, null);
+        assertEquals(1001, map.size());
+        assertEquals(other, map);
+        assertEquals(other.hashCode(), map.hashCode());
+        assertTrue(map.containsValue("value999"));
+        assertTrue(map.containsValue(null));
+        assertFalse(map.containsValue("value1000"));
+
+        map.keySet().removeAll(List.of("key0", "key1", "key2"));
+        assertEquals(998, map.size());
+        assertNull(map.get("key1"));
+        assertEquals("value3", map.get("key3"));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertTrue(jedis.exists(map.getRedisKey()));
+        map.putAll(other);
+        assertEquals(other, map);
+    }
+
+    @Test
+    public void testShards_ExistingKey_AdoptsLayout() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setShards(4);
+        RedisMap map1 = RedisMap.create(config);
+        map1.put("key1", "value1");
+
+        RedisMap map2 = new RedisMap(map1.getRedisKey());
+        assertEquals(4, map2.getShards());
+        assertEquals("value1", map2.get("key1"));
+        map2.put("key2", "value2");
+        assertEquals(map1, map2);
+        assertFalse(jedis.hexists(map1.getRedisKey(), "key2"));
+
+        RedisMap map3 = new RedisMap(new RedisMap().getRedisKey(), config);
+        assertEquals(1, map3.getShards());
+    }
+
+    @Test
+    public void testShards_IllegalNumber() {
+        exceptionRule.expect(IllegalArgumentException.class);
+        exceptionRule.expectMessage("Illegal number of shards: 0");
+        new RedisMapConfig().setShards(0);
+    }
+
+    @Test
+    public void testReplicas_UnavailableReplica_FallsBackToPrimary() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setReplicas(List.of(new HostAndPort("localhost", 1)));
+        config.setReadYourWrites(true);
+        RedisMap map = RedisMap.create(config);
+
+        map.put("key1", "value1");
+        assertEquals("value1", map.get("key1"));
+        assertTrue(map.containsKey("key1"));
+        assertEquals(1, map.size());
+        assertEquals(Map.of("key1", "value1"), map);
+    }
+
+    @Test
+    public void testReplicas_IllegalStaleness() {
+        exceptionRule.expect(IllegalArgumentException.class);
+        new RedisMapConfig().setMaxStaleness(Duration.ZERO);
+    }
+
+    @Test
+    public void testHedgedReads_OperationTimeout() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setOperationTimeout(Duration.ofSeconds(1));
+        config.setHedgeQuantile(0.5);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "value1");
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value1", map.get("key1"));
+        }
+        assertFalse(map.containsKey("key2"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testHedgedReads_IllegalQuantile() {
+        exceptionRule.expect(IllegalArgumentException.class);
+        new RedisMapConfig().setHedgeQuantile(1.0);
+    }
+
+    @Test
+    public void testValueCodec() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setValueCodec(new DeflateCodec(10, Deflater.DEFAULT_COMPRESSION));
+        RedisMap map = RedisMap.create(config);
+        String value = "0123456789".repeat(100);
+
+        assertNull(map.put("key1", value));
+        assertTrue(jedis.hget(map.getRedisKey(), "key1").length() < value.length());
+        assertEquals(value, map.get("key1"));
+        assertTrue(map.containsValue(value));
+        assertEquals(value, map.values().iterator().next());
+        map.put("key2", null);
+        assertNull(map.get("key2"));
+        assertTrue(map.containsKey("key2"));
+        assertEquals(value + "!", map.merge("key1", "!", String::concat));
+        assertTrue(map.remove("key1", value + "!"));
+
+        RedisMap other = new RedisMap(map.getRedisKey(), config);
+        other.putAll(Map.of("key3", value));
+        assertEquals(value, map.get("key3"));
+    }
+
+    @Test
+    public void testKeyPrefix() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setKeyPrefix("user:session:");
+        RedisMap map = RedisMap.create(config);
+        map.put("user:session:1", "value1");
+        map.put("\u0001", "value2");
+        map.put("other", "value3");
+        map.put(null, "value4");
+
+        assertTrue(jedis.hexists(map.getRedisKey(), "\u00011"));
+        assertEquals("value1", map.get("user:session:1"));
+        assertEquals("value2", map.get("\u0001"));
+        assertEquals(Set.of("user:session:1", "\u0001", "other", null), new HashSet<>(map.keySet()));
+
+        RedisMap other = new RedisMap(map.getRedisKey());
+        assertEquals("user:session:", other.getKeyPrefix());
+        assertEquals(map, other);
+        other.keySet().retainAll(Set.of("other"));
+        assertEquals(Map.of("other", "value3"), map);
+    }
+
+    @Test
+    public void testIncrementBy() {
+        RedisMap map = new RedisMap();
+        assertEquals(1L, map.incrementBy("counter", 1L));
+        assertEquals(-4L, map.incrementBy("counter", -5L));
+        assertEquals("-4", map.get("counter"));
+        assertEquals(10L, map.incrementBy(null, 10L));
+        assertEquals("10", map.get(null));
+
+        map.put("value", "10");
+        map.merge("value", "1", (a, b) -> String.valueOf(Long.parseLong(a) + Long.parseLong(b)));
+        assertEquals(12L, map.incrementBy("value", 1L));
+        assertEquals(2.5, map.incrementByFloat("float", 2.5), 0.0);
+        assertEquals(3.0, map.incrementByFloat("float", 0.5), 0.0);
+    }
+
+    @Test
+    public void testIncrementBy_NotNumber() {
+        RedisMap map = new RedisMap();
+        map.put("key", "value");
+        exceptionRule.expect(NumberFormatException.class);
+        map.incrementBy("key", 1L);
+    }
+
+    @Test
+    public void testIncrementAll() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setShards(4);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "5");
+        Map<String, Long> deltas = new HashMap<>();
+        deltas.put("key1", 1L);
+        deltas.put("key2", 2L);
+        deltas.put(null, 3L);
+
+        Map<String, Long> output = map.incrementAll(deltas);
+        assertEquals(3, output.size());
+        assertEquals(Long.valueOf(6L), output.get("key1"));
+        assertEquals(Long.valueOf(2L), output.get("key2"));
+        assertEquals(Long.valueOf(3L), output.get(null));
+        assertEquals("6", map.get("key1"));
+        assertEquals("3", map.get(null));
+        assertTrue(map.incrementAll(Map.of()).isEmpty());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setMaxEntries(3);
+        RedisMap map = RedisMap.create(config);
+        map.put("key1", "value1");
+        map.put("key2", "value2");
+        map.put("key3", "value3");
+        map.get("key1");
+        map.put("key4", "value4");
+
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("key2"));
+        assertTrue(map.containsKey("key1"));
+        assertTrue(map.containsKey("key4"));
+
+        map.clear();
+        map.putAll(Map.of("key5", "value5", "key6", "value6"));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testAtomically() {
+        RedisMap map = new RedisMap();
+        map.put("key1", "value1");
+        List<String> results = map.atomically(batch -> batch
+                .put("key2", "value2")
+                .putIfAbsent("key1", "other")
+                .replace("key1", "value1", "value3")
+                .remove("key2", "other")
+                .remove(null));
+
+        assertEquals(Arrays.asList(null, "value1", "value1", "value2", null), results);
+        assertEquals(Map.of("key1", "value3", "key2", "value2"), new HashMap<>(map));
+    }
+
+    @Test
+    public void testSession() {
+        RedisMap map = new RedisMap();
+        Session session = RedisMap.session();
+        try {
+            for (int i = 0; i < 20; i++) {
+                map.put("key" + i, "value" + i);
+            }
+            Session nested = RedisMap.session();
+            try {
+                assertEquals("value7", map.get("key7"));
+            } finally {
+                nested.close();
+            }
+            assertEquals(20, map.size());
+            assertEquals(20, map.keySet().size());
+        } finally {
+            session.close();
+        }
+        assertEquals("value19", map.get("key19"));
+    }
+
+    @Test
+    public void testAggregate() {
+        RedisMap map = new RedisMap();
+        map.put("key1", "1.5");
+        map.put("key2", "-2");
+        map.put("key3", "text");
+        map.put("key4", null);
+
+        ValueAggregate aggregate = map.aggregate(ValueFilter.any());
+        assertEquals(4L, aggregate.getCount());
+        assertEquals(2L, aggregate.getNumberCount());
+        assertEquals(-0.5, aggregate.getSum(), 0.0);
+        assertEquals(-2.0, aggregate.getMin().getAsDouble(), 0.0);
+        assertEquals(Map.of("key1", "1.5"), map.filter(ValueFilter.between(0.0, Double.POSITIVE_INFINITY)));
+        assertEquals(Map.of("key3", "text"), map.filter(ValueFilter.startingWith("te")));
+        assertEquals(1L, map.count(ValueFilter.equalTo(null)));
+    }
+
+    @Test
+    public void testKeysMatching_MatchesInMemoryBackend() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setKeyPrefix("user:");
+        RedisMapConfig memoryConfig = new RedisMapConfig();
+        memoryConfig.setKeyPrefix("user:");
+        memoryConfig.setBackend(new InMemoryBackend());
+        List<RedisMap> maps = List.of(RedisMap.create(config), RedisMap.create(memoryConfig));
+        for (RedisMap map : maps) {
+            for (String key : List.of("user:\u00e9", "user:a", "user:ab", "user:*x", "user:?x", "other\u00e9")) {
+                map.put(key, "value");
+            }
+        }
+
+        Map<String, Set<String>> expected = Map.of(
+                "user:?", Set.of("user:\u00e9", "user:a"),
+                "user:[\u00e0-\u00ff]", Set.of("user:\u00e9"),
+                "user:[^a]", Set.of("user:\u00e9"),
+                "user:\\*x", Set.of("user:*x"),
+                "user:\\?x", Set.of("user:?x"),
+                "*\u00e9", Set.of("user:\u00e9", "other\u00e9"),
+                "?ther?", Set.of("other\u00e9"));
+        expected.forEach((pattern, keys) -> {
+            for (RedisMap map : maps) {
+                assertEquals(pattern, keys, map.keysMatching(pattern));
+            }
+        });
+    }
+
+    @Test
+    public void testMaxConcurrency_WrongType() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setMaxConcurrency(2);
+        RedisMap map = RedisMap.create(config);
+        map.put("key", "value");
+        jedis.del(map.getRedisKey());
+        jedis.set(map.getRedisKey(), "value");
+        try {
+            for (int i = 0; i < 100; i++) {
+                try {
+                    map.get("key");
+                    fail();
+                } catch (JedisDataException e) {
+                    assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+                }
+            }
+            //the error comes from the stored data rather than from an overloaded server
+            assertEquals(2, map.getConcurrencyLimit());
+        } finally {
+            jedis.del(map.getRedisKey());
+        }
+    }
+
+    @Test
+    public void testMap_LocalReplica() throws InterruptedException {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setChangeStream(true);
+        RedisMap map = RedisMap.create(config);
+        map.put("one", "1");
+        try (LocalReplica replica = map.localReplica()) {
+            assertEquals(map, replica);
+            map.put("two", "2");
+            map.remove("one");
+            map.putAll(Map.of("three", "3", "four", "4"));
+            awaitEqual(map, replica);
+            assertEquals(Map.of("two", "2", "three", "3", "four", "4"), replica);
+
+            map.clear();
+            map.put("five", "5");
+            awaitEqual(map, replica);
+            assertEquals(Map.of("five", "5"), replica);
+        }
+    }
+
+    @Test
+    public void testMap_LocalReplica_Bounded() throws InterruptedException {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setChangeStream(true);
+        config.setMaxEntries(3);
+        RedisMap map = RedisMap.create(config);
+        try (LocalReplica replica = map.localReplica()) {
+            for (int i = 0; i < 3; i++) {
+                map.put("key" + i, "value" + i);
+            }
+            awaitEqual(map, replica);
+
+            //only the entries of the evicting writes name the evicted fields
+            map.put("key3", "value3");
+            map.put("key4", "value4");
+            awaitEqual(map, replica);
+            assertEquals(Map.of("key2", "value2", "key3", "value3", "key4", "value4"), replica);
+        }
+    }
+
+    @Test
+    public void testMap_ChangeStream_FailedExec() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setChangeStream(true);
+        RedisMap map = RedisMap.create(config);
+        map.put("one", "1");
+        long position = map.getChangesPosition();
+        List<String> maxMemory = jedis.configGet("maxmemory");
+        List<String> policy = jedis.configGet("maxmemory-policy");
+        jedis.configSet("maxmemory-policy", "noeviction");
+        jedis.configSet("maxmemory", "1");
+        try {
+            //the write is rejected when queued, so EXEC discards the stream entry along with it
+            map.putAll(Map.of("two", "2"));
+            fail();
+        } catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("EXECABORT"));
+        } finally {
+            jedis.configSet("maxmemory", maxMemory.get(1));
+            jedis.configSet("maxmemory-policy", policy.get(1));
+        }
+        assertEquals(position, map.getChangesPosition());
+        assertEquals(Map.of("one", "1"), new HashMap<>(map));
+    }
+
+    private static void awaitEqual(Map<String, String> expected, Map<String, String> actual)
+            throws InterruptedException {
+        for (int i = 0; i < 50 && !new HashMap<>(expected).equals(actual); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(new HashMap<>(expected), actual);
+    }
+
+    @Test
+    public void testAggregate_Infinite_MatchesInMemoryBackend() {
+        RedisMapConfig config = new RedisMapConfig();
+        config.setBackend(new InMemoryBackend());
+        List<RedisMap> maps = List.of(new RedisMap(), RedisMap.create(config));
+        for (RedisMap map : maps) {
+            map.put("key1", "1e400");
+            map.put("key2", "-1e400");
+            map.put("key3", "1.7e308");
+            map.put("key4", "1.7e308");
+        }
+
+        List<ValueAggregate> aggregates = new ArrayList<>();
+        for (RedisMap map : maps) {
+            ValueAggregate aggregate = map.aggregate(ValueFilter.any());
+            assertEquals(4L, aggregate.getNumberCount());
+            assertTrue(Double.isNaN(aggregate.getSum()));
+            assertEquals(Double.NEGATIVE_INFINITY, aggregate.getMin().getAsDouble(), 0.0);
+            assertEquals(Double.POSITIVE_INFINITY, aggregate.getMax().getAsDouble(), 0.0);
+
+            ValueAggregate finite = map.aggregate(ValueFilter.between(0.0, Double.MAX_VALUE));
+            assertEquals(2L, finite.getNumberCount());
+            assertEquals(Double.POSITIVE_INFINITY, finite.getSum(), 0.0);
+            aggregates.add(finite);
+            assertEquals(Map.of("key1", "1e400"),
+                    map.filter(ValueFilter.between(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY)));
+        }
+        assertEquals(aggregates.get(1).getSum(), aggregates.get(0).getSum(), 0.0);
+        assertEquals(aggregates.get(1).getMax().getAsDouble(), aggregates.get(0).getMax().getAsDouble(), 0.0);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        RedisMapMetrics metrics = RedisMap.getMetrics();
+        RedisMap map = new RedisMap();
+        long bytesOut = metrics.getBytesOut();
+        map.put("key", "value");
+        map.get("key");
+        map.merge("key", "1", String::concat);
+        for (String ignored : map.keySet()) {
+            assertTrue(metrics.getScanPageSize().getCount() > 0L);
+        }
+
+        Map<String, OperationStats> operations = metrics.getOperations();
+        assertTrue(operations.get("PUT").getLatency().getCount() > 0L);
+        assertTrue(operations.get("GET").getLatency().getMax() > 0.0);
+        assertTrue(operations.containsKey("MERGE"));
+        assertTrue(operations.containsKey("SCAN"));
+        assertTrue(metrics.getPoolWait().getCount() > 0L);
+        assertTrue(metrics.getBytesOut() >= bytesOut + "keyvalue".length());
+        assertTrue(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(new ObjectName(RedisMapMetrics.OBJECT_NAME)));
+    }
+
     @Test
     public void testMapScheduler() throws InterruptedException {
         Map<String, String> map = new RedisMap();